@@ -0,0 +1,267 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process Elasticsearch 7 stub with injectable faults.
+ * <p>
+ * Answers {@code /}, {@code /_template/log4j}, {@code /_ingest/pipeline/log4j} and {@code /_bulk}. Every document the
+ * harness logs carries {@code seq=<n> t=<nanoTime>}; accepted documents are counted per sequence number, so lost and
+ * duplicated events are exact, and the delivery latency of the first copy is recorded.
+ */
+final class FaultyCluster implements AutoCloseable {
+
+    private static final Pattern SEQ = Pattern.compile("seq=(\\d+) t=(\\d+)");
+
+    /**
+     * Added to every bulk response.
+     */
+    volatile long latencyMillis;
+    /**
+     * Share of bulk requests answered with 429.
+     */
+    volatile double tooManyRequests;
+    /**
+     * Share of bulk requests answered with 503.
+     */
+    volatile double unavailable;
+    /**
+     * Share of items rejected with a retryable 429 inside a successful bulk.
+     */
+    volatile double itemRejections;
+    /**
+     * Share of items rejected permanently with 400.
+     */
+    volatile double itemFailures;
+    /**
+     * Share of bulk requests whose connection is dropped without a response.
+     */
+    volatile double connectionResets;
+    /**
+     * Bulks the single write thread queues behind the one it is indexing, -1 for no limit. A bulk arriving at a full
+     * queue has all its items rejected with es_rejected_execution_exception, so rejections depend on the load the
+     * client puts on the cluster.
+     */
+    volatile int writeQueueBulks = -1;
+    /**
+     * Indexing time per action on the write thread.
+     */
+    volatile long writeMicrosPerAction;
+
+    private final int port;
+    private final AtomicIntegerArray accepted;
+    private final AtomicLongArray latencyNanos;
+    private final AtomicLong bulkRequests = new AtomicLong();
+    private final AtomicLong lastAcceptedNanos = new AtomicLong();
+    private final AtomicInteger writeBulks = new AtomicInteger();
+    private final Object writeThread = new Object();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "faulty-cluster");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile HttpServer server;
+
+    /**
+     * @param capacity highest sequence number the harness will log, plus one
+     */
+    FaultyCluster(final int capacity) throws IOException {
+        this.accepted = new AtomicIntegerArray(capacity);
+        this.latencyNanos = new AtomicLongArray(capacity);
+        this.server = start(0);
+        this.port = server.getAddress().getPort();
+    }
+
+    private HttpServer start(final int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 512);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        return server;
+    }
+
+    String host() {
+        return "http://127.0.0.1:" + port;
+    }
+
+    /**
+     * Stop listening, clients see connection refused until {@link #recover()}.
+     */
+    synchronized void outage() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    synchronized void recover() throws IOException {
+        if (server == null) {
+            server = start(port);
+        }
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readAllBytes();
+        }
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith("/_bulk")) {
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                body = new GZIPInputStream(new ByteArrayInputStream(body)).readAllBytes();
+            }
+            bulk(exchange, body);
+        } else if (path.equals("/")) {
+            respond(exchange, 200, "{\"version\":{\"number\":\"7.10.2\"}}");
+        } else if ("GET".equals(exchange.getRequestMethod())) {
+            respond(exchange, 404, "{}");
+        } else {
+            respond(exchange, 200, "{\"acknowledged\":true}");
+        }
+    }
+
+    private void bulk(final HttpExchange exchange, final byte[] body) throws IOException {
+        bulkRequests.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < connectionResets) {
+            exchange.close();
+            return;
+        }
+        if (random.nextDouble() < tooManyRequests) {
+            respond(exchange, 429, "{\"error\":\"es_rejected_execution_exception\",\"status\":429}");
+            return;
+        }
+        if (random.nextDouble() < unavailable) {
+            respond(exchange, 503, "{\"error\":\"unavailable\",\"status\":503}");
+            return;
+        }
+        String[] lines = new String(body, StandardCharsets.UTF_8).split("\n");
+        boolean admitted = index(lines.length / 2);
+        StringBuilder response = new StringBuilder("{\"took\":1,\"errors\":true,\"items\":[");
+        long now = System.nanoTime();
+        for (int i = 0; i + 1 < lines.length; i += 2) {
+            double r = random.nextDouble();
+            int status = admitted == false ? 429 : r < itemRejections ? 429 : r < itemRejections + itemFailures ? 400 : 201;
+            if (status == 201) {
+                accept(lines[i + 1], now);
+            }
+            response.append(i == 0 ? "" : ",").append("{\"index\":{\"_index\":\"log4j\",\"status\":").append(status);
+            if (admitted == false) {
+                response.append(",\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"queue full\"}");
+            } else if (status != 201) {
+                response.append(",\"error\":{\"type\":\"injected\",\"reason\":\"injected\"}");
+            }
+            response.append("}}");
+        }
+        respond(exchange, 200, response.append("]}").toString());
+    }
+
+    /**
+     * Queue the bulk on the write thread and wait until it is indexed.
+     *
+     * @return false if the queue was full and the bulk rejected
+     */
+    private boolean index(final int actions) {
+        if (writeQueueBulks < 0) {
+            return true;
+        }
+        if (writeBulks.incrementAndGet() > writeQueueBulks + 1) {
+            writeBulks.decrementAndGet();
+            return false;
+        }
+        try {
+            synchronized (writeThread) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(actions * writeMicrosPerAction));
+            }
+        } finally {
+            writeBulks.decrementAndGet();
+        }
+        return true;
+    }
+
+    private void accept(final String source, final long now) {
+        Matcher matcher = SEQ.matcher(source);
+        if (matcher.find() == false) {
+            return;
+        }
+        int seq = Integer.parseInt(matcher.group(1));
+        if (accepted.getAndIncrement(seq) == 0) {
+            latencyNanos.set(seq, now - Long.parseLong(matcher.group(2)));
+        }
+        lastAcceptedNanos.accumulateAndGet(now, Math::max);
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    int acceptedCount(final int seq) {
+        return accepted.get(seq);
+    }
+
+    long latencyNanos(final int seq) {
+        return latencyNanos.get(seq);
+    }
+
+    long bulkRequests() {
+        return bulkRequests.get();
+    }
+
+    long lastAcceptedNanos() {
+        return lastAcceptedNanos.get();
+    }
+
+    @Override
+    public void close() {
+        outage();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,331 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.apache.logging.log4j.core.config.builder.api.AppenderComponentBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Pushes events at a fixed rate through a real log4j configuration into a {@link FaultyCluster} and reports delivered
+ * throughput, delivery latency percentiles and exact lost and duplicated counts per scenario.
+ * <p>
+ * Lost events the appender accounted for (dropped, rejected, abandoned, in flight at stop or still spilled) are listed
+ * separately; anything left over is a silent loss.
+ * <pre>
+ * mvn -Pharness compile exec:exec -Dharness.args="-rate 20000 -seconds 10 -threads 4 baseline outage"
+ * </pre>
+ */
+public final class LoadHarness {
+
+    private static final Map<String, Scenario> SCENARIOS = new LinkedHashMap<>();
+
+    static {
+        scenario("baseline", "no faults", cluster -> {
+        });
+        scenario("latency", "200ms per bulk", cluster -> cluster.latencyMillis = 200);
+        scenario("throttled", "30% of bulks answered 429", cluster -> cluster.tooManyRequests = 0.3);
+        scenario("unavailable", "20% of bulks answered 503", cluster -> cluster.unavailable = 0.2);
+        scenario("partial", "5% of items 429, 1% of items 400", cluster -> {
+            cluster.itemRejections = 0.05;
+            cluster.itemFailures = 0.01;
+        });
+        scenario("resets", "10% of bulks dropped without response", cluster -> cluster.connectionResets = 0.1);
+        scenario("overloaded", "one write thread, 20us per item, no queue: concurrent bulks get 429", cluster -> {
+            cluster.writeQueueBulks = 0;
+            cluster.writeMicrosPerAction = 20;
+        });
+        SCENARIOS.put("outage", new Scenario("outage", "cluster down for the middle third", cluster -> {
+        }, true, false));
+        SCENARIOS.put("outage-spill", new Scenario("outage-spill", "outage with a spill directory", cluster -> {
+        }, true, true));
+    }
+
+    private static void scenario(String name, String description, Consumer<FaultyCluster> faults) {
+        SCENARIOS.put(name, new Scenario(name, description, faults, false, false));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rate = 10_000;
+        int seconds = 5;
+        int threads = 4;
+        long drainSeconds = 30;
+        String appender = "";
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-rate":
+                    rate = Integer.parseInt(args[++i]);
+                    break;
+                case "-seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-drain":
+                    drainSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "-appender":
+                    appender = args[++i];
+                    break;
+                default:
+                    if (SCENARIOS.containsKey(args[i]) == false) {
+                        System.err.println("unknown scenario " + args[i] + ", known: " + SCENARIOS.keySet());
+                        System.exit(1);
+                    }
+                    names.add(args[i]);
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(SCENARIOS.keySet());
+        }
+        System.out.printf("rate=%d/s seconds=%d threads=%d appender=[%s]%n", rate, seconds, threads, appender);
+        for (String name : names) {
+            System.out.printf("  %-13s %s%n", name, SCENARIOS.get(name).description);
+        }
+        System.out.printf("%-13s %8s %9s %6s %5s %8s %7s %7s %7s %7s | %7s %7s %9s %11s %7s %7s %6s%n",
+                "scenario", "sent", "delivered", "lost", "dup", "events/s", "p50ms", "p90ms", "p99ms", "maxms",
+                "dropped", "failed", "abandoned", "unconfirmed", "backlog", "retried", "silent");
+        for (String name : names) {
+            Result result = SCENARIOS.get(name).run(rate, seconds, threads, drainSeconds, appender);
+            System.out.println(result);
+        }
+    }
+
+    private static final class Scenario {
+        final String name;
+        final String description;
+        final Consumer<FaultyCluster> faults;
+        final boolean outage;
+        final boolean spill;
+
+        Scenario(String name, String description, Consumer<FaultyCluster> faults, boolean outage, boolean spill) {
+            this.name = name;
+            this.description = description;
+            this.faults = faults;
+            this.outage = outage;
+            this.spill = spill;
+        }
+
+        Result run(int rate, int seconds, int threads, long drainSeconds, String appender) throws Exception {
+            final int total = rate * seconds;
+            Path spillDirectory = spill ? Files.createTempDirectory("log4j-es-spill") : null;
+            try (FaultyCluster cluster = new FaultyCluster(total)) {
+                faults.accept(cluster);
+                LoggerContext context = Configurator.initialize(configuration(cluster, appender, spillDirectory));
+                EsConnectionManager manager = (EsConnectionManager) ((EsAppender) context.getConfiguration()
+                        .getAppender("harness")).getManager();
+                Logger logger = context.getLogger("com.nasuyun.harness." + name);
+
+                final long start = System.nanoTime();
+                if (outage) {
+                    Thread switcher = new Thread(() -> {
+                        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(seconds) / 3);
+                        cluster.outage();
+                        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(seconds) / 3);
+                        try {
+                            cluster.recover();
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }, "harness-outage");
+                    switcher.setDaemon(true);
+                    switcher.start();
+                }
+                produce(logger, rate, total, threads, start);
+                long produced = System.nanoTime();
+
+                awaitDelivery(cluster, manager, total, TimeUnit.SECONDS.toNanos(drainSeconds));
+                Configurator.shutdown(context, drainSeconds, TimeUnit.SECONDS);
+                return new Result(this, cluster, manager, total, start, produced);
+            } finally {
+                if (spillDirectory != null) {
+                    try (var files = Files.walk(spillDirectory)) {
+                        files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+                    }
+                }
+            }
+        }
+
+        private BuiltConfiguration configuration(FaultyCluster cluster, String appender, Path spillDirectory) {
+            ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+            builder.setConfigurationName("harness-" + name);
+            builder.setStatusLevel(Level.ERROR);
+            AppenderComponentBuilder es = builder.newAppender("harness", "Elasticsearch")
+                    .addAttribute("host", cluster.host())
+                    .addAttribute("username", "elastic")
+                    .addAttribute("password", "secret")
+                    .addAttribute("refreshSeconds", 1);
+            if (spillDirectory != null) {
+                es.addAttribute("spillDirectory", spillDirectory.toString());
+            }
+            for (String attribute : appender.split(",")) {
+                int eq = attribute.indexOf('=');
+                if (eq > 0) {
+                    es.addAttribute(attribute.substring(0, eq).trim(), attribute.substring(eq + 1).trim());
+                }
+            }
+            builder.add(es);
+            builder.add(builder.newRootLogger(Level.INFO).add(builder.newAppenderRef("harness")));
+            builder.setPackages(EsAppender.class.getPackage().getName());
+            return builder.build();
+        }
+
+        /**
+         * Every producer thread owns an interleaved slice of sequence numbers and paces itself to its share of the rate.
+         */
+        private void produce(Logger logger, int rate, int total, int threads, long start) throws InterruptedException {
+            CountDownLatch done = new CountDownLatch(threads);
+            long intervalNanos = TimeUnit.SECONDS.toNanos(threads) / Math.max(1, rate);
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                Thread producer = new Thread(() -> {
+                    long next = start;
+                    for (int seq = first; seq < total; seq += threads) {
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        logger.info("harness event seq={} t={}", seq, System.nanoTime());
+                        next += intervalNanos;
+                    }
+                    done.countDown();
+                }, "harness-producer-" + t);
+                producer.start();
+            }
+            done.await();
+        }
+
+        private void awaitDelivery(FaultyCluster cluster, EsConnectionManager manager, int total, long timeoutNanos) {
+            long deadline = System.nanoTime() + timeoutNanos;
+            int settled = 0;
+            long last = -1;
+            while (System.nanoTime() < deadline) {
+                long delivered = 0;
+                for (int seq = 0; seq < total; seq++) {
+                    if (cluster.acceptedCount(seq) > 0) {
+                        delivered++;
+                    }
+                }
+                long accounted = delivered + manager.getDroppedEvents() + manager.getFailedEvents()
+                        + manager.getAbandonedEvents();
+                if (accounted >= total) {
+                    return;
+                }
+                settled = delivered == last ? settled + 1 : 0;
+                last = delivered;
+                if (settled >= 20 && manager.getQueueDepth() == 0 && manager.getInFlightRequests() == 0) {
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(250));
+            }
+        }
+    }
+
+    private static final class Result {
+        final String scenario;
+        final int sent;
+        final long delivered;
+        final long duplicated;
+        final double eventsPerSecond;
+        final long[] percentiles;
+        final long dropped;
+        final long failed;
+        final long abandoned;
+        final long unconfirmed;
+        final long backlog;
+        final long retried;
+
+        Result(Scenario scenario, FaultyCluster cluster, EsConnectionManager manager, int sent, long start, long produced) {
+            this.scenario = scenario.name;
+            this.sent = sent;
+            long delivered = 0;
+            long duplicated = 0;
+            long[] latencies = new long[sent];
+            for (int seq = 0; seq < sent; seq++) {
+                int count = cluster.acceptedCount(seq);
+                if (count > 0) {
+                    latencies[(int) delivered++] = cluster.latencyNanos(seq);
+                    duplicated += count - 1;
+                }
+            }
+            this.delivered = delivered;
+            this.duplicated = duplicated;
+            long end = Math.max(produced, cluster.lastAcceptedNanos());
+            this.eventsPerSecond = delivered * 1e9 / Math.max(1, end - start);
+            long[] sorted = Arrays.copyOf(latencies, (int) delivered);
+            Arrays.sort(sorted);
+            this.percentiles = new long[]{percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    sorted.length == 0 ? 0 : sorted[sorted.length - 1]};
+            this.dropped = manager.getDroppedEvents();
+            this.failed = manager.getFailedEvents();
+            this.abandoned = manager.getAbandonedEvents();
+            this.unconfirmed = manager.getUnconfirmedEvents();
+            this.backlog = manager.getSpillBacklog();
+            this.retried = manager.getRetriedEvents();
+        }
+
+        private static long percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+        }
+
+        long lost() {
+            return sent - delivered;
+        }
+
+        /**
+         * Lost events no counter explains.
+         */
+        long silent() {
+            return Math.max(0, lost() - dropped - failed - abandoned - unconfirmed - backlog);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-13s %8d %9d %6d %5d %8.0f %7d %7d %7d %7d | %7d %7d %9d %11d %7d %7d %6d",
+                    scenario, sent, delivered, lost(), duplicated, eventsPerSecond,
+                    TimeUnit.NANOSECONDS.toMillis(percentiles[0]), TimeUnit.NANOSECONDS.toMillis(percentiles[1]),
+                    TimeUnit.NANOSECONDS.toMillis(percentiles[2]), TimeUnit.NANOSECONDS.toMillis(percentiles[3]),
+                    dropped, failed, abandoned, unconfirmed, backlog, retried, silent());
+        }
+    }
+
+    private LoadHarness() {
+    }
+}
@@ -0,0 +1,104 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code Bulking.add} through {@link EsConnectionManager#send} against a local stub, so the flush thread drains the
+ * buffer while producers contend on it. With {@code dropNewest} a producer faster than the stub measures the drop
+ * path too, {@code block} measures sustained throughput. With {@code asyncEncoding} the producers only snapshot the
+ * event and the encoder thread does the rest.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppendBenchmark {
+
+    @Param({"layout", "json"})
+    public String encoding;
+
+    @Param({"dropNewest", "block"})
+    public String overflowPolicy;
+
+    @Param({"false", "true"})
+    public boolean asyncEncoding;
+
+    private StubCluster cluster;
+    private EsConnectionManager manager;
+    private Layout<?> layout;
+    private LogEvent event;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        cluster = new StubCluster();
+        manager = cluster.manager(EsAppender.newBuilder()
+                .withName("benchmark")
+                .setEncoding(encoding)
+                .setOverflowPolicy(overflowPolicy)
+                .setAsyncEncoding(asyncEncoding)
+                .setBufferSize(16 * 1024)
+                .setMaxInFlightRequests(8));
+        layout = EsAppender.defaultLayout();
+        event = BenchmarkEvents.small();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.stop(10, TimeUnit.SECONDS);
+        cluster.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void add1() {
+        manager.send(layout, event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void add4() {
+        manager.send(layout, event);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void add16() {
+        manager.send(layout, event);
+    }
+}
@@ -0,0 +1,94 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+
+/**
+ * Event shapes shared by the benchmarks.
+ */
+final class BenchmarkEvents {
+
+    private BenchmarkEvents() {
+    }
+
+    /**
+     * @param kind small, large or throwable
+     */
+    static LogEvent of(final String kind) {
+        switch (kind) {
+            case "small":
+                return small();
+            case "large":
+                return large();
+            case "throwable":
+                return throwable();
+            default:
+                throw new IllegalArgumentException("unknown event kind " + kind);
+        }
+    }
+
+    static LogEvent small() {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("com.example.order.OrderService")
+                .setLevel(Level.INFO)
+                .setMessage(new ParameterizedMessage("order {} accepted in {} ms", "A-10042", 17))
+                .setThreadName("http-nio-8080-exec-1")
+                .setTimeMillis(System.currentTimeMillis())
+                .build();
+    }
+
+    static LogEvent large() {
+        StringBuilder text = new StringBuilder(8 * 1024);
+        while (text.length() < 8 * 1024) {
+            text.append("payload \"quoted\" 中文 value=").append(text.length()).append('\n');
+        }
+        SortedArrayStringMap context = new SortedArrayStringMap();
+        for (int i = 0; i < 16; i++) {
+            context.putValue("key" + i, "value-" + i);
+        }
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("com.example.gateway.RequestLogger")
+                .setLevel(Level.WARN)
+                .setMarker(MarkerManager.getMarker("AUDIT"))
+                .setMessage(new SimpleMessage(text.toString()))
+                .setContextData(context)
+                .setThreadName("http-nio-8080-exec-7")
+                .setTimeMillis(System.currentTimeMillis())
+                .build();
+    }
+
+    static LogEvent throwable() {
+        Exception cause = new IllegalStateException("connection reset");
+        Exception thrown = new RuntimeException("order A-10042 failed", cause);
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("com.example.order.OrderService")
+                .setLevel(Level.ERROR)
+                .setMessage(new SimpleMessage("order processing failed"))
+                .setThrown(thrown)
+                .setThreadName("http-nio-8080-exec-3")
+                .setTimeMillis(System.currentTimeMillis())
+                .build();
+    }
+}
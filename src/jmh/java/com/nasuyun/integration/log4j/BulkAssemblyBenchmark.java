@@ -0,0 +1,85 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The part of {@code refresh()} between the buffer and the HTTP client: collect a batch into a {@link BulkRequest},
+ * write it into a pooled {@link BulkBody} and optionally gzip it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkAssemblyBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int batchSize;
+
+    @Param({"none", "gzip"})
+    public String compression;
+
+    private final ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_CHUNK_SIZE, 128);
+    private byte[][] sources;
+    private byte[] action;
+    private boolean gzip;
+
+    @Setup
+    public void setUp() throws IOException {
+        DocumentEncoder encoder = DocumentEncoder.of("json", "benchmark-host", null, null);
+        sources = new byte[batchSize][];
+        for (int i = 0; i < batchSize; i++) {
+            sources[i] = encoder.encode(null, i % 100 == 0 ? BenchmarkEvents.throwable() : BenchmarkEvents.small());
+        }
+        action = new IndexNames("log4j", RolloverPolicy.DAY).periodOf(System.currentTimeMillis(), 7).actionLine;
+        gzip = GzipCompressor.isGzip(compression);
+    }
+
+    @Benchmark
+    public long assemble() {
+        BulkRequest request = new BulkRequest("/_bulk", "log4j");
+        for (byte[] source : sources) {
+            request.add(action, source);
+        }
+        BulkBody body = request.writeTo(new BulkBody(pool));
+        if (gzip) {
+            BulkBody compressed = GzipCompressor.forCurrentThread(6).compress(body, new BulkBody(pool));
+            body.release();
+            body = compressed;
+        }
+        long size = body.size();
+        body.release();
+        return size;
+    }
+}
@@ -0,0 +1,72 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index name lookup per event: {@code current} hits the cached period, {@code boundary} alternates between two days
+ * the way late events around midnight do.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexNameBenchmark {
+
+    @Param({"day", "month", "none"})
+    public String rolloverPolicy;
+
+    private IndexNames indexNames;
+    private long now;
+    private long yesterday;
+
+    @Setup
+    public void setUp() {
+        indexNames = new IndexNames("log4j", RolloverPolicy.of(rolloverPolicy));
+        now = System.currentTimeMillis();
+        yesterday = now - TimeUnit.DAYS.toMillis(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public IndexNames.Period current() {
+        return indexNames.periodOf(now, 7);
+    }
+
+    @Benchmark
+    public IndexNames.Period boundary() {
+        indexNames.periodOf(yesterday, 7);
+        return indexNames.periodOf(now, 7);
+    }
+}
@@ -0,0 +1,80 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal local Elasticsearch 7 endpoint: every bulk succeeds, so benchmarks measure the appender and not the network.
+ */
+final class StubCluster implements AutoCloseable {
+
+    private static final byte[] ROOT = "{\"version\":{\"number\":\"7.10.2\"}}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ACKNOWLEDGED = "{\"acknowledged\":true}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BULK_OK = "{\"took\":1,\"errors\":false,\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    StubCluster() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(8);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            String path = exchange.getRequestURI().getPath();
+            byte[] response = path.startsWith("/_bulk") ? BULK_OK
+                    : path.equals("/") ? ROOT
+                    : "GET".equals(exchange.getRequestMethod()) ? "{}".getBytes(StandardCharsets.UTF_8) : ACKNOWLEDGED;
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    String host() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * A started manager sending to this stub.
+     */
+    EsConnectionManager manager(final EsAppender.Builder<?> builder) {
+        builder.setHost(host()).setUsername("elastic").setPassword("secret").setConfiguration(new DefaultConfiguration());
+        return EsConnectionManager.getManager(new EsConnectionManager.FactoryData(builder));
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
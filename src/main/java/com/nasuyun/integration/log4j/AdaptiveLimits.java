@@ -0,0 +1,173 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * AIMD controller for the number of bulks in flight and the number of actions per bulk.
+ * <p>
+ * Both limits start at their configured maximum, so an appender that never sees trouble behaves as with fixed limits.
+ * Every completed bulk is a sample:
+ * <ul>
+ * <li>a 429, or items rejected with 429 / {@code es_rejected_execution_exception}, lower the concurrency by half the
+ * share of actions rejected: a rejected bulk halves it, 10% rejected items cut it by 5%. The batch size stays: the
+ * write queue holds shard requests, so smaller bulks would only fill it faster. Gateway errors and
+ * transport failures are not load signals: fewer bulks in flight do not bring a node back, they only lose more events
+ * to the retry limit</li>
+ * <li>a round trip slower than {@code latencyTolerance} times the recent minimum, and by more than
+ * {@link #LATENCY_SLACK_NANOS}, lowers the concurrency and the batch size by a tenth: the cluster is queueing. Only
+ * bulks of at least {@code minBatchActions} are timed</li>
+ * <li>otherwise the concurrency grows by one per window of that many samples, and the batch size grows by a twentieth
+ * of its range when the bulk was full. Within one of the concurrency that last drew a 429 it grows
+ * {@link #PROBE_SLOWDOWN} times slower, so a cluster that takes exactly one or two bulks is not rejected every other
+ * round trip</li>
+ * </ul>
+ * Like TCP congestion control, limits are lowered at most once per round trip: bulks that were already in flight
+ * when a limit was lowered report the same congestion and do not lower it again. The minimum round trip is re-measured
+ * every {@link #BASELINE_WINDOW} samples so that it can follow a slower cluster.
+ */
+final class AdaptiveLimits {
+
+    static final int BASELINE_WINDOW = 100;
+    /**
+     * Round trips this close to the minimum are jitter, not queueing, whatever the ratio.
+     */
+    static final long LATENCY_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    static final int PROBE_SLOWDOWN = 10;
+
+    private final boolean enabled;
+    private final int maxConcurrency;
+    private final int minBatchActions;
+    private final int maxBatchActions;
+    private final double latencyTolerance;
+    private final IntConsumer onConcurrencyChange;
+    private double concurrency;
+    private double batchActions;
+    /**
+     * Concurrency at the last 429, until the limit grows past it again.
+     */
+    private double overloadedAt = Double.MAX_VALUE;
+    private long baselineNanos = Long.MAX_VALUE;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private int windowSamples;
+    /**
+     * nanoTime values may be negative or positive, so "no decrease yet" cannot be told from a sentinel time.
+     */
+    private boolean decreased;
+    private long lastDecreaseNanos;
+    private volatile int concurrencyLimit;
+    private volatile int batchActionsLimit;
+    private volatile long decreases;
+
+    /**
+     * @param onConcurrencyChange told every new concurrency limit, e.g. to resize the sender
+     */
+    AdaptiveLimits(final boolean enabled, final int maxConcurrency, final int minBatchActions, final int maxBatchActions,
+                   final double latencyTolerance, final IntConsumer onConcurrencyChange) {
+        this.enabled = enabled;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxBatchActions = Math.max(1, maxBatchActions);
+        this.minBatchActions = Math.max(1, Math.min(minBatchActions, this.maxBatchActions));
+        this.latencyTolerance = Math.max(1.0, latencyTolerance);
+        this.onConcurrencyChange = onConcurrencyChange;
+        this.concurrency = this.maxConcurrency;
+        this.batchActions = this.maxBatchActions;
+        this.concurrencyLimit = this.maxConcurrency;
+        this.batchActionsLimit = this.maxBatchActions;
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} when the bulk was sent
+     * @param rttNanos   round trip of the bulk
+     * @param actions    actions the bulk carried
+     * @param rejected   actions the cluster rejected for lack of write capacity: all of them on a 429
+     */
+    synchronized void onSample(final long startNanos, final long rttNanos, final int actions, final int rejected) {
+        if (enabled == false) {
+            return;
+        }
+        final boolean sentAfterDecrease = decreased == false || startNanos - lastDecreaseNanos > 0;
+        if (rejected > 0) {
+            if (sentAfterDecrease) {
+                overloadedAt = concurrency;
+                concurrency = Math.max(1, concurrency * (1 - 0.5 * Math.min(rejected, actions) / Math.max(1, actions)));
+                decrease(startNanos + rttNanos);
+            }
+        } else {
+            // retries of a few items and small lingered bulks are much faster than full ones: neither baseline nor sample
+            final boolean timed = actions >= minBatchActions;
+            if (timed) {
+                windowMinNanos = Math.min(windowMinNanos, rttNanos);
+                if (++windowSamples >= BASELINE_WINDOW || baselineNanos == Long.MAX_VALUE) {
+                    baselineNanos = windowMinNanos;
+                    windowMinNanos = Long.MAX_VALUE;
+                    windowSamples = 0;
+                }
+            }
+            if (timed && rttNanos > baselineNanos * latencyTolerance && rttNanos - baselineNanos > LATENCY_SLACK_NANOS) {
+                if (sentAfterDecrease) {
+                    concurrency = Math.max(1, concurrency * 0.9);
+                    batchActions = Math.max(minBatchActions, batchActions * 0.9);
+                    decrease(startNanos + rttNanos);
+                }
+            } else {
+                final double step = concurrency + 1 >= overloadedAt ? 1 / (concurrency * PROBE_SLOWDOWN) : 1 / concurrency;
+                concurrency = Math.min(maxConcurrency, concurrency + step);
+                if (concurrency > overloadedAt) {
+                    overloadedAt = Double.MAX_VALUE;
+                }
+                if (actions >= batchActionsLimit) {
+                    batchActions = Math.min(maxBatchActions, batchActions + (maxBatchActions - minBatchActions) / 20.0 + 1);
+                }
+            }
+        }
+        batchActionsLimit = (int) batchActions;
+        int limit = (int) concurrency;
+        if (limit != concurrencyLimit) {
+            concurrencyLimit = limit;
+            onConcurrencyChange.accept(limit);
+        }
+    }
+
+    private void decrease(final long nowNanos) {
+        lastDecreaseNanos = nowNanos;
+        decreased = true;
+        decreases++;
+    }
+
+    int concurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    int batchActionsLimit() {
+        return batchActionsLimit;
+    }
+
+    /**
+     * Number of samples that lowered a limit.
+     */
+    long decreases() {
+        return decreases;
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+}
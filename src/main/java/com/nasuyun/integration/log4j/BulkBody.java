@@ -0,0 +1,205 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NDJSON bulk body written as UTF-8 straight into pooled chunks.
+ * <p>
+ * Not thread safe: the flush thread writes it, the HTTP client reads it through {@link #publisher()}, and
+ * {@link #release()} returns the chunks once the response has arrived.
+ */
+final class BulkBody extends OutputStream {
+
+    private final ByteBufferPool pool;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private long size;
+    private int actions;
+    private String contentEncoding;
+
+    BulkBody(final ByteBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Append one bulk action: the precomputed action line and the source document, newline terminated.
+     */
+    void add(final byte[] actionLine, final byte[] source) {
+        write(actionLine, 0, actionLine.length);
+        write(source, 0, source.length);
+        write('\n');
+        actions++;
+    }
+
+    @Override
+    public void write(final int b) {
+        ensureCurrent().put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) {
+        size += len;
+        while (len > 0) {
+            final ByteBuffer buffer = ensureCurrent();
+            final int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * A chunk with free space for callers that fill buffers themselves, report the bytes with {@link #advance(int)}.
+     */
+    ByteBuffer writable() {
+        return ensureCurrent();
+    }
+
+    void advance(final int bytes) {
+        size += bytes;
+    }
+
+    /**
+     * Read-only views of the written bytes, positioned at the start.
+     */
+    List<ByteBuffer> views() {
+        final List<ByteBuffer> views = new ArrayList<>(chunks.size());
+        for (ByteBuffer chunk : chunks) {
+            views.add(chunk.asReadOnlyBuffer().flip());
+        }
+        return views;
+    }
+
+    private ByteBuffer ensureCurrent() {
+        if (current == null || current.hasRemaining() == false) {
+            current = pool.acquire();
+            chunks.add(current);
+        }
+        return current;
+    }
+
+    long size() {
+        return size;
+    }
+
+    int actions() {
+        return actions;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    String contentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Marks this body as the encoded form of {@code source}, carrying over its action count.
+     */
+    void encodedFrom(final BulkBody source, final String contentEncoding) {
+        this.actions = source.actions;
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * Publishes read-only views of the chunks, every subscription starts from the first byte again.
+     */
+    HttpRequest.BodyPublisher publisher() {
+        return HttpRequest.BodyPublishers.fromPublisher(new ChunkPublisher(), size);
+    }
+
+    void release() {
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        current = null;
+        size = 0;
+        actions = 0;
+        contentEncoding = null;
+    }
+
+    private final class ChunkPublisher implements Flow.Publisher<ByteBuffer> {
+        @Override
+        public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new ChunkSubscription(subscriber, views()));
+        }
+    }
+
+    private static final class ChunkSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final List<ByteBuffer> views;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean emitting = new AtomicBoolean();
+        private volatile boolean cancelled;
+        private int next;
+
+        ChunkSubscription(final Flow.Subscriber<? super ByteBuffer> subscriber, final List<ByteBuffer> views) {
+            this.subscriber = subscriber;
+            this.views = views;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+                return;
+            }
+            demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            emit();
+        }
+
+        private void emit() {
+            // request() may be re-entered from onNext, only one caller drains the demand
+            while (emitting.compareAndSet(false, true)) {
+                try {
+                    while (cancelled == false && demand.get() > 0 && next < views.size()) {
+                        demand.decrementAndGet();
+                        subscriber.onNext(views.get(next++));
+                    }
+                    if (cancelled == false && next == views.size()) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    }
+                } finally {
+                    emitting.set(false);
+                }
+                if (cancelled || demand.get() == 0) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The actions of one bulk request, kept until the response has been handled so failed items can be resent.
+ */
+final class BulkRequest {
+
+    private final String path;
+    private final String index;
+    private final int attempt;
+    private final List<byte[]> actions = new ArrayList<>();
+    private final List<byte[]> sources = new ArrayList<>();
+    private long bytes;
+    /**
+     * Attempts of this request still to be handled, shared with its retries and slices; null without onSettled.
+     */
+    private AtomicInteger unsettled;
+    private Runnable onSettled;
+
+    BulkRequest(final String path, final String index) {
+        this(path, index, 0);
+    }
+
+    private BulkRequest(final String path, final String index, final int attempt) {
+        this.path = path;
+        this.index = index;
+        this.attempt = attempt;
+    }
+
+    void add(final byte[] action, final byte[] source) {
+        actions.add(action);
+        sources.add(source);
+        bytes += action.length + source.length + 1;
+    }
+
+    /**
+     * Bytes the action would add to the body.
+     */
+    static long sizeOf(final byte[] action, final byte[] source) {
+        return action.length + source.length + 1;
+    }
+
+    BulkBody writeTo(final BulkBody body) {
+        for (int i = 0; i < sources.size(); i++) {
+            body.add(actions.get(i), sources.get(i));
+        }
+        return body;
+    }
+
+    /**
+     * The next attempt, holding only the items at the given positions.
+     */
+    BulkRequest retry(final int[] positions, final int count) {
+        final BulkRequest retry = new BulkRequest(path, index, attempt + 1);
+        for (int i = 0; i < count; i++) {
+            retry.add(actions.get(positions[i]), sources.get(positions[i]));
+        }
+        return follow(retry);
+    }
+
+    /**
+     * The items from {@code from} to {@code to} as a request of the same attempt, for splitting a request the
+     * cluster refused as too large.
+     */
+    BulkRequest slice(final int from, final int to) {
+        final BulkRequest slice = new BulkRequest(path, index, attempt);
+        for (int i = from; i < to; i++) {
+            slice.add(actions.get(i), sources.get(i));
+        }
+        return follow(slice);
+    }
+
+    /**
+     * The next attempt with all items.
+     */
+    BulkRequest retry() {
+        final BulkRequest retry = new BulkRequest(path, index, attempt + 1);
+        retry.actions.addAll(actions);
+        retry.sources.addAll(sources);
+        retry.bytes = bytes;
+        return follow(retry);
+    }
+
+    byte[] action(final int i) {
+        return actions.get(i);
+    }
+
+    byte[] source(final int i) {
+        return sources.get(i);
+    }
+
+    /**
+     * Run once this request and every retry and slice made from it have been handled or given up.
+     */
+    BulkRequest onSettled(final Runnable onSettled) {
+        this.unsettled = new AtomicInteger(1);
+        this.onSettled = onSettled;
+        return this;
+    }
+
+    private BulkRequest follow(final BulkRequest next) {
+        if (unsettled != null) {
+            unsettled.incrementAndGet();
+            next.unsettled = unsettled;
+            next.onSettled = onSettled;
+        }
+        return next;
+    }
+
+    /**
+     * This attempt is done: its response was handled, or its items were given up. Retries and slices made from it
+     * before this call keep the request unsettled.
+     */
+    void handled() {
+        if (unsettled != null && unsettled.decrementAndGet() == 0) {
+            onSettled.run();
+        }
+    }
+
+    String path() {
+        return path;
+    }
+
+    String index() {
+        return index;
+    }
+
+    int attempt() {
+        return attempt;
+    }
+
+    int size() {
+        return sources.size();
+    }
+
+    boolean isEmpty() {
+        return sources.isEmpty();
+    }
+
+    long bytes() {
+        return bytes;
+    }
+}
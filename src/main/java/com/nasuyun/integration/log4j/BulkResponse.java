@@ -0,0 +1,162 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Failed items of a {@code _bulk} response, read with the streaming parser.
+ * <p>
+ * Parsing stops at {@code "errors": false}, so a fully successful response is never walked item by item.
+ */
+final class BulkResponse {
+
+    static final BulkResponse OK = new BulkResponse(new int[0], new int[0], 0, 0);
+
+    /**
+     * Error type of an item the write thread pool had no room for.
+     */
+    static final String REJECTED_EXECUTION = "es_rejected_execution_exception";
+
+    private final int[] positions;
+    private final int[] statuses;
+    private final int failed;
+    private final int rejected;
+
+    private BulkResponse(final int[] positions, final int[] statuses, final int failed, final int rejected) {
+        this.positions = positions;
+        this.statuses = statuses;
+        this.failed = failed;
+        this.rejected = rejected;
+    }
+
+    static BulkResponse parse(final byte[] body) throws IOException {
+        try (JsonParser parser = DocumentEncoder.JSON_FACTORY.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("bulk response is not an object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+                if ("errors".equals(field)) {
+                    if (value == JsonToken.VALUE_FALSE) {
+                        return OK;
+                    }
+                } else if ("items".equals(field) && value == JsonToken.START_ARRAY) {
+                    return parseItems(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return OK;
+        }
+    }
+
+    /**
+     * items: [ { "index": { "_index": .., "status": 429, "error": {..} } }, .. ]
+     */
+    private static BulkResponse parseItems(final JsonParser parser) throws IOException {
+        int[] positions = new int[16];
+        int[] statuses = new int[16];
+        int failed = 0;
+        int rejected = 0;
+        int position = 0;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            int status = 0;
+            String type = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("status".equals(field)) {
+                        status = parser.getIntValue();
+                    } else if ("error".equals(field) && parser.currentToken() == JsonToken.START_OBJECT) {
+                        type = errorType(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            if (status >= 300) {
+                if (failed == positions.length) {
+                    positions = Arrays.copyOf(positions, failed * 2);
+                    statuses = Arrays.copyOf(statuses, failed * 2);
+                }
+                positions[failed] = position;
+                statuses[failed] = status;
+                failed++;
+                if (status == 429 || REJECTED_EXECUTION.equals(type)) {
+                    rejected++;
+                }
+            }
+            position++;
+        }
+        return new BulkResponse(positions, statuses, failed, rejected);
+    }
+
+    /**
+     * error: { "type": "es_rejected_execution_exception", "reason": .. }
+     */
+    private static String errorType(final JsonParser parser) throws IOException {
+        String type = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("type".equals(field)) {
+                type = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return type;
+    }
+
+    /**
+     * 429 and the gateway errors are worth another attempt, everything else fails the same way again.
+     */
+    static boolean isRetryable(final int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    int failed() {
+        return failed;
+    }
+
+    /**
+     * Failed items the cluster had no capacity for: status 429 or an es_rejected_execution_exception.
+     */
+    int rejected() {
+        return rejected;
+    }
+
+    int position(final int i) {
+        return positions[i];
+    }
+
+    int status(final int i) {
+        return statuses[i];
+    }
+}
@@ -0,0 +1,142 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends bulk bodies with {@link HttpClient#sendAsync}, keeping several requests in flight.
+ * <p>
+ * The flush thread only blocks in {@link #send} when the in-flight request count or byte budget is used up, so it
+ * keeps building the next batch while earlier ones are on the wire. With {@code orderedPerIndex} a request starts
+ * only after the previous request for the same index has completed.
+ */
+final class BulkSender {
+
+    private final HttpClient client;
+    private final int maxInFlightRequests;
+    private final int maxInFlightBytes;
+    private final ResizableSemaphore requestPermits;
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private int requestLimit;
+    private final Semaphore bytePermits;
+    private final boolean orderedPerIndex;
+    private final ConcurrentHashMap<String, CompletableFuture<?>> tails = new ConcurrentHashMap<>();
+
+    BulkSender(final HttpClient client, final int maxInFlightRequests, final int maxInFlightBytes, final boolean orderedPerIndex) {
+        this.client = client;
+        this.maxInFlightRequests = Math.max(1, maxInFlightRequests);
+        this.maxInFlightBytes = Math.max(1, maxInFlightBytes);
+        this.requestPermits = new ResizableSemaphore(this.maxInFlightRequests);
+        this.requestLimit = this.maxInFlightRequests;
+        this.bytePermits = new Semaphore(this.maxInFlightBytes);
+        this.orderedPerIndex = orderedPerIndex;
+    }
+
+    /**
+     * Wait for a free slot, then send asynchronously. The body is released when the exchange completes.
+     *
+     * @return the response, or null if no slot became free within {@code timeoutMillis}
+     */
+    CompletableFuture<HttpResponse<byte[]>> send(final HttpRequest request, final BulkBody body, final String index,
+                                                 final long timeoutMillis) throws InterruptedException {
+        final int bytes = (int) Math.min(body.size(), maxInFlightBytes);
+        if (requestPermits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS) == false) {
+            return null;
+        }
+        if (bytePermits.tryAcquire(bytes, timeoutMillis, TimeUnit.MILLISECONDS) == false) {
+            requestPermits.release();
+            return null;
+        }
+        inFlightRequests.incrementAndGet();
+        final CompletableFuture<HttpResponse<byte[]>> response;
+        if (orderedPerIndex) {
+            final CompletableFuture<HttpResponse<byte[]>> next = new CompletableFuture<>();
+            final CompletableFuture<?> previous = tails.put(index, next);
+            final CompletableFuture<?> start = previous == null ? CompletableFuture.completedFuture(null) : previous;
+            start.handle((r, e) -> client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()))
+                    .thenCompose(f -> f)
+                    .whenComplete((r, e) -> {
+                        if (e != null) {
+                            next.completeExceptionally(e);
+                        } else {
+                            next.complete(r);
+                        }
+                    });
+            next.whenComplete((r, e) -> tails.remove(index, next));
+            response = next;
+        } else {
+            response = client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+        }
+        return response.whenComplete((r, e) -> {
+            body.release();
+            bytePermits.release(bytes);
+            inFlightRequests.decrementAndGet();
+            requestPermits.release();
+        });
+    }
+
+    /**
+     * Change how many requests may be in flight, between 1 and maxInFlightRequests. Requests already in flight are
+     * not affected, a lower limit takes effect as they complete.
+     */
+    synchronized void setRequestLimit(final int limit) {
+        final int bounded = Math.max(1, Math.min(maxInFlightRequests, limit));
+        if (bounded > requestLimit) {
+            requestPermits.release(bounded - requestLimit);
+        } else if (bounded < requestLimit) {
+            requestPermits.reducePermits(requestLimit - bounded);
+        }
+        requestLimit = bounded;
+    }
+
+    synchronized int requestLimit() {
+        return requestLimit;
+    }
+
+    int inFlightRequests() {
+        return inFlightRequests.get();
+    }
+
+    long inFlightBytes() {
+        return maxInFlightBytes - bytePermits.availablePermits();
+    }
+
+    /**
+     * A semaphore whose permit count can be lowered while permits are held.
+     */
+    private static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(final int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(final int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
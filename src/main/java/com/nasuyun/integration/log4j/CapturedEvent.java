@@ -0,0 +1,203 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.AbstractLogEvent;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.async.InternalAsyncUtil;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.core.time.Instant;
+import org.apache.logging.log4j.core.time.MutableInstant;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ReusableMessage;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.apache.logging.log4j.util.StringMap;
+
+import java.util.Map;
+
+/**
+ * What the application thread keeps of an event when encoding happens on the encoder thread.
+ * <p>
+ * Only references are copied, except for what the caller may reuse: reusable messages are replaced by their
+ * memento and unfrozen context data is copied. Messages are frozen the way the async appender does it, i.e.
+ * formatted right away unless they are {@code @AsynchronouslyFormattable} or {@code log4j2.formatMsgAsync} is set.
+ * The location is captured only if the event already carries one.
+ */
+final class CapturedEvent extends AbstractLogEvent {
+    private static final long serialVersionUID = 1L;
+
+    final transient Layout<?> layout;
+    private final String loggerFqcn;
+    private final String loggerName;
+    private final Level level;
+    private final Marker marker;
+    private final transient Message message;
+    private final ReadOnlyStringMap contextData;
+    private final ThreadContext.ContextStack contextStack;
+    private final String threadName;
+    private final long threadId;
+    private final int threadPriority;
+    private final Throwable thrown;
+    private transient ThrowableProxy thrownProxy;
+    private final StackTraceElement source;
+    private final boolean includeLocation;
+    private final boolean endOfBatch;
+    private final long timeMillis;
+    private final MutableInstant instant = new MutableInstant();
+    private final long nanoTime;
+
+    CapturedEvent(final Layout<?> layout, final LogEvent event) {
+        this.layout = layout;
+        this.loggerFqcn = event.getLoggerFqcn();
+        this.loggerName = event.getLoggerName();
+        this.level = event.getLevel();
+        this.marker = event.getMarker();
+        final Message message = event.getMessage();
+        this.message = InternalAsyncUtil.makeMessageImmutable(
+                message instanceof ReusableMessage ? ((ReusableMessage) message).memento() : message);
+        final ReadOnlyStringMap context = event.getContextData();
+        this.contextData = context == null || context instanceof StringMap && ((StringMap) context).isFrozen()
+                ? context : new SortedArrayStringMap(context);
+        this.contextStack = event.getContextStack();
+        this.threadName = event.getThreadName();
+        this.threadId = event.getThreadId();
+        this.threadPriority = event.getThreadPriority();
+        this.thrown = event.getThrown();
+        this.includeLocation = event.isIncludeLocation();
+        this.source = includeLocation ? event.getSource() : null;
+        this.endOfBatch = event.isEndOfBatch();
+        this.timeMillis = event.getTimeMillis();
+        if (event.getInstant() != null) {
+            this.instant.initFrom(event.getInstant());
+        } else {
+            this.instant.initFromEpochMilli(timeMillis, 0);
+        }
+        this.nanoTime = event.getNanoTime();
+    }
+
+    @Override
+    public LogEvent toImmutable() {
+        return this;
+    }
+
+    @Override
+    public ReadOnlyStringMap getContextData() {
+        return contextData;
+    }
+
+    @Override
+    public Map<String, String> getContextMap() {
+        return contextData == null ? null : contextData.toMap();
+    }
+
+    @Override
+    public ThreadContext.ContextStack getContextStack() {
+        return contextStack;
+    }
+
+    @Override
+    public Level getLevel() {
+        return level;
+    }
+
+    @Override
+    public String getLoggerFqcn() {
+        return loggerFqcn;
+    }
+
+    @Override
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    @Override
+    public Marker getMarker() {
+        return marker;
+    }
+
+    @Override
+    public Message getMessage() {
+        return message;
+    }
+
+    @Override
+    public StackTraceElement getSource() {
+        return source;
+    }
+
+    @Override
+    public long getThreadId() {
+        return threadId;
+    }
+
+    @Override
+    public String getThreadName() {
+        return threadName;
+    }
+
+    @Override
+    public int getThreadPriority() {
+        return threadPriority;
+    }
+
+    @Override
+    public Throwable getThrown() {
+        return thrown;
+    }
+
+    /**
+     * Built on first use, i.e. on the encoder thread.
+     */
+    @Override
+    public ThrowableProxy getThrownProxy() {
+        if (thrownProxy == null && thrown != null) {
+            thrownProxy = new ThrowableProxy(thrown);
+        }
+        return thrownProxy;
+    }
+
+    @Override
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    @Override
+    public Instant getInstant() {
+        return instant;
+    }
+
+    @Override
+    public boolean isEndOfBatch() {
+        return endOfBatch;
+    }
+
+    @Override
+    public boolean isIncludeLocation() {
+        return includeLocation;
+    }
+
+    @Override
+    public long getNanoTime() {
+        return nanoTime;
+    }
+}
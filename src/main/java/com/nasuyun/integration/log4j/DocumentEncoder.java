@@ -0,0 +1,58 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import com.fasterxml.jackson.core.JsonFactory;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.ConfigurationException;
+
+import java.io.IOException;
+
+/**
+ * Turns a log event into the UTF-8 source document of one bulk action.
+ */
+interface DocumentEncoder {
+
+    JsonFactory JSON_FACTORY = new JsonFactory();
+
+    byte[] encode(Layout<?> layout, LogEvent event) throws IOException;
+
+    static DocumentEncoder of(final String encoding, final String hostname, final StackTraceCache stackTraces,
+                              final SizeGuard guard) {
+        return of(encoding, hostname, stackTraces, guard, false);
+    }
+
+    /**
+     * @param encoding    {@code layout} wraps the layout output in a {@code message} field for the grok pipeline,
+     *                    {@code json} writes the event fields directly
+     * @param stackTraces sends repeated stack traces as a fingerprint only, null sends every trace
+     * @param guard       cuts fields to its byte caps, null writes every field in full
+     * @param timestamp   layout documents carry {@code @timestamp} too, as data streams require; json always does
+     */
+    static DocumentEncoder of(final String encoding, final String hostname, final StackTraceCache stackTraces,
+                              final SizeGuard guard, final boolean timestamp) {
+        if (encoding == null || encoding.isEmpty() || encoding.equalsIgnoreCase("layout")) {
+            return new LayoutEncoder(stackTraces, guard, timestamp);
+        }
+        if (encoding.equalsIgnoreCase("json")) {
+            return new JsonEventEncoder(hostname, stackTraces, guard);
+        }
+        throw new ConfigurationException("Unknown encoding [" + encoding + "], expected layout or json");
+    }
+}
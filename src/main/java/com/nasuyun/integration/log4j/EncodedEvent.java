@@ -0,0 +1,37 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+/**
+ * A bulk source document together with the event time that decides its index, the lane it is buffered in and the
+ * route it is sent with.
+ */
+final class EncodedEvent {
+
+    final long timeMillis;
+    final byte[] source;
+    final int lane;
+    final int route;
+
+    EncodedEvent(final long timeMillis, final byte[] source, final int lane, final int route) {
+        this.timeMillis = timeMillis;
+        this.source = source;
+        this.lane = lane;
+        this.route = route;
+    }
+}
@@ -21,18 +21,22 @@ import org.apache.logging.log4j.core.Appender;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
 import org.apache.logging.log4j.core.config.Node;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
 import org.apache.logging.log4j.core.layout.PatternLayout;
 
+import javax.management.ObjectName;
+
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
@@ -45,9 +49,33 @@ public final class EsAppender extends AbstractAppender {
     public static class Builder<B extends Builder<B>> extends AbstractAppender.Builder<B>
             implements org.apache.logging.log4j.core.util.Builder<EsAppender> {
 
+        /**
+         * One endpoint or a comma separated list of endpoints.
+         */
         @PluginBuilderAttribute
         private String host = "https://router.nasuyun.com:9200";
 
+        /**
+         * How bulks are spread over the endpoints: roundRobin or leastInFlight.
+         */
+        @PluginBuilderAttribute
+        private String loadBalancing = "roundRobin";
+
+        /**
+         * Consecutive failures that open the circuit breaker of an endpoint.
+         */
+        @PluginBuilderAttribute
+        private int failureThreshold = 3;
+
+        /**
+         * How long an open endpoint is skipped before a half-open probe, doubled after every failed probe.
+         */
+        @PluginBuilderAttribute
+        private long circuitOpenMillis = 1_000;
+
+        @PluginBuilderAttribute
+        private long maxCircuitOpenMillis = 30_000;
+
         @PluginBuilderAttribute
         @Required(message = "No username provided for Elasticsearch Appender")
         private String username;
@@ -62,36 +90,334 @@ public final class EsAppender extends AbstractAppender {
         @PluginBuilderAttribute
         private int refreshSeconds = 5;
 
+        /**
+         * Defaults to log4j for the layout encoding and to none for json.
+         */
+        @PluginBuilderAttribute
+        private String pipeline;
+
+        @PluginBuilderAttribute
+        private String encoding = "layout";
+
+        /**
+         * Events matching a route go to its index, the rest to log4j.
+         */
+        @PluginElement("IndexRoutes")
+        private IndexRoute[] routes;
+
+        /**
+         * Send a stack trace in full at most once per this many seconds, repeats carry its fingerprint and message
+         * only. 0 sends every stack trace.
+         */
+        @PluginBuilderAttribute
+        private int stackTraceDedupSeconds = 0;
+
+        /**
+         * Stack trace fingerprints remembered for stackTraceDedupSeconds, least recently seen first out.
+         */
+        @PluginBuilderAttribute
+        private int stackTraceCacheSize = 1024;
+
+        /**
+         * Only snapshot events on the logging thread and encode them on a dedicated encoder thread. Events with their
+         * own lane, ERROR and FATAL or WARN, are still encoded on the logging thread, so the snapshot buffer, sized and
+         * policed like the INFO lane, never drops them.
+         */
+        @PluginBuilderAttribute
+        private boolean asyncEncoding = false;
+
+        /**
+         * Cut any single string field (message, exception message, context value, stack) to this many UTF-8 bytes,
+         * the original length is kept in the truncated field. 0 keeps fields whole. This bounds what is buffered and
+         * sent, not formatting: messages and layouts are still rendered in full before they are cut.
+         */
+        @PluginBuilderAttribute
+        private int maxFieldBytes = 0;
+
+        /**
+         * Cut fields so the whole document stays within this many UTF-8 bytes. 0 for no limit. Events larger than
+         * maxBatchBytes are always sent in a bulk of their own.
+         */
+        @PluginBuilderAttribute
+        private int maxDocumentBytes = 0;
+
+        /**
+         * Hold events at or below this level (e.g. DEBUG for DEBUG and TRACE) in memory and only send them when an
+         * ERROR or FATAL event with the same tailSamplingKey follows, in its bulk and ahead of it. Must be below ERROR.
+         * Empty sends every event as usual.
+         */
+        @PluginBuilderAttribute
+        private String tailSamplingLevel;
+
+        /**
+         * MDC key, e.g. a trace id, the held events are grouped by; empty or missing in the event groups by thread.
+         */
+        @PluginBuilderAttribute
+        private String tailSamplingKey;
+
+        /**
+         * Held events per key, older ones are discarded.
+         */
+        @PluginBuilderAttribute
+        private int tailSamplingEvents = 100;
+
+        /**
+         * An ERROR only releases held events at most this many seconds older than itself.
+         */
         @PluginBuilderAttribute
-        private String pipeline = "log4j";
+        private int tailSamplingSeconds = 30;
+
+        /**
+         * Memory the held events may take in total, encoded documents plus bookkeeping.
+         */
+        @PluginBuilderAttribute
+        private long tailSamplingMaxBytes = 8 * 1024 * 1024;
 
         @PluginBuilderAttribute
         private String rolloverPolicy = "day";
 
+        /**
+         * legacy installs a template for dated indices; dataStream writes each route index as a data stream with
+         * create actions and rolls it over by rolloverMaxSize and rolloverMaxAge (Elasticsearch 7.9+, older
+         * clusters fall back to legacy). Installed templates are updated when their index settings differ, existing
+         * policies are left untouched.
+         */
+        @PluginBuilderAttribute
+        private String templateProfile = "legacy";
+
+        @PluginBuilderAttribute
+        private int numberOfShards = 1;
+
+        /**
+         * -1 keeps the cluster default.
+         */
+        @PluginBuilderAttribute
+        private int numberOfReplicas = -1;
+
+        /**
+         * Defaults to 5s for legacy and 30s for dataStream.
+         */
+        @PluginBuilderAttribute
+        private String refreshInterval;
+
+        /**
+         * Store the indices with the best_compression codec, less disk for slightly slower merges. Defaults to false
+         * for legacy and true for dataStream.
+         */
+        @PluginBuilderAttribute
+        private Boolean bestCompression;
+
+        /**
+         * Roll a data stream over once its write index reaches this size, empty for no size limit.
+         */
+        @PluginBuilderAttribute
+        private String rolloverMaxSize = "50gb";
+
+        /**
+         * Roll a data stream over once its write index is this old, empty for no age limit.
+         */
+        @PluginBuilderAttribute
+        private String rolloverMaxAge = "1d";
+
+        /**
+         * Comma separated string fields kept in the source for display but neither indexed nor aggregatable.
+         */
+        @PluginBuilderAttribute
+        private String displayOnlyFields;
+
         @PluginBuilderAttribute
         private boolean debug = false;
 
         @PluginBuilderAttribute
         private boolean verifyConnection = true;
 
+        /**
+         * Buffer for INFO and less severe events, and for WARN and ERROR when their lanes are disabled.
+         */
+        @PluginBuilderAttribute
+        private int bufferSize = 2048;
+
+        /**
+         * dropNewest, dropOldest or block. Every lane drops by default; block stalls the logging thread up to
+         * blockTimeoutMillis per event while the buffer is full, so it is opt-in.
+         */
+        @PluginBuilderAttribute
+        private String overflowPolicy = "dropNewest";
+
+        @PluginBuilderAttribute
+        private long blockTimeoutMillis = 100;
+
+        /**
+         * Separate buffer for ERROR and FATAL events, flushed as soon as one arrives. 0 buffers them with WARN.
+         */
+        @PluginBuilderAttribute
+        private int errorBufferSize = 256;
+
+        @PluginBuilderAttribute
+        private String errorOverflowPolicy = "dropNewest";
+
+        /**
+         * Separate buffer for WARN events. 0 buffers them with INFO and below in bufferSize.
+         */
+        @PluginBuilderAttribute
+        private int warnBufferSize = 256;
+
+        @PluginBuilderAttribute
+        private String warnOverflowPolicy = "dropNewest";
+
+        @PluginBuilderAttribute
+        private int maxInFlightRequests = 4;
+
+        @PluginBuilderAttribute
+        private int maxInFlightBytes = 32 * 1024 * 1024;
+
+        @PluginBuilderAttribute
+        private boolean orderedPerIndex = false;
+
+        @PluginBuilderAttribute
+        private String compression = "none";
+
+        @PluginBuilderAttribute
+        private int compressionLevel = 6;
+
+        @PluginBuilderAttribute
+        private int maxBatchActions = 1000;
+
+        /**
+         * Tune in-flight requests and batch size from bulk latency and rejections, within maxInFlightRequests and
+         * minBatchActions..maxBatchActions. Off by default: against a cluster that rejects a share of bulks regardless
+         * of load the controller only costs throughput.
+         */
+        @PluginBuilderAttribute
+        private boolean adaptiveLimits;
+
+        @PluginBuilderAttribute
+        private int minBatchActions = 100;
+
+        /**
+         * Round trips slower than this multiple of the recent minimum lower the concurrency.
+         */
+        @PluginBuilderAttribute
+        private double latencyTolerance = 2.0;
+
+        /**
+         * Events with the same logger, level, message template and throwable type that pass per suppressWindowSeconds,
+         * the rest are replaced by one summary event. 0 disables suppression.
+         */
+        @PluginBuilderAttribute
+        private int suppressAfter = 0;
+
+        @PluginBuilderAttribute
+        private int suppressWindowSeconds = 10;
+
+        /**
+         * Fingerprints remembered for suppression, least recently seen first out.
+         */
+        @PluginBuilderAttribute
+        private int suppressCacheSize = 1024;
+
+        /**
+         * Rate limit on events entering the buffer, 0 disables it.
+         */
+        @PluginBuilderAttribute
+        private int maxEventsPerSecond = 0;
+
+        /**
+         * Events the rate limit lets through at once, defaults to maxEventsPerSecond.
+         */
+        @PluginBuilderAttribute
+        private int burstEvents = 0;
+
+        @PluginBuilderAttribute
+        private long maxBatchBytes = 5 * 1024 * 1024;
+
+        /**
+         * How long a partial batch waits for more events. 0 sends it right away, negative defaults to refreshSeconds.
+         */
+        @PluginBuilderAttribute
+        private long lingerMillis = -1;
+
+        @PluginBuilderAttribute
+        private int maxRetries = 3;
+
+        @PluginBuilderAttribute
+        private long retryBackoffMillis = 200;
+
+        @PluginBuilderAttribute
+        private long maxRetryBackoffMillis = 10_000;
+
+        /**
+         * Retries allowed per bulk request sent, on top of a reserve of 100.
+         */
+        @PluginBuilderAttribute
+        private double retryBudgetRatio = 0.2;
+
+        /**
+         * Spill undeliverable events to memory-mapped segment files in this directory, disabled when empty.
+         */
+        @PluginBuilderAttribute
+        private String spillDirectory = null;
+
+        @PluginBuilderAttribute
+        private long spillMaxBytes = 1024L * 1024 * 1024;
+
+        @PluginBuilderAttribute
+        private int spillSegmentBytes = 16 * 1024 * 1024;
+
+        @PluginBuilderAttribute
+        private int replayEventsPerSecond = 5000;
+
+        /**
+         * Start at once and negotiate version, template and pipeline in the background, buffering events meanwhile.
+         */
+        @PluginBuilderAttribute
+        private boolean asyncStartup = false;
+
+        /**
+         * Properties file caching the negotiated version per host, so warm restarts skip the version probe.
+         */
+        @PluginBuilderAttribute
+        private String versionCacheFile = null;
+
+        /**
+         * Log a metrics summary to the StatusLogger every so many seconds, 0 disables it.
+         */
+        @PluginBuilderAttribute
+        private int metricsIntervalSeconds = 0;
+
         @Override
         public EsAppender build() {
-            final EsManager esManager = new EsConnectionManager(getConfiguration(), getConfiguration().getLoggerContext(),
-                    getName(), host, username, password, connectTimeoutSeconds, refreshSeconds, pipeline, rolloverPolicy, debug, verifyConnection);
-            String pattern = "[%d{yyyy-MM-dd'T'HH:mm:ss.SSSZ}][" + hostname() + "][%-5p][%-25c{1.}] %marker %m%n";
+            final EsManager esManager = EsConnectionManager.getManager(new EsConnectionManager.FactoryData(this));
 
             Layout layout = getLayout();
             if (layout == null) {
                 PatternLayout.createDefaultLayout();
-                layout = PatternLayout.newBuilder().withPattern(pattern).withCharset(Charset.defaultCharset()).build();
+                layout = defaultLayout();
             }
-            return new EsAppender(getName(), layout, getFilter(), isIgnoreExceptions(), esManager);
+            return new EsAppender(getName(), layout, getFilter(), isIgnoreExceptions(), esManager,
+                    getConfiguration().getLoggerContext());
         }
 
         public String getHost() {
             return host;
         }
 
+        public String getLoadBalancing() {
+            return loadBalancing;
+        }
+
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+
+        public long getCircuitOpenMillis() {
+            return circuitOpenMillis;
+        }
+
+        public long getMaxCircuitOpenMillis() {
+            return maxCircuitOpenMillis;
+        }
+
         public String getUsername() {
             return username;
         }
@@ -104,15 +430,267 @@ public final class EsAppender extends AbstractAppender {
             return connectTimeoutSeconds;
         }
 
+        public int getRefreshSeconds() {
+            return refreshSeconds;
+        }
+
+        public String getRolloverPolicy() {
+            return rolloverPolicy;
+        }
+
+        public boolean isDebug() {
+            return debug;
+        }
+
         public boolean isVerifyConnection() {
             return verifyConnection;
         }
 
+        public String getPipeline() {
+            return pipeline;
+        }
+
+        public String getEncoding() {
+            return encoding;
+        }
+
+        public IndexRoute[] getRoutes() {
+            return routes;
+        }
+
+        public int getStackTraceDedupSeconds() {
+            return stackTraceDedupSeconds;
+        }
+
+        public int getStackTraceCacheSize() {
+            return stackTraceCacheSize;
+        }
+
+        public boolean isAsyncEncoding() {
+            return asyncEncoding;
+        }
+
+        public int getMaxFieldBytes() {
+            return maxFieldBytes;
+        }
+
+        public int getMaxDocumentBytes() {
+            return maxDocumentBytes;
+        }
+
+        public String getTailSamplingLevel() {
+            return tailSamplingLevel;
+        }
+
+        public String getTailSamplingKey() {
+            return tailSamplingKey;
+        }
+
+        public int getTailSamplingEvents() {
+            return tailSamplingEvents;
+        }
+
+        public int getTailSamplingSeconds() {
+            return tailSamplingSeconds;
+        }
+
+        public long getTailSamplingMaxBytes() {
+            return tailSamplingMaxBytes;
+        }
+
+        public String getTemplateProfile() {
+            return templateProfile;
+        }
+
+        public int getNumberOfShards() {
+            return numberOfShards;
+        }
+
+        public int getNumberOfReplicas() {
+            return numberOfReplicas;
+        }
+
+        public String getRefreshInterval() {
+            return refreshInterval;
+        }
+
+        public Boolean getBestCompression() {
+            return bestCompression;
+        }
+
+        public String getRolloverMaxSize() {
+            return rolloverMaxSize;
+        }
+
+        public String getRolloverMaxAge() {
+            return rolloverMaxAge;
+        }
+
+        public String getDisplayOnlyFields() {
+            return displayOnlyFields;
+        }
+
+        public int getBufferSize() {
+            return bufferSize;
+        }
+
+        public String getOverflowPolicy() {
+            return overflowPolicy;
+        }
+
+        public long getBlockTimeoutMillis() {
+            return blockTimeoutMillis;
+        }
+
+        public int getErrorBufferSize() {
+            return errorBufferSize;
+        }
+
+        public String getErrorOverflowPolicy() {
+            return errorOverflowPolicy;
+        }
+
+        public int getWarnBufferSize() {
+            return warnBufferSize;
+        }
+
+        public String getWarnOverflowPolicy() {
+            return warnOverflowPolicy;
+        }
+
+        public int getMaxInFlightRequests() {
+            return maxInFlightRequests;
+        }
+
+        public int getMaxInFlightBytes() {
+            return maxInFlightBytes;
+        }
+
+        public boolean isOrderedPerIndex() {
+            return orderedPerIndex;
+        }
+
+        public String getCompression() {
+            return compression;
+        }
+
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        public int getMaxBatchActions() {
+            return maxBatchActions;
+        }
+
+        public boolean isAdaptiveLimits() {
+            return adaptiveLimits;
+        }
+
+        public int getMinBatchActions() {
+            return minBatchActions;
+        }
+
+        public double getLatencyTolerance() {
+            return latencyTolerance;
+        }
+
+        public int getSuppressAfter() {
+            return suppressAfter;
+        }
+
+        public int getSuppressWindowSeconds() {
+            return suppressWindowSeconds;
+        }
+
+        public int getSuppressCacheSize() {
+            return suppressCacheSize;
+        }
+
+        public int getMaxEventsPerSecond() {
+            return maxEventsPerSecond;
+        }
+
+        public int getBurstEvents() {
+            return burstEvents;
+        }
+
+        public long getMaxBatchBytes() {
+            return maxBatchBytes;
+        }
+
+        public long getLingerMillis() {
+            return lingerMillis;
+        }
+
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+
+        public long getRetryBackoffMillis() {
+            return retryBackoffMillis;
+        }
+
+        public long getMaxRetryBackoffMillis() {
+            return maxRetryBackoffMillis;
+        }
+
+        public double getRetryBudgetRatio() {
+            return retryBudgetRatio;
+        }
+
+        public String getSpillDirectory() {
+            return spillDirectory;
+        }
+
+        public long getSpillMaxBytes() {
+            return spillMaxBytes;
+        }
+
+        public int getSpillSegmentBytes() {
+            return spillSegmentBytes;
+        }
+
+        public int getReplayEventsPerSecond() {
+            return replayEventsPerSecond;
+        }
+
+        public boolean isAsyncStartup() {
+            return asyncStartup;
+        }
+
+        public String getVersionCacheFile() {
+            return versionCacheFile;
+        }
+
+        public int getMetricsIntervalSeconds() {
+            return metricsIntervalSeconds;
+        }
+
         public B setHost(final String host) {
             this.host = host;
             return asBuilder();
         }
 
+        public B setLoadBalancing(final String loadBalancing) {
+            this.loadBalancing = loadBalancing;
+            return asBuilder();
+        }
+
+        public B setFailureThreshold(final int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+            return asBuilder();
+        }
+
+        public B setCircuitOpenMillis(final long circuitOpenMillis) {
+            this.circuitOpenMillis = circuitOpenMillis;
+            return asBuilder();
+        }
+
+        public B setMaxCircuitOpenMillis(final long maxCircuitOpenMillis) {
+            this.maxCircuitOpenMillis = maxCircuitOpenMillis;
+            return asBuilder();
+        }
+
         public B setUsername(final String username) {
             this.username = username;
             return asBuilder();
@@ -128,6 +706,116 @@ public final class EsAppender extends AbstractAppender {
             return asBuilder();
         }
 
+        public B setPipeline(final String pipeline) {
+            this.pipeline = pipeline;
+            return asBuilder();
+        }
+
+        public B setEncoding(final String encoding) {
+            this.encoding = encoding;
+            return asBuilder();
+        }
+
+        public B setRoutes(final IndexRoute... routes) {
+            this.routes = routes;
+            return asBuilder();
+        }
+
+        public B setStackTraceDedupSeconds(final int stackTraceDedupSeconds) {
+            this.stackTraceDedupSeconds = stackTraceDedupSeconds;
+            return asBuilder();
+        }
+
+        public B setStackTraceCacheSize(final int stackTraceCacheSize) {
+            this.stackTraceCacheSize = stackTraceCacheSize;
+            return asBuilder();
+        }
+
+        public B setAsyncEncoding(final boolean asyncEncoding) {
+            this.asyncEncoding = asyncEncoding;
+            return asBuilder();
+        }
+
+        public B setMaxFieldBytes(final int maxFieldBytes) {
+            this.maxFieldBytes = maxFieldBytes;
+            return asBuilder();
+        }
+
+        public B setMaxDocumentBytes(final int maxDocumentBytes) {
+            this.maxDocumentBytes = maxDocumentBytes;
+            return asBuilder();
+        }
+
+        public B setTailSamplingLevel(final String tailSamplingLevel) {
+            this.tailSamplingLevel = tailSamplingLevel;
+            return asBuilder();
+        }
+
+        public B setTailSamplingKey(final String tailSamplingKey) {
+            this.tailSamplingKey = tailSamplingKey;
+            return asBuilder();
+        }
+
+        public B setTailSamplingEvents(final int tailSamplingEvents) {
+            this.tailSamplingEvents = tailSamplingEvents;
+            return asBuilder();
+        }
+
+        public B setTailSamplingSeconds(final int tailSamplingSeconds) {
+            this.tailSamplingSeconds = tailSamplingSeconds;
+            return asBuilder();
+        }
+
+        public B setTailSamplingMaxBytes(final long tailSamplingMaxBytes) {
+            this.tailSamplingMaxBytes = tailSamplingMaxBytes;
+            return asBuilder();
+        }
+
+        public B setTemplateProfile(final String templateProfile) {
+            this.templateProfile = templateProfile;
+            return asBuilder();
+        }
+
+        public B setNumberOfShards(final int numberOfShards) {
+            this.numberOfShards = numberOfShards;
+            return asBuilder();
+        }
+
+        public B setNumberOfReplicas(final int numberOfReplicas) {
+            this.numberOfReplicas = numberOfReplicas;
+            return asBuilder();
+        }
+
+        public B setRefreshInterval(final String refreshInterval) {
+            this.refreshInterval = refreshInterval;
+            return asBuilder();
+        }
+
+        public B setBestCompression(final boolean bestCompression) {
+            this.bestCompression = bestCompression;
+            return asBuilder();
+        }
+
+        public B setRolloverMaxSize(final String rolloverMaxSize) {
+            this.rolloverMaxSize = rolloverMaxSize;
+            return asBuilder();
+        }
+
+        public B setRolloverMaxAge(final String rolloverMaxAge) {
+            this.rolloverMaxAge = rolloverMaxAge;
+            return asBuilder();
+        }
+
+        public B setDisplayOnlyFields(final String displayOnlyFields) {
+            this.displayOnlyFields = displayOnlyFields;
+            return asBuilder();
+        }
+
+        public B setRefreshSeconds(final int refreshSeconds) {
+            this.refreshSeconds = refreshSeconds;
+            return asBuilder();
+        }
+
         public B setRolloverPolicy(final String rolloverPolicy) {
             this.rolloverPolicy = rolloverPolicy;
             return asBuilder();
@@ -142,6 +830,176 @@ public final class EsAppender extends AbstractAppender {
             this.verifyConnection = verifyConnection;
             return asBuilder();
         }
+
+        public B setBufferSize(final int bufferSize) {
+            this.bufferSize = bufferSize;
+            return asBuilder();
+        }
+
+        public B setOverflowPolicy(final String overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return asBuilder();
+        }
+
+        public B setBlockTimeoutMillis(final long blockTimeoutMillis) {
+            this.blockTimeoutMillis = blockTimeoutMillis;
+            return asBuilder();
+        }
+
+        public B setErrorBufferSize(final int errorBufferSize) {
+            this.errorBufferSize = errorBufferSize;
+            return asBuilder();
+        }
+
+        public B setErrorOverflowPolicy(final String errorOverflowPolicy) {
+            this.errorOverflowPolicy = errorOverflowPolicy;
+            return asBuilder();
+        }
+
+        public B setWarnBufferSize(final int warnBufferSize) {
+            this.warnBufferSize = warnBufferSize;
+            return asBuilder();
+        }
+
+        public B setWarnOverflowPolicy(final String warnOverflowPolicy) {
+            this.warnOverflowPolicy = warnOverflowPolicy;
+            return asBuilder();
+        }
+
+        public B setMaxInFlightRequests(final int maxInFlightRequests) {
+            this.maxInFlightRequests = maxInFlightRequests;
+            return asBuilder();
+        }
+
+        public B setMaxInFlightBytes(final int maxInFlightBytes) {
+            this.maxInFlightBytes = maxInFlightBytes;
+            return asBuilder();
+        }
+
+        public B setOrderedPerIndex(final boolean orderedPerIndex) {
+            this.orderedPerIndex = orderedPerIndex;
+            return asBuilder();
+        }
+
+        public B setCompression(final String compression) {
+            this.compression = compression;
+            return asBuilder();
+        }
+
+        public B setCompressionLevel(final int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return asBuilder();
+        }
+
+        public B setMaxBatchActions(final int maxBatchActions) {
+            this.maxBatchActions = maxBatchActions;
+            return asBuilder();
+        }
+
+        public B setAdaptiveLimits(final boolean adaptiveLimits) {
+            this.adaptiveLimits = adaptiveLimits;
+            return asBuilder();
+        }
+
+        public B setMinBatchActions(final int minBatchActions) {
+            this.minBatchActions = minBatchActions;
+            return asBuilder();
+        }
+
+        public B setLatencyTolerance(final double latencyTolerance) {
+            this.latencyTolerance = latencyTolerance;
+            return asBuilder();
+        }
+
+        public B setSuppressAfter(final int suppressAfter) {
+            this.suppressAfter = suppressAfter;
+            return asBuilder();
+        }
+
+        public B setSuppressWindowSeconds(final int suppressWindowSeconds) {
+            this.suppressWindowSeconds = suppressWindowSeconds;
+            return asBuilder();
+        }
+
+        public B setSuppressCacheSize(final int suppressCacheSize) {
+            this.suppressCacheSize = suppressCacheSize;
+            return asBuilder();
+        }
+
+        public B setMaxEventsPerSecond(final int maxEventsPerSecond) {
+            this.maxEventsPerSecond = maxEventsPerSecond;
+            return asBuilder();
+        }
+
+        public B setBurstEvents(final int burstEvents) {
+            this.burstEvents = burstEvents;
+            return asBuilder();
+        }
+
+        public B setMaxBatchBytes(final long maxBatchBytes) {
+            this.maxBatchBytes = maxBatchBytes;
+            return asBuilder();
+        }
+
+        public B setLingerMillis(final long lingerMillis) {
+            this.lingerMillis = lingerMillis;
+            return asBuilder();
+        }
+
+        public B setMaxRetries(final int maxRetries) {
+            this.maxRetries = maxRetries;
+            return asBuilder();
+        }
+
+        public B setRetryBackoffMillis(final long retryBackoffMillis) {
+            this.retryBackoffMillis = retryBackoffMillis;
+            return asBuilder();
+        }
+
+        public B setMaxRetryBackoffMillis(final long maxRetryBackoffMillis) {
+            this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+            return asBuilder();
+        }
+
+        public B setRetryBudgetRatio(final double retryBudgetRatio) {
+            this.retryBudgetRatio = retryBudgetRatio;
+            return asBuilder();
+        }
+
+        public B setSpillDirectory(final String spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return asBuilder();
+        }
+
+        public B setSpillMaxBytes(final long spillMaxBytes) {
+            this.spillMaxBytes = spillMaxBytes;
+            return asBuilder();
+        }
+
+        public B setSpillSegmentBytes(final int spillSegmentBytes) {
+            this.spillSegmentBytes = spillSegmentBytes;
+            return asBuilder();
+        }
+
+        public B setReplayEventsPerSecond(final int replayEventsPerSecond) {
+            this.replayEventsPerSecond = replayEventsPerSecond;
+            return asBuilder();
+        }
+
+        public B setAsyncStartup(final boolean asyncStartup) {
+            this.asyncStartup = asyncStartup;
+            return asBuilder();
+        }
+
+        public B setVersionCacheFile(final String versionCacheFile) {
+            this.versionCacheFile = versionCacheFile;
+            return asBuilder();
+        }
+
+        public B setMetricsIntervalSeconds(final int metricsIntervalSeconds) {
+            this.metricsIntervalSeconds = metricsIntervalSeconds;
+            return asBuilder();
+        }
     }
 
     @PluginBuilderFactory
@@ -150,17 +1008,27 @@ public final class EsAppender extends AbstractAppender {
     }
 
     private final EsManager manager;
+    private final LoggerContext loggerContext;
+    private ObjectName objectName;
 
     private EsAppender(final String name, final Layout<? extends Serializable> layout, final Filter filter,
-                       final boolean ignoreExceptions, final EsManager manager) {
+                       final boolean ignoreExceptions, final EsManager manager, final LoggerContext loggerContext) {
         super(name, filter, layout, ignoreExceptions);
         this.manager = Objects.requireNonNull(manager, "manager");
+        this.loggerContext = loggerContext;
+    }
+
+    public EsManager getManager() {
+        return manager;
     }
 
     @Override
     public void start() {
         super.start();
         manager.startup();
+        if (manager instanceof EsConnectionManager) {
+            objectName = ((EsConnectionManager) manager).registerMBean(loggerContext, getName(), this);
+        }
     }
 
     @Override
@@ -176,6 +1044,9 @@ public final class EsAppender extends AbstractAppender {
     public boolean stop(final long timeout, final TimeUnit timeUnit) {
         setStopping();
         boolean stopped = super.stop(timeout, timeUnit, false);
+        if (manager instanceof EsConnectionManager) {
+            ((EsConnectionManager) manager).unregisterMBean(objectName, this);
+        }
         stopped &= manager.stop(timeout, timeUnit);
         setStopped();
         return stopped;
@@ -189,7 +1060,12 @@ public final class EsAppender extends AbstractAppender {
                 '}';
     }
 
-    private static String hostname() {
+    static PatternLayout defaultLayout() {
+        String pattern = "[%d{yyyy-MM-dd'T'HH:mm:ss.SSSZ}][" + hostname() + "][%-5p][%-25c{1.}] %marker %m%n";
+        return PatternLayout.newBuilder().withPattern(pattern).withCharset(StandardCharsets.UTF_8).build();
+    }
+
+    static String hostname() {
         try {
             return InetAddress.getLocalHost().getHostName();
         } catch (UnknownHostException e) {
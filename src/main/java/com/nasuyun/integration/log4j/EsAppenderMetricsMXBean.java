@@ -0,0 +1,114 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.util.Map;
+
+/**
+ * Runtime metrics of one Elasticsearch appender, registered as
+ * {@code org.apache.logging.log4j2:type=<context>,component=Elasticsearch,name=<appender>}.
+ */
+public interface EsAppenderMetricsMXBean {
+
+    long getAcceptedEvents();
+
+    long getDroppedEvents();
+
+    Map<String, Long> getDroppedEventsByLane();
+
+    long getEncodedEvents();
+
+    long getEncodingFailures();
+
+    long getRetriedEvents();
+
+    long getFailedEvents();
+
+    long getAbandonedEvents();
+
+    long getUnconfirmedEvents();
+
+    long getSpilledEvents();
+
+    long getSpillBacklog();
+
+    int getQueueDepth();
+
+    long getQueueHighWater();
+
+    int getQueueCapacity();
+
+    long getBulkRequests();
+
+    long getBytesBeforeCompression();
+
+    long getBytesSent();
+
+    int getInFlightRequests();
+
+    long getInFlightBytes();
+
+    int getConcurrencyLimit();
+
+    int getBatchActionsLimit();
+
+    /**
+     * Number of bulk outcomes that lowered the adaptive limits.
+     */
+    long getLimitDecreases();
+
+    /**
+     * Number of events replaced by a suppression summary.
+     */
+    long getSuppressedEvents();
+
+    /**
+     * Number of events discarded by maxEventsPerSecond.
+     */
+    long getRateLimitedEvents();
+
+    /**
+     * Number of events with fields cut to maxFieldBytes or maxDocumentBytes.
+     */
+    long getTruncatedEvents();
+
+    /**
+     * Number of held low-level events sent because an ERROR of the same key followed.
+     */
+    long getTailSampledEvents();
+
+    /**
+     * Number of held low-level events discarded without an ERROR.
+     */
+    long getTailDiscardedEvents();
+
+    /**
+     * Memory currently taken by held low-level events.
+     */
+    long getTailHeldBytes();
+
+    /**
+     * Bulk request count per latency bucket.
+     */
+    Map<String, Long> getBulkLatencyHistogram();
+
+    /**
+     * Failed bulk items per HTTP status.
+     */
+    Map<Integer, Long> getFailuresByStatus();
+}
@@ -17,101 +17,204 @@ package com.nasuyun.integration.log4j;
  * limitations under the license.
  */
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
 import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.ConfigurationException;
+import org.apache.logging.log4j.core.jmx.Server;
+import org.apache.logging.log4j.util.PropertiesUtil;
 import org.apache.logging.log4j.util.Strings;
 
-import java.net.URI;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
-public class EsConnectionManager extends EsManager {
+public class EsConnectionManager extends EsManager implements EsAppenderMetricsMXBean {
 
     private final String host;
+    private final EsTransport transport;
+    private final NodeSelector nodes;
     private final String username;
     private final String password;
     private final int connectTimeoutSeconds;
-    private final String rolloverPolicy;
+    private final Routes routes;
     private final Bulking bulking;
     private final String pipeline;
     private final boolean debug;
     private final HttpClient client;
-    private final int esVersion;
-    private final boolean ready;
+    private final BulkSender sender;
     private final boolean verifyConnection;
+    private final String versionCacheFile;
+    private volatile int esVersion;
+    /**
+     * 次版本号，决定能否使用 data stream；异步启动读到只有主版本的缓存时为 -1
+     */
+    private volatile int esMinorVersion = -1;
+    private final IndexTemplates templates;
+    /**
+     * 按 maxFieldBytes/maxDocumentBytes 截断字段，未配置时为 null
+     */
+    private final SizeGuard sizeGuard;
+    /**
+     * templateProfile 为 dataStream 且集群支持时为 true，此时以 create 写入 data stream
+     */
+    private volatile boolean dataStreams;
+    private volatile boolean ready;
+    /**
+     * 同步启动时总为 true；异步启动时在版本、模板、pipeline 就绪后才开始发送
+     */
+    private volatile boolean bootstrapped;
+    private final Metrics metrics = new Metrics();
 
     private static final String index = "log4j";
+    /**
+     * 重新配置时新 appender 先于旧 appender 启动，同名 MBean 只由最后注册的 appender 注销
+     */
+    private static final ConcurrentMap<ObjectName, Object> registeredMBeans = new ConcurrentHashMap<>();
+    /**
+     * 每个连接（host + 凭据）最近创建的 manager，旧 manager 停止时把未发送的事件交给它
+     */
+    private static final ConcurrentMap<String, EsConnectionManager> latestByConnection = new ConcurrentHashMap<>();
+    /**
+     * 按目录打开的 spill，同一连接的 manager 共用，最后一个关闭时释放目录锁
+     */
+    private static final Map<Path, SharedSpill> openSpills = new HashMap<>();
+    private static final ManagerFactory<EsConnectionManager, FactoryData> FACTORY = new EsConnectionManagerFactory();
+
+    private final String connection;
 
-    public EsConnectionManager(final Configuration configuration, final LoggerContext loggerContext, final String name,
-                               final String host,
-                               final String username,
-                               final String password,
-                               final int connectTimeoutSeconds,
-                               final int refreshSeconds,
-                               final String pipeline,
-                               final String rolloverPolicy,
-                               final boolean debug,
-                               final boolean verifyConnection) {
+    /**
+     * Appenders and logger contexts with the same host, credentials and settings share one manager and its buffer,
+     * so a reconfiguration that keeps the settings keeps the buffer as well. Managers on the same connection share
+     * one {@link EsTransport}.
+     */
+    static EsConnectionManager getManager(final FactoryData data) {
+        return getManager(data.managerName(), FACTORY, data);
+    }
+
+    protected EsConnectionManager(final Configuration configuration, final LoggerContext loggerContext, final String name,
+                                  final FactoryData data) {
         super(configuration, loggerContext, name);
-        this.host = host;
-        this.username = username;
-        this.password = password;
-        this.connectTimeoutSeconds = connectTimeoutSeconds;
-        this.rolloverPolicy = rolloverPolicy;
-        this.bulking = new Bulking(refreshSeconds);
-        this.pipeline = pipeline;
-        this.debug = debug;
-        this.client = HttpClient.newHttpClient();
-        this.verifyConnection = verifyConnection;
+        this.connection = data.connection();
+        this.host = data.host;
+        this.transport = EsTransport.getTransport(data);
+        this.nodes = transport.nodes;
+        this.username = data.username;
+        this.password = data.password;
+        this.connectTimeoutSeconds = data.connectTimeoutSeconds;
+        this.routes = new Routes(data.routes, index, data.pipeline, data.rolloverPolicy, data.maxBatchActions,
+                data.maxBatchBytes, data.lingerMillis >= 0 ? data.lingerMillis : TimeUnit.SECONDS.toMillis(data.refreshSeconds));
+        this.pipeline = data.pipeline;
+        this.templates = data.templates;
+        this.sizeGuard = data.sizeGuard;
+        this.debug = data.debug;
+        this.client = transport.client;
+        this.sender = transport.sender;
+        this.bulking = new Bulking(data);
+        latestByConnection.put(connection, this);
+        this.verifyConnection = data.verifyConnection;
+        this.versionCacheFile = data.versionCacheFile;
+        if (data.asyncStartup) {
+            this.esVersion = readCachedVersion();
+            bulking.bootstrap(0);
+            return;
+        }
         this.esVersion = ensureVersion();
         boolean ensureLog4jTemplate = ensureLog4jTemplate();
         boolean ensureLog4jPipeline = ensureLog4jPipeline();
         this.ready = esVersion > 0 && ensureLog4jTemplate && ensureLog4jPipeline;
+        this.bootstrapped = true;
         if (ready == false) {
             System.err.println("Startup Log4j Elasticsearch Appender Failure, Please enabled debug (appender.nes.debug=true) to view verbose");
+            LOGGER.error("Startup Log4j Elasticsearch Appender [{}] failed: connected[{}] ensureLog4jTemplate[{}] ensureLog4jPipeline[{}]",
+                    name, esVersion > 0, ensureLog4jTemplate, ensureLog4jPipeline);
             if (verifyConnection) {
+                latestByConnection.remove(connection, this);
+                bulking.close(0);
+                transport.stop(0, TimeUnit.MILLISECONDS);
                 throw new ConfigurationException(String.format("connected[%s] ensureLog4jTemplate[%s] ensureLog4jPipeline[%s]", esVersion > 0, ensureLog4jPipeline, ensureLog4jTemplate));
             }
         } else {
             System.out.println("Startup Log4j Elasticsearch Appender Successed");
+            LOGGER.info("Startup Log4j Elasticsearch Appender [{}] succeeded, Elasticsearch version {}", name, esVersion);
+            writeCachedVersion(esVersion);
         }
     }
 
-    @Override
-    public void send(final Layout<?> layout, final LogEvent event) {
-        bulking.add(layout, event);
-    }
-
     /**
-     * 初始化，获取ES版本
+     * 异步启动：在发送线程上协商版本并安装模板和 pipeline，期间事件留在缓冲区；失败按退避重试
      */
-    private int ensureVersion() {
-        String body = httpGet("/", e -> {
-            e.printStackTrace();
-        });
-        if (Strings.isEmpty(body)) {
+    private boolean bootstrap() {
+        if (esVersion <= 0 || templates.profile() == TemplateProfile.DATA_STREAM && esMinorVersion < 0) {
+            esVersion = ensureVersion();
+        }
+        boolean ensureLog4jTemplate = ensureLog4jTemplate();
+        boolean ensureLog4jPipeline = ensureLog4jPipeline();
+        ready = esVersion > 0 && ensureLog4jTemplate && ensureLog4jPipeline;
+        if (ready) {
+            bootstrapped = true;
+            LOGGER.info("Startup Log4j Elasticsearch Appender [{}] succeeded, Elasticsearch version {}", getName(), esVersion);
+            writeCachedVersion(esVersion);
+        } else {
+            LOGGER.error("Startup Log4j Elasticsearch Appender [{}] failed: connected[{}] ensureLog4jTemplate[{}] ensureLog4jPipeline[{}], retrying",
+                    getName(), esVersion > 0, ensureLog4jTemplate, ensureLog4jPipeline);
+        }
+        return ready;
+    }
+
+    private int readCachedVersion() {
+        if (Strings.isEmpty(versionCacheFile)) {
             return -1;
         }
-        try {
-            ObjectMapper mapper = new ObjectMapper();
-            JsonNode node = mapper.readTree(body);
-            String version = node.get("version").get("number").asText();
-            return Integer.valueOf(version.substring(0, version.indexOf(".")));
-        } catch (Exception e) {
+        Path file = Paths.get(versionCacheFile);
+        if (Files.exists(file) == false) {
+            return -1;
+        }
+        Properties versions = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            versions.load(in);
+            return parseVersion(versions.getProperty(host, "-1"));
+        } catch (IOException | NumberFormatException e) {
             if (debug) {
                 e.printStackTrace();
             }
@@ -120,179 +223,1745 @@ public class EsConnectionManager extends EsManager {
     }
 
     /**
-     * 创建模板
+     * 按 host 缓存协商到的版本，下次异步启动时跳过版本探测
      */
-    private boolean ensureLog4jTemplate() {
-        if (esVersion > 0) {
-            String body = httpGet("/_template/log4j", null);
-            if (Strings.isNotEmpty(body) && body.contains("log4j")) {
-                return true;
+    private void writeCachedVersion(int version) {
+        if (Strings.isEmpty(versionCacheFile) || version <= 0) {
+            return;
+        }
+        Path file = Paths.get(versionCacheFile);
+        Properties versions = new Properties();
+        try {
+            if (Files.exists(file)) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    versions.load(in);
+                }
+            }
+            String value = esMinorVersion >= 0 ? version + "." + esMinorVersion : String.valueOf(version);
+            if (value.equals(versions.getProperty(host))) {
+                return;
+            }
+            versions.setProperty(host, value);
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (OutputStream out = Files.newOutputStream(file)) {
+                versions.store(out, "Elasticsearch versions negotiated by the log4j appender");
+            }
+        } catch (IOException e) {
+            if (debug) {
+                e.printStackTrace();
             }
-            String templateFileSource = esVersion == 6 ? Resources.log4jTemplate6 : Resources.log4jTemplate7;
-            return httpPut("/_template/log4j", templateFileSource);
-        } else {
-            return false;
         }
     }
 
-    private boolean ensureLog4jPipeline() {
-        if (esVersion > 0) {
-            String body = httpGet("/_ingest/pipeline/log4j", null);
-            if (Strings.isNotEmpty(body) && body.contains("log4j")) {
-                return true;
+    /**
+     * Appender settings the manager is built from.
+     */
+    static final class FactoryData {
+        final Configuration configuration;
+        final String host;
+        final NodeSelector.Strategy loadBalancing;
+        final int failureThreshold;
+        final long circuitOpenMillis;
+        final long maxCircuitOpenMillis;
+        final String username;
+        final String password;
+        final int connectTimeoutSeconds;
+        final int refreshSeconds;
+        final String pipeline;
+        final RolloverPolicy rolloverPolicy;
+        final boolean debug;
+        final boolean verifyConnection;
+        final int bufferSize;
+        final OverflowPolicy overflowPolicy;
+        final long blockTimeoutMillis;
+        final int errorBufferSize;
+        final OverflowPolicy errorOverflowPolicy;
+        final int warnBufferSize;
+        final OverflowPolicy warnOverflowPolicy;
+        final int stackTraceDedupSeconds;
+        final int stackTraceCacheSize;
+        final boolean asyncEncoding;
+        final SizeGuard sizeGuard;
+        final String tailSamplingLevel;
+        final String tailSamplingKey;
+        final int tailSamplingEvents;
+        final int tailSamplingSeconds;
+        final long tailSamplingMaxBytes;
+        final IndexRoute[] routes;
+        final IndexTemplates templates;
+        final DocumentEncoder encoder;
+        /**
+         * Encodes held events without stack trace dedup, a discarded DEBUG trace must not hide the trace of a later
+         * ERROR.
+         */
+        final DocumentEncoder heldEncoder;
+        final int maxInFlightRequests;
+        final int maxInFlightBytes;
+        final boolean orderedPerIndex;
+        final boolean gzip;
+        final int compressionLevel;
+        final int maxBatchActions;
+        final boolean adaptiveLimits;
+        final int minBatchActions;
+        final double latencyTolerance;
+        final int suppressAfter;
+        final int suppressWindowSeconds;
+        final int suppressCacheSize;
+        final int maxEventsPerSecond;
+        final int burstEvents;
+        final long maxBatchBytes;
+        final long lingerMillis;
+        final int maxRetries;
+        final long retryBackoffMillis;
+        final long maxRetryBackoffMillis;
+        final double retryBudgetRatio;
+        final String spillDirectory;
+        final long spillMaxBytes;
+        final int spillSegmentBytes;
+        final int replayEventsPerSecond;
+        final boolean asyncStartup;
+        final String versionCacheFile;
+        final int metricsIntervalSeconds;
+
+        FactoryData(final EsAppender.Builder<?> builder) {
+            this.configuration = builder.getConfiguration();
+            this.host = builder.getHost();
+            this.loadBalancing = NodeSelector.Strategy.of(builder.getLoadBalancing());
+            this.failureThreshold = builder.getFailureThreshold();
+            this.circuitOpenMillis = builder.getCircuitOpenMillis();
+            this.maxCircuitOpenMillis = builder.getMaxCircuitOpenMillis();
+            this.username = builder.getUsername();
+            this.password = builder.getPassword();
+            this.connectTimeoutSeconds = builder.getConnectTimeoutSeconds();
+            this.refreshSeconds = builder.getRefreshSeconds();
+            this.rolloverPolicy = RolloverPolicy.of(builder.getRolloverPolicy());
+            this.debug = builder.isDebug();
+            this.verifyConnection = builder.isVerifyConnection();
+            this.bufferSize = builder.getBufferSize();
+            this.overflowPolicy = OverflowPolicy.of(builder.getOverflowPolicy());
+            this.blockTimeoutMillis = builder.getBlockTimeoutMillis();
+            this.errorBufferSize = builder.getErrorBufferSize();
+            this.errorOverflowPolicy = OverflowPolicy.of(builder.getErrorOverflowPolicy());
+            this.warnBufferSize = builder.getWarnBufferSize();
+            this.warnOverflowPolicy = OverflowPolicy.of(builder.getWarnOverflowPolicy());
+            this.stackTraceDedupSeconds = builder.getStackTraceDedupSeconds();
+            this.stackTraceCacheSize = builder.getStackTraceCacheSize();
+            this.asyncEncoding = builder.isAsyncEncoding();
+            this.routes = builder.getRoutes();
+            this.templates = new IndexTemplates(TemplateProfile.of(builder.getTemplateProfile()), builder.getNumberOfShards(),
+                    builder.getNumberOfReplicas(), builder.getRefreshInterval(), builder.getBestCompression(),
+                    builder.getRolloverMaxSize(), builder.getRolloverMaxAge(), builder.getDisplayOnlyFields());
+            this.sizeGuard = SizeGuard.of(builder.getMaxFieldBytes(), builder.getMaxDocumentBytes());
+            this.tailSamplingLevel = builder.getTailSamplingLevel();
+            if (Strings.isNotEmpty(tailSamplingLevel)) {
+                TailSampler.levelOf(tailSamplingLevel);
             }
-            String pipeline = Resources.pipeline;
-            return httpPut("/_ingest/pipeline/log4j", pipeline);
-        } else {
-            return false;
+            this.tailSamplingKey = builder.getTailSamplingKey();
+            this.tailSamplingEvents = builder.getTailSamplingEvents();
+            this.tailSamplingSeconds = builder.getTailSamplingSeconds();
+            this.tailSamplingMaxBytes = builder.getTailSamplingMaxBytes();
+            final boolean timestamp = templates.profile() == TemplateProfile.DATA_STREAM;
+            this.encoder = DocumentEncoder.of(builder.getEncoding(), EsAppender.hostname(), stackTraceDedupSeconds > 0
+                    ? new StackTraceCache(stackTraceCacheSize, TimeUnit.SECONDS.toMillis(stackTraceDedupSeconds)) : null,
+                    sizeGuard, timestamp);
+            this.heldEncoder = Strings.isEmpty(tailSamplingLevel) ? encoder
+                    : DocumentEncoder.of(builder.getEncoding(), EsAppender.hostname(), null, sizeGuard, timestamp);
+            this.pipeline = builder.getPipeline() != null ? builder.getPipeline()
+                    : encoder instanceof JsonEventEncoder ? "" : "log4j";
+            this.maxInFlightRequests = builder.getMaxInFlightRequests();
+            this.maxInFlightBytes = builder.getMaxInFlightBytes();
+            this.orderedPerIndex = builder.isOrderedPerIndex();
+            this.gzip = GzipCompressor.isGzip(builder.getCompression());
+            this.compressionLevel = builder.getCompressionLevel();
+            this.maxBatchActions = builder.getMaxBatchActions();
+            this.adaptiveLimits = builder.isAdaptiveLimits();
+            this.minBatchActions = builder.getMinBatchActions();
+            this.latencyTolerance = builder.getLatencyTolerance();
+            this.suppressAfter = builder.getSuppressAfter();
+            this.suppressWindowSeconds = builder.getSuppressWindowSeconds();
+            this.suppressCacheSize = builder.getSuppressCacheSize();
+            this.maxEventsPerSecond = builder.getMaxEventsPerSecond();
+            this.burstEvents = builder.getBurstEvents() > 0 ? builder.getBurstEvents() : builder.getMaxEventsPerSecond();
+            this.maxBatchBytes = builder.getMaxBatchBytes();
+            this.lingerMillis = builder.getLingerMillis();
+            this.maxRetries = builder.getMaxRetries();
+            this.retryBackoffMillis = builder.getRetryBackoffMillis();
+            this.maxRetryBackoffMillis = builder.getMaxRetryBackoffMillis();
+            this.retryBudgetRatio = builder.getRetryBudgetRatio();
+            this.spillDirectory = builder.getSpillDirectory();
+            this.spillMaxBytes = builder.getSpillMaxBytes();
+            this.spillSegmentBytes = builder.getSpillSegmentBytes();
+            this.replayEventsPerSecond = builder.getReplayEventsPerSecond();
+            this.asyncStartup = builder.isAsyncStartup();
+            this.versionCacheFile = builder.getVersionCacheFile();
+            this.metricsIntervalSeconds = builder.getMetricsIntervalSeconds();
         }
-    }
 
-    class Bulking {
-        private final ScheduledExecutorService threadPool;
-        private final BlockingQueue<String> events;
+        /**
+         * Identifies host and credentials without exposing the password.
+         */
+        String connection() {
+            return username + "@" + host + "#" + digest(password);
+        }
 
-        Bulking(int refresh) {
-            this.threadPool = Executors.newSingleThreadScheduledExecutor();
-            this.events = new ArrayBlockingQueue<>(2000);
-            this.threadPool.scheduleAtFixedRate(() -> refresh(), refresh, refresh, TimeUnit.SECONDS);
+        /**
+         * Transport name: the connection plus the settings of the client, sender, adaptive limits and circuit breakers.
+         */
+        String transportName() {
+            return "transport:" + connection() + "/" + digest(String.join(",", String.valueOf(loadBalancing),
+                    String.valueOf(failureThreshold), String.valueOf(circuitOpenMillis),
+                    String.valueOf(maxCircuitOpenMillis), String.valueOf(maxInFlightRequests),
+                    String.valueOf(maxInFlightBytes), String.valueOf(orderedPerIndex), String.valueOf(adaptiveLimits),
+                    String.valueOf(minBatchActions), String.valueOf(maxBatchActions), String.valueOf(latencyTolerance)));
         }
 
-        void add(final Layout<?> layout, final LogEvent event) {
-            final byte[] msg = layout.toByteArray(event);
-            Map body = Map.of("message", new String(msg));
-            ObjectMapper mapper = new ObjectMapper();
+        /**
+         * Manager name: the connection plus a digest of every other setting, so appenders only share a manager when
+         * they would build the same one.
+         */
+        String managerName() {
+            return connection() + "/" + digest(String.join(",", String.valueOf(connectTimeoutSeconds),
+                    String.valueOf(refreshSeconds), pipeline, String.valueOf(rolloverPolicy), String.valueOf(debug),
+                    String.valueOf(verifyConnection), String.valueOf(bufferSize), String.valueOf(overflowPolicy),
+                    String.valueOf(blockTimeoutMillis), encoder.getClass().getName(), String.valueOf(maxInFlightRequests),
+                    String.valueOf(maxInFlightBytes), String.valueOf(orderedPerIndex), String.valueOf(gzip),
+                    String.valueOf(compressionLevel), String.valueOf(maxBatchActions), String.valueOf(maxBatchBytes),
+                    String.valueOf(lingerMillis), String.valueOf(maxRetries), String.valueOf(retryBackoffMillis),
+                    String.valueOf(maxRetryBackoffMillis), String.valueOf(retryBudgetRatio), spillDirectory,
+                    String.valueOf(spillMaxBytes), String.valueOf(spillSegmentBytes), String.valueOf(replayEventsPerSecond),
+                    String.valueOf(asyncStartup), versionCacheFile, String.valueOf(metricsIntervalSeconds),
+                    String.valueOf(loadBalancing), String.valueOf(failureThreshold), String.valueOf(circuitOpenMillis),
+                    String.valueOf(maxCircuitOpenMillis), String.valueOf(adaptiveLimits), String.valueOf(minBatchActions),
+                    String.valueOf(latencyTolerance), String.valueOf(suppressAfter), String.valueOf(suppressWindowSeconds),
+                    String.valueOf(suppressCacheSize), String.valueOf(maxEventsPerSecond), String.valueOf(burstEvents),
+                    String.valueOf(errorBufferSize), String.valueOf(errorOverflowPolicy), String.valueOf(warnBufferSize),
+                    String.valueOf(warnOverflowPolicy), String.valueOf(stackTraceDedupSeconds),
+                    String.valueOf(stackTraceCacheSize), String.valueOf(asyncEncoding), Arrays.toString(routes), String.valueOf(templates),
+                    String.valueOf(sizeGuard), tailSamplingLevel, tailSamplingKey, String.valueOf(tailSamplingEvents),
+                    String.valueOf(tailSamplingSeconds), String.valueOf(tailSamplingMaxBytes)));
+        }
+
+        private static String digest(final String value) {
             try {
-                String json = mapper.writeValueAsString(body);
-                events.add(json);
-                if (events.size() >= 1000) {
-                    threadPool.execute(() -> refresh());
-                }
-            } catch (JsonProcessingException e) {
-                if (debug) {
-                    e.printStackTrace();
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder();
+                for (int i = 0; i < 4; i++) {
+                    hex.append(String.format("%02x", hash[i]));
                 }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                return Integer.toHexString(String.valueOf(value).hashCode());
             }
         }
+    }
 
-        void refresh() {
-            if (events.isEmpty()) {
-                return;
-            }
-            String indexName = index + indexSuffix();
-            StringBuffer buffer = new StringBuffer();
-            for (String messageJson : events) {
-                buffer.append(buildIndexRequest(indexName, messageJson));
-            }
-            httpPost("/_bulk" + (Strings.isEmpty(pipeline) ? "" : "?pipeline=" + pipeline), buffer.toString());
-            events.clear();
-        }
+    @Override
+    public void send(final Layout<?> layout, final LogEvent event) {
+        bulking.add(layout, event);
+    }
+
+    /**
+     * 在超时内发送剩余事件，然后关闭线程池和 HTTP 资源
+     */
+    @Override
+    protected boolean releaseSub(final long timeout, final TimeUnit timeUnit) {
+        long timeoutMillis = timeout > 0 ? timeUnit.toMillis(timeout) : TimeUnit.SECONDS.toMillis(connectTimeoutSeconds > 0 ? connectTimeoutSeconds : 30);
+        latestByConnection.remove(connection, this);
+        boolean stopped = bulking.close(timeoutMillis);
+        transport.stop(timeoutMillis, TimeUnit.MILLISECONDS);
+        return stopped;
+    }
 
-        private String buildIndexRequest(String index, String source) {
-            StringBuffer buffer = new StringBuffer();
-            buffer.append("{ \"index\" : { \"_index\" : \"" + index + "\"");
-            buffer.append(esVersion == 7 ? "}}" : ",\"_type\":\"_doc\"}}");
-            buffer.append("\n");
-            buffer.append(source);
-            buffer.append("\n");
-            return buffer.toString();
+    /**
+     * 同一连接上更新的、编码和 pipeline 相同的 manager，即重新配置修改了其他设置后的继任者
+     */
+    private EsConnectionManager successor() {
+        EsConnectionManager successor = latestByConnection.get(connection);
+        if (successor == null || successor == this || successor.bulking.closed
+                || successor.pipeline.equals(pipeline) == false
+                || successor.bulking.encoder.getClass() != bulking.encoder.getClass()) {
+            return null;
         }
+        return successor;
+    }
 
+    private static final class EsConnectionManagerFactory implements ManagerFactory<EsConnectionManager, FactoryData> {
+        @Override
+        public EsConnectionManager createManager(final String name, final FactoryData data) {
+            return new EsConnectionManager(data.configuration, data.configuration.getLoggerContext(), name, data);
+        }
     }
 
-    private String httpGet(String path, Consumer<Exception> exceptionConsumer) {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(host + path))
-                .header("Content-Type", "application/json")
-                .header("Authorization", getBasicAuthenticationHeader(username, password))
-                .timeout(Duration.ofSeconds(connectTimeoutSeconds > 0 ? connectTimeoutSeconds : 30))
-                .GET()
-                .build();
+    /**
+     * 以 appender 名注册本 manager 的指标，共用 manager 的 appender 看到相同的数值；log4j2.disable.jmx 为 true 时不注册
+     *
+     * @param owner the appender, only it unregisters the name again
+     */
+    ObjectName registerMBean(final LoggerContext loggerContext, final String appenderName, final Object owner) {
+        if (PropertiesUtil.getProperties().getBooleanProperty("log4j2.disable.jmx")) {
+            return null;
+        }
+        String context = loggerContext != null ? loggerContext.getName() : "default";
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            int code = response.statusCode();
-            if (code >= 400) {
-                exceptionConsumer.accept(new IllegalArgumentException(response.body()));
-            } else {
-                return response.body();
-            }
-        } catch (Exception e) {
-            if (exceptionConsumer != null) {
-                exceptionConsumer.accept(e);
+            ObjectName objectName = new ObjectName(String.format("%s:type=%s,component=Elasticsearch,name=%s",
+                    Server.DOMAIN, Server.escape(context), Server.escape(appenderName)));
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
             }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, EsAppenderMetricsMXBean.class, true), objectName);
+            registeredMBeans.put(objectName, owner);
+            return objectName;
+        } catch (JMException | RuntimeException e) {
+            LOGGER.warn("Could not register metrics MBean for Elasticsearch appender [{}]", appenderName, e);
+            return null;
         }
-        return null;
     }
 
-    private boolean httpPost(String path, String body) {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(host + path))
-                .header("Content-Type", "application/json")
-                .header("Authorization", getBasicAuthenticationHeader(username, password))
-                .timeout(Duration.ofSeconds(connectTimeoutSeconds > 0 ? connectTimeoutSeconds : 30))
-                .POST(HttpRequest.BodyPublishers.ofString(body))
-                .build();
+    void unregisterMBean(final ObjectName objectName, final Object owner) {
+        if (objectName == null || registeredMBeans.remove(objectName, owner) == false) {
+            return;
+        }
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            int code = response.statusCode();
-            if (code >= 400) {
-                if (debug) {
-                    System.err.println("[http-post] " + path + " error :" + response.body());
-                }
-                return false;
-            } else {
-                return true;
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
             }
-        } catch (Exception e) {
+        } catch (JMException | RuntimeException e) {
             if (debug) {
                 e.printStackTrace();
             }
-            return false;
         }
     }
 
-    private boolean httpPut(String path, String body) {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(host + path))
-                .header("Content-Type", "application/json")
-                .header("Authorization", getBasicAuthenticationHeader(username, password))
-                .timeout(Duration.ofSeconds(connectTimeoutSeconds > 0 ? connectTimeoutSeconds : 30))
-                .PUT(HttpRequest.BodyPublishers.ofString(body))
-                .build();
-        try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            int code = response.statusCode();
-            if (code >= 400) {
-                if (debug) {
-                    System.err.println("[http-put] " + path + " error :" + response.body());
+    /**
+     * 一个 spill 目录上打开的 SpillQueue 和共用它的 manager，只有最新的 manager 补发，同一时间只有一个补发批次
+     */
+    private static final class SharedSpill {
+        final SpillQueue queue;
+        final String connection;
+        private final ArrayDeque<Bulking> users = new ArrayDeque<>();
+        /**
+         * 补发批次在途的 manager，没有时为 null
+         */
+        final AtomicReference<Bulking> replaying = new AtomicReference<>();
+
+        private SharedSpill(final SpillQueue queue, final String connection) {
+            this.queue = queue;
+            this.connection = connection;
+        }
+
+        /**
+         * 目录的容量设置以第一个打开它的 manager 为准
+         */
+        static SharedSpill acquire(final Path directory, final FactoryData data, final Bulking user) throws IOException {
+            final Path key = directory.toAbsolutePath().normalize();
+            synchronized (openSpills) {
+                SharedSpill shared = openSpills.get(key);
+                if (shared == null) {
+                    shared = new SharedSpill(new SpillQueue(key, data.spillMaxBytes, data.spillSegmentBytes), data.connection());
+                    openSpills.put(key, shared);
+                } else if (shared.connection.equals(data.connection()) == false) {
+                    throw new IOException("Spill directory [" + key + "] is used by an appender on another connection");
                 }
-                return false;
-            } else {
-                return true;
+                shared.users.addLast(user);
+                return shared;
             }
-        } catch (Exception e) {
-            if (debug) {
-                e.printStackTrace();
+        }
+
+        Bulking replayer() {
+            synchronized (openSpills) {
+                return users.peekLast();
+            }
+        }
+
+        void release(final Bulking user) {
+            synchronized (openSpills) {
+                users.remove(user);
+                if (users.isEmpty()) {
+                    openSpills.values().remove(this);
+                    queue.close();
+                } else {
+                    queue.flush();
+                }
             }
-            return false;
         }
     }
 
-    private String indexSuffix() {
-        Date now = new Date();
-        String suffix = rolloverPolicy.equalsIgnoreCase("year") ? yearDateFormat.format(now) :
-                rolloverPolicy.equalsIgnoreCase("month") ? monthDateFormat.format(now) :
-                        rolloverPolicy.equalsIgnoreCase("day") ? dayDateFormat.format(now) :
-                                null;
-        return Strings.isNotEmpty(suffix) ? "-" + suffix : "";
+    static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger sequence = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + sequence.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 
-    private static final String getBasicAuthenticationHeader(String username, String password) {
-        String valueToEncode = username + ":" + password;
-        return "Basic " + Base64.getEncoder().encodeToString(valueToEncode.getBytes());
+    /**
+     * Number of events discarded because the buffer was full.
+     */
+    @Override
+    public long getDroppedEvents() {
+        return bulking.dropped();
+    }
+
+    /**
+     * Number of events resent after a retryable failure, counted once per attempt.
+     */
+    @Override
+    public long getRetriedEvents() {
+        return bulking.retriedEvents.sum();
+    }
+
+    /**
+     * Number of events Elasticsearch rejected permanently, see {@link #getFailuresByStatus()}.
+     */
+    @Override
+    public long getFailedEvents() {
+        return bulking.failedEvents.sum();
+    }
+
+    /**
+     * Number of events given up after maxRetries or when the retry budget was spent.
+     */
+    @Override
+    public long getAbandonedEvents() {
+        return bulking.abandonedEvents.sum();
+    }
+
+    /**
+     * Number of events still in flight when stopping timed out, they may or may not have been indexed.
+     */
+    @Override
+    public long getUnconfirmedEvents() {
+        return bulking.unconfirmedEvents.sum();
+    }
+
+    /**
+     * Number of events written to the spill directory.
+     */
+    @Override
+    public long getSpilledEvents() {
+        return bulking.spilledEvents.sum();
+    }
+
+    /**
+     * Number of spilled events not yet replayed.
+     */
+    @Override
+    public long getSpillBacklog() {
+        return bulking.spill == null ? 0 : bulking.spill.size();
+    }
+
+    @Override
+    public Map<Integer, Long> getFailuresByStatus() {
+        Map<Integer, Long> failures = new TreeMap<>();
+        bulking.failuresByStatus.forEach((status, count) -> failures.put(status, count.sum()));
+        return failures;
+    }
+
+    /**
+     * Number of events taken into the buffer.
+     */
+    @Override
+    public long getAcceptedEvents() {
+        return metrics.acceptedEvents.sum();
+    }
+
+    @Override
+    public long getEncodedEvents() {
+        return metrics.encodedEvents.sum();
+    }
+
+    @Override
+    public long getEncodingFailures() {
+        return metrics.encodingFailures.sum();
+    }
+
+    /**
+     * Events discarded by the overflow policy per lane.
+     */
+    @Override
+    public Map<String, Long> getDroppedEventsByLane() {
+        return bulking.droppedByLane();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return bulking.depth();
+    }
+
+    @Override
+    public long getQueueHighWater() {
+        return metrics.queueHighWater();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return bulking.capacity();
+    }
+
+    @Override
+    public long getBulkRequests() {
+        return metrics.bulkRequests.sum();
+    }
+
+    /**
+     * Bulk body bytes before gzip, equal to {@link #getBytesSent()} without compression.
+     */
+    @Override
+    public long getBytesBeforeCompression() {
+        return metrics.bytesBeforeCompression.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return metrics.bytesSent.sum();
+    }
+
+    @Override
+    public int getInFlightRequests() {
+        return sender.inFlightRequests();
+    }
+
+    @Override
+    public long getInFlightBytes() {
+        return sender.inFlightBytes();
+    }
+
+    @Override
+    public Map<String, Long> getBulkLatencyHistogram() {
+        return metrics.latencyHistogram();
+    }
+
+    /**
+     * Bulks allowed in flight right now, see adaptiveLimits.
+     */
+    @Override
+    public int getConcurrencyLimit() {
+        return sender.requestLimit();
+    }
+
+    /**
+     * Actions per bulk right now, see adaptiveLimits.
+     */
+    @Override
+    public int getBatchActionsLimit() {
+        return bulking.limits.batchActionsLimit();
+    }
+
+    @Override
+    public long getLimitDecreases() {
+        return bulking.limits.decreases();
     }
 
-    private static SimpleDateFormat dayDateFormat = new SimpleDateFormat("yyyy.MM.dd");
-    private static SimpleDateFormat monthDateFormat = new SimpleDateFormat("yyyy.MM");
-    private static SimpleDateFormat yearDateFormat = new SimpleDateFormat("yyyy");
+    @Override
+    public long getSuppressedEvents() {
+        return bulking.suppressor == null ? 0 : bulking.suppressor.suppressed();
+    }
+
+    @Override
+    public long getRateLimitedEvents() {
+        return bulking.suppressor == null ? 0 : bulking.suppressor.rateLimited();
+    }
+
+    @Override
+    public long getTruncatedEvents() {
+        return sizeGuard == null ? 0 : sizeGuard.truncated();
+    }
+
+    @Override
+    public long getTailSampledEvents() {
+        return bulking.tailSampler == null ? 0 : bulking.tailSampler.released();
+    }
+
+    @Override
+    public long getTailDiscardedEvents() {
+        return bulking.tailSampler == null ? 0 : bulking.tailSampler.discarded();
+    }
+
+    @Override
+    public long getTailHeldBytes() {
+        return bulking.tailSampler == null ? 0 : bulking.tailSampler.heldBytes();
+    }
+
+    /**
+     * One line summary for the StatusLogger.
+     */
+    String metricsSummary() {
+        return "Elasticsearch appender [" + getName() + "] accepted=" + getAcceptedEvents() + " dropped=" + getDroppedEvents()
+                + " encoded=" + getEncodedEvents() + " encodingFailures=" + getEncodingFailures()
+                + " queue=" + getQueueDepth() + "/" + getQueueCapacity() + " highWater=" + getQueueHighWater()
+                + " bulks=" + getBulkRequests() + " bytes=" + getBytesBeforeCompression() + "/" + getBytesSent()
+                + " retried=" + getRetriedEvents() + " failed=" + getFailedEvents() + " " + getFailuresByStatus()
+                + " abandoned=" + getAbandonedEvents() + " unconfirmed=" + getUnconfirmedEvents() + " spilled=" + getSpilledEvents() + " backlog=" + getSpillBacklog()
+                + " suppressed=" + getSuppressedEvents() + " rateLimited=" + getRateLimitedEvents()
+                + " truncated=" + getTruncatedEvents() + " tailSampled=" + getTailSampledEvents()
+                + " tailDiscarded=" + getTailDiscardedEvents()
+                + " concurrencyLimit=" + getConcurrencyLimit() + " batchActionsLimit=" + getBatchActionsLimit()
+                + " latency=" + getBulkLatencyHistogram();
+    }
+
+    /**
+     * 初始化，获取ES版本
+     */
+    private int ensureVersion() {
+        String body = httpGet("/", e -> {
+            if (debug) {
+                e.printStackTrace();
+            }
+        });
+        if (Strings.isEmpty(body)) {
+            return -1;
+        }
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            JsonNode node = mapper.readTree(body);
+            String version = node.get("version").get("number").asText();
+            return parseVersion(version);
+        } catch (Exception e) {
+            if (debug) {
+                e.printStackTrace();
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * 解析 "7.10.2" 或缓存中的 "7.10"、"7"，返回主版本并记下次版本
+     */
+    private int parseVersion(String version) {
+        String[] parts = version.trim().split("\\.");
+        int major = Integer.parseInt(parts[0]);
+        esMinorVersion = parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+        return major;
+    }
+
+    /**
+     * 为每个路由的索引创建模板；dataStream 模式下创建 ILM 策略和 data stream 模板，集群低于 7.9 时退回 legacy
+     */
+    private boolean ensureLog4jTemplate() {
+        if (esVersion <= 0) {
+            return false;
+        }
+        boolean useDataStreams = false;
+        if (templates.profile() == TemplateProfile.DATA_STREAM) {
+            useDataStreams = TemplateProfile.supportsDataStreams(esVersion, esMinorVersion);
+            if (useDataStreams == false) {
+                LOGGER.warn("Elasticsearch {}.{} does not support data streams, appender [{}] falls back to legacy templates",
+                        esVersion, esMinorVersion, getName());
+            }
+        }
+        Set<String> indices = new LinkedHashSet<>();
+        for (Routes.Route route : routes.all()) {
+            indices.add(route.index);
+        }
+        boolean ensured = true;
+        for (String name : indices) {
+            ensured &= useDataStreams ? ensureDataStreamTemplate(name) : ensureLegacyTemplate(name);
+        }
+        dataStreams = useDataStreams;
+        return ensured;
+    }
+
+    private boolean ensureLegacyTemplate(String name) {
+        String body = httpGet("/_template/" + name, null);
+        if (Strings.isNotEmpty(body) && body.contains(name) && unchanged(name, body)) {
+            return true;
+        }
+        return httpPut("/_template/" + name, templates.legacyTemplate(name, esVersion));
+    }
+
+    /**
+     * 已安装的模板与配置的索引设置不同时返回 false，由调用方覆盖模板；已有的索引保持原设置，新索引生效
+     */
+    private boolean unchanged(String name, String body) {
+        List<String> changed = templates.changedSettings(body, name);
+        if (changed.isEmpty()) {
+            return true;
+        }
+        LOGGER.warn("Index template [{}] differs from appender [{}] in {}, updating it; existing indices keep their settings",
+                name, getName(), changed);
+        return false;
+    }
+
+    /**
+     * 先建 ILM 策略再建模板，data stream 在第一条 create 时由模板自动创建
+     */
+    private boolean ensureDataStreamTemplate(String name) {
+        boolean ensured = true;
+        if (templates.hasRollover()) {
+            String policy = IndexTemplates.policyName(name);
+            String body = httpGet("/_ilm/policy/" + policy, null);
+            if (Strings.isEmpty(body) || body.contains(policy) == false) {
+                ensured = httpPut("/_ilm/policy/" + policy, templates.rolloverPolicy());
+            }
+        }
+        String body = httpGet("/_index_template/" + name, null);
+        if (Strings.isNotEmpty(body) && body.contains(name) && unchanged(name, body)) {
+            return ensured;
+        }
+        return ensured && httpPut("/_index_template/" + name, templates.dataStreamTemplate(name));
+    }
+
+    /**
+     * 安装自带的 log4j pipeline，其他 pipeline 由用户自行维护
+     */
+    private boolean ensureLog4jPipeline() {
+        boolean needed = false;
+        for (Routes.Route route : routes.all()) {
+            needed |= route.pipeline.equals("log4j");
+        }
+        if (needed == false) {
+            // json 编码直接写入字段，不需要 ingest pipeline
+            return esVersion > 0;
+        }
+        if (esVersion > 0) {
+            String body = httpGet("/_ingest/pipeline/log4j", null);
+            if (Strings.isNotEmpty(body) && body.contains("log4j")) {
+                return true;
+            }
+            String pipeline = Resources.pipeline;
+            return httpPut("/_ingest/pipeline/log4j", pipeline);
+        } else {
+            return false;
+        }
+    }
+
+    class Bulking {
+        private static final long REPLAY_TICK_MILLIS = 100;
+        /**
+         * 补发请求的 index 标记，用于 orderedPerIndex 和识别补发产生的重试
+         */
+        private static final String REPLAY_INDEX = "spill";
+        private static final long ENCODER_PARK_NANOS = 10_000_000;
+
+        private final ScheduledExecutorService threadPool;
+        private final Lanes events;
+        private final DocumentEncoder encoder;
+        private final DocumentEncoder heldEncoder;
+        private final boolean gzip;
+        private final int compressionLevel;
+        private final AdaptiveLimits limits;
+        /**
+         * 日志风暴时去重和限流，未配置时为 null
+         */
+        private final StormSuppressor suppressor;
+        /**
+         * 尾部采样：低级别事件按 key 暂存，同 key 出现 ERROR 时随它发送；未配置时为 null
+         */
+        private final TailSampler tailSampler;
+        /**
+         * 汇总事件用最近一次 add 的 layout 编码，只在 layout 变化时写入
+         */
+        private volatile Layout<?> lastLayout;
+        /**
+         * asyncEncoding 时应用线程只放入事件快照，由编码线程编码后进入 lane；未开启时为 null
+         */
+        private final RingBuffer<CapturedEvent> captured;
+        private final Thread encoderThread;
+        private volatile boolean encoderWaiting;
+        private volatile boolean encoderStopped;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final ByteBufferPool bufferPool = new ByteBufferPool(ByteBufferPool.DEFAULT_CHUNK_SIZE, 128);
+        private final int maxRetries;
+        private final RetryBudget retryBudget;
+        private final LongAdder retriedEvents = new LongAdder();
+        private final LongAdder failedEvents = new LongAdder();
+        private final LongAdder abandonedEvents = new LongAdder();
+        /**
+         * 结果未知的事件：停止时仍在途，或 2xx 响应无法解析
+         */
+        private final LongAdder unconfirmedEvents = new LongAdder();
+        private final ConcurrentHashMap<Integer, LongAdder> failuresByStatus = new ConcurrentHashMap<>();
+        private final SharedSpill sharedSpill;
+        private final SpillQueue spill;
+        private final int replayEventsPerSecond;
+        private final LongAdder spilledEvents = new LongAdder();
+        private final Set<BulkRequest> pendingRetries = ConcurrentHashMap.newKeySet();
+        private final AtomicLong inFlightEvents = new AtomicLong();
+        private volatile boolean closed;
+        /**
+         * 本 manager 在途补发批次中尚未了结的请求数
+         */
+        private final AtomicInteger replaying = new AtomicInteger();
+        private final SpillQueue.Record record = new SpillQueue.Record();
+        /**
+         * 最近一次 bulk 是否成功，失败期间 spill 只做低频探测
+         */
+        private volatile boolean healthy = true;
+        private long lastProbeMillis;
+        private long reportedDropped;
+        private final AtomicBoolean urgentScheduled = new AtomicBoolean();
+        /**
+         * 按路由索引，每个路由独立凑批和 linger，共用 lane、发送线程和 sender
+         */
+        private final Staged[] staged;
+
+        Bulking(FactoryData data) {
+            this.encoder = data.encoder;
+            this.heldEncoder = data.heldEncoder;
+            this.gzip = data.gzip;
+            this.compressionLevel = data.compressionLevel;
+            this.limits = transport.limits;
+            this.staged = new Staged[routes.size()];
+            for (int i = 0; i < staged.length; i++) {
+                staged[i] = new Staged(routes.get(i));
+            }
+            this.maxRetries = data.maxRetries;
+            this.retryBudget = new RetryBudget(data.retryBudgetRatio, 100, data.retryBackoffMillis, data.maxRetryBackoffMillis);
+            this.threadPool = Executors.newSingleThreadScheduledExecutor(daemonThreads("log4j-es-flush-" + getName()));
+            this.events = new Lanes(new int[]{data.errorBufferSize, data.warnBufferSize, data.bufferSize},
+                    new OverflowPolicy[]{data.errorOverflowPolicy, data.warnOverflowPolicy, data.overflowPolicy},
+                    data.blockTimeoutMillis, evicted -> {
+                        released(evicted);
+                        spillOverflow(evicted);
+                    });
+            this.sharedSpill = openSpill(data);
+            this.spill = sharedSpill == null ? null : sharedSpill.queue;
+            if (data.asyncEncoding) {
+                this.captured = new RingBuffer<>(data.bufferSize, data.overflowPolicy, data.blockTimeoutMillis);
+                this.encoderThread = daemonThreads("log4j-es-encoder-" + getName()).newThread(this::encodeLoop);
+                this.encoderThread.start();
+            } else {
+                this.captured = null;
+                this.encoderThread = null;
+            }
+            if (data.suppressAfter > 0 || data.maxEventsPerSecond > 0) {
+                final long windowMillis = TimeUnit.SECONDS.toMillis(Math.max(1, data.suppressWindowSeconds));
+                this.suppressor = new StormSuppressor(data.suppressAfter, windowMillis, data.suppressCacheSize,
+                        data.maxEventsPerSecond, data.burstEvents, summary -> enqueue(lastLayout, summary));
+                this.threadPool.scheduleWithFixedDelay(suppressor::sweep, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+            } else {
+                this.suppressor = null;
+            }
+            this.tailSampler = TailSampler.of(data.tailSamplingLevel, data.tailSamplingKey, data.tailSamplingEvents,
+                    TimeUnit.SECONDS.toMillis(data.tailSamplingSeconds), data.tailSamplingMaxBytes);
+            if (tailSampler != null) {
+                final long sweepMillis = TimeUnit.SECONDS.toMillis(Math.max(1, data.tailSamplingSeconds));
+                this.threadPool.scheduleWithFixedDelay(() -> tailSampler.sweep(System.currentTimeMillis()),
+                        sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+            }
+            this.replayEventsPerSecond = Math.max(1, data.replayEventsPerSecond);
+            if (spill != null) {
+                this.threadPool.scheduleWithFixedDelay(() -> replay(), REPLAY_TICK_MILLIS, REPLAY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (data.metricsIntervalSeconds > 0) {
+                this.threadPool.scheduleAtFixedRate(() -> LOGGER.info(metricsSummary()),
+                        data.metricsIntervalSeconds, data.metricsIntervalSeconds, TimeUnit.SECONDS);
+            }
+        }
+
+        /**
+         * 同一连接上的 manager（重新配置前后的新旧 manager）共用目录上已打开的 SpillQueue；
+         * 目录被其他连接或其他进程占用时不开启 spill
+         */
+        private SharedSpill openSpill(FactoryData data) {
+            if (Strings.isEmpty(data.spillDirectory)) {
+                return null;
+            }
+            try {
+                return SharedSpill.acquire(Paths.get(data.spillDirectory), data, this);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Log4j Elasticsearch Appender spill directory [" + data.spillDirectory + "] unavailable, spilling disabled: " + e.getMessage());
+                LOGGER.error("Elasticsearch appender [{}] spill directory [{}] unavailable, spilling disabled", getName(),
+                        data.spillDirectory, e);
+                return null;
+            }
+        }
+
+        void bootstrap(int attempt) {
+            try {
+                threadPool.schedule(() -> {
+                    if (EsConnectionManager.this.bootstrap()) {
+                        refresh(true);
+                        lingerRemainder();
+                    } else {
+                        bootstrap(attempt + 1);
+                    }
+                }, attempt == 0 ? 0 : retryBudget.backoffMillis(attempt), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // stopped before the cluster became reachable
+            }
+        }
+
+        void add(final Layout<?> layout, final LogEvent event) {
+            if (suppressor != null) {
+                if (lastLayout != layout) {
+                    lastLayout = layout;
+                }
+                if (suppressor.admit(event) == false) {
+                    return;
+                }
+            }
+            // 有独立 lane 的 ERROR/FATAL 和 WARN 仍在调用线程编码，只受自己 lane 的容量和溢出策略约束，ERROR 立即发送
+            if (captured != null && events.laneOf(event.getLevel()) == Lanes.INFO) {
+                if (captured.put(new CapturedEvent(layout, event)) && encoderWaiting) {
+                    LockSupport.unpark(encoderThread);
+                }
+                return;
+            }
+            // 尾部采样时 ERROR 排在之前的快照之后编码，才能带上它们；快照缓冲区满时仍在调用线程编码
+            if (captured != null && tailSampler != null && tailSampler.triggers(event)
+                    && captured.offer(new CapturedEvent(layout, event))) {
+                if (encoderWaiting) {
+                    LockSupport.unpark(encoderThread);
+                }
+                return;
+            }
+            enqueue(layout, event);
+        }
+
+        /**
+         * 编码线程：取出快照编码后放入 lane，没有快照时 park 等待 add 唤醒
+         */
+        private void encodeLoop() {
+            while (encoderStopped == false) {
+                final CapturedEvent event = captured.poll();
+                if (event != null) {
+                    enqueue(event.layout, event);
+                    continue;
+                }
+                encoderWaiting = true;
+                if (captured.isEmpty()) {
+                    LockSupport.parkNanos(this, ENCODER_PARK_NANOS);
+                }
+                encoderWaiting = false;
+            }
+        }
+
+        /**
+         * 停止编码线程，剩余的快照由调用线程编码
+         */
+        private void stopEncoder(long deadline) throws InterruptedException {
+            if (encoderThread == null) {
+                return;
+            }
+            encoderStopped = true;
+            LockSupport.unpark(encoderThread);
+            encoderThread.join(Math.max(1, remaining(deadline)));
+            CapturedEvent event;
+            while ((event = captured.poll()) != null) {
+                enqueue(event.layout, event);
+            }
+        }
+
+        int depth() {
+            return events.size() + (captured == null ? 0 : captured.size());
+        }
+
+        int capacity() {
+            return events.capacity() + (captured == null ? 0 : captured.capacity());
+        }
+
+        long dropped() {
+            return events.dropped() + (captured == null ? 0 : captured.dropped());
+        }
+
+        Map<String, Long> droppedByLane() {
+            final Map<String, Long> dropped = events.droppedByLane();
+            if (captured != null) {
+                dropped.put("captured/" + captured.overflowPolicy(), captured.dropped());
+            }
+            return dropped;
+        }
+
+        private void enqueue(final Layout<?> layout, final LogEvent event) {
+            final boolean held = tailSampler != null && tailSampler.holds(event);
+            final byte[] source;
+            try {
+                source = (held ? heldEncoder : encoder).encode(layout, event);
+            } catch (IOException e) {
+                metrics.encodingFailures.increment();
+                if (debug) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            metrics.encodedEvents.increment();
+            final EncodedEvent encoded = new EncodedEvent(event.getTimeMillis(), source, events.laneOf(event.getLevel()),
+                    routes.routeOf(event));
+            if (tailSampler != null) {
+                if (held) {
+                    tailSampler.hold(tailSampler.keyOf(event), encoded);
+                    return;
+                }
+                if (tailSampler.triggers(event)) {
+                    // 同 key 暂存的事件排在 ERROR 之前进入它的 lane，随紧急发送进入同一个 bulk
+                    for (EncodedEvent context : tailSampler.release(tailSampler.keyOf(event), event.getTimeMillis())) {
+                        buffer(new EncodedEvent(context.timeMillis, context.source, encoded.lane, context.route), false);
+                    }
+                }
+            }
+            buffer(encoded);
+        }
+
+        private void buffer(final EncodedEvent encoded) {
+            buffer(encoded, true);
+        }
+
+        /**
+         * 放入 lane 并按路由判断是否立即发送、凑满发送或等待 linger
+         *
+         * @param send false 时只入队，由紧随其后的事件触发发送
+         */
+        private void buffer(final EncodedEvent encoded, final boolean send) {
+            if (events.put(encoded) == false) {
+                spillOverflow(encoded);
+                return;
+            }
+            metrics.acceptedEvents.increment();
+            final Staged target = staged[encoded.route];
+            final int pending = target.pendingEvents.incrementAndGet();
+            final long bytes = target.pendingBytes.addAndGet(encoded.source.length);
+            final int depth = events.size();
+            metrics.queueDepth(depth);
+            if (send == false) {
+                return;
+            }
+            if (encoded.lane == Lanes.ERROR) {
+                // ERROR/FATAL 不等 linger，立即单独发送 error lane
+                if (urgentScheduled.compareAndSet(false, true)) {
+                    threadPool.execute(() -> {
+                        urgentScheduled.set(false);
+                        refresh(true, Lanes.ERROR, -1);
+                    });
+                }
+            } else if (pending >= target.batchActions() || bytes >= target.route.maxBatchBytes) {
+                if (flushScheduled.compareAndSet(false, true)) {
+                    threadPool.execute(() -> {
+                        flushScheduled.set(false);
+                        refresh(false);
+                        lingerRemainder();
+                    });
+                }
+            } else if (target.lingerScheduled.compareAndSet(false, true)) {
+                scheduleLinger(target);
+            }
+        }
+
+        private void scheduleLinger(Staged target) {
+            threadPool.schedule(() -> {
+                target.lingerScheduled.set(false);
+                refresh(false, Lanes.INFO, target.route.id);
+                lingerRemainder();
+            }, target.route.lingerMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 没凑满阈值的剩余事件最多再等所属路由的 lingerMillis
+         */
+        private void lingerRemainder() {
+            for (Staged target : staged) {
+                if (target.pendingEvents.get() > 0 && target.lingerScheduled.compareAndSet(false, true)) {
+                    scheduleLinger(target);
+                }
+            }
+        }
+
+        /**
+         * 只发送本次取出的事件，发送期间新加入的事件留给下一轮。
+         * 每个 bulk 只含一个路由的事件，不超过该路由的 maxBatchActions（且不超过 batchActionsLimit）个事件和
+         * maxBatchBytes 字节，异步发出后立即组装下一个。
+         * 事件按自身时间写入对应索引，跨越滚动边界的一批事件拆成每个索引一个 bulk。
+         *
+         * @param all false 时只发送凑满阈值的 bulk，剩余的等 linger 到期
+         */
+        void refresh(boolean all) {
+            refresh(all, Lanes.INFO, -1);
+        }
+
+        /**
+         * @param maxLane  只取出优先级不低于此 lane 的事件
+         * @param lingered linger 到期的路由，它的事件不等凑满全部发送；-1 表示没有
+         */
+        private void refresh(boolean all, int maxLane, int lingered) {
+            reportDropped();
+            if (bootstrapped == false || events.isEmpty() && isStagedEmpty()) {
+                return;
+            }
+            if (nodes.anyAvailable() == false) {
+                // 所有节点都已熔断：开启 spill 时直接落盘，否则留在缓冲区由溢出策略处理，不在超时上浪费时间
+                if (spill != null) {
+                    spillBuffered();
+                }
+                return;
+            }
+            stage(maxLane);
+            for (Staged target : staged) {
+                final boolean flush = all || target.route.id == lingered;
+                while (target.events.isEmpty() == false && (flush || target.full())) {
+                    retryBudget.deposit();
+                    send(fill(target));
+                }
+            }
+        }
+
+        /**
+         * 把 lane 中的事件按优先级取出、按路由分组；最多取一轮缓冲区容量，生产者持续写入时也能结束
+         */
+        private void stage(int maxLane) {
+            int max = events.capacity();
+            EncodedEvent event;
+            while (max-- > 0 && (event = events.poll(maxLane)) != null) {
+                staged[event.route].add(event);
+            }
+        }
+
+        private boolean isStagedEmpty() {
+            for (Staged target : staged) {
+                if (target.events.isEmpty() == false) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 按路由、再按优先级取出所有缓冲的事件
+         */
+        private EncodedEvent next() {
+            for (Staged target : staged) {
+                if (target.events.isEmpty() == false) {
+                    return target.poll();
+                }
+            }
+            final EncodedEvent event = events.poll();
+            if (event != null) {
+                released(event);
+            }
+            return event;
+        }
+
+        private void released(EncodedEvent event) {
+            final Staged target = staged[event.route];
+            target.pendingEvents.decrementAndGet();
+            target.pendingBytes.addAndGet(-event.source.length);
+        }
+
+        private void spillBuffered() {
+            EncodedEvent event;
+            while ((event = next()) != null) {
+                spillOverflow(event);
+            }
+        }
+
+        /**
+         * 以路由的第一个事件的索引创建 bulk，遇到其他索引的事件就停下
+         */
+        private BulkRequest fill(Staged target) {
+            EncodedEvent event = target.events.peek();
+            final IndexNames.Period period = target.route.indexNames.periodOf(event.timeMillis, esVersion, dataStreams);
+            final BulkRequest request = new BulkRequest(target.route.path, period.index);
+            final int batchActions = target.batchActions();
+            while (request.size() < batchActions && (event = target.events.peek()) != null) {
+                if (request.isEmpty() == false && (period.contains(event.timeMillis) == false
+                        || request.bytes() + BulkRequest.sizeOf(period.actionLine, event.source) > target.route.maxBatchBytes)) {
+                    break;
+                }
+                request.add(period.actionLine, target.poll().source);
+            }
+            return request;
+        }
+
+        /**
+         * 一个路由从 lane 中取出、等待组装 bulk 的事件，只在发送线程上访问；
+         * pendingEvents/pendingBytes 还包括仍在 lane 中的事件，供 add 判断是否凑满
+         */
+        private final class Staged {
+            final Routes.Route route;
+            final ArrayDeque<EncodedEvent> events = new ArrayDeque<>();
+            long bytes;
+            final AtomicInteger pendingEvents = new AtomicInteger();
+            final AtomicLong pendingBytes = new AtomicLong();
+            final AtomicBoolean lingerScheduled = new AtomicBoolean();
+
+            Staged(Routes.Route route) {
+                this.route = route;
+            }
+
+            int batchActions() {
+                return Math.min(route.maxBatchActions, limits.batchActionsLimit());
+            }
+
+            boolean full() {
+                return events.size() >= batchActions() || bytes >= route.maxBatchBytes;
+            }
+
+            void add(EncodedEvent event) {
+                events.add(event);
+                bytes += event.source.length;
+            }
+
+            EncodedEvent poll() {
+                final EncodedEvent event = events.poll();
+                bytes -= event.source.length;
+                released(event);
+                return event;
+            }
+        }
+
+        private void send(BulkRequest request) {
+            BulkBody body = request.writeTo(new BulkBody(bufferPool));
+            final long uncompressed = body.size();
+            if (gzip) {
+                body = compress(body);
+            }
+            final long compressed = body.size();
+            final long start = System.nanoTime();
+            CompletableFuture<HttpResponse<byte[]>> response = httpPostAsync(request.path(), body, request.index());
+            if (response == null) {
+                retry(request.retry(), "no free sending slot");
+                request.handled();
+            } else {
+                metrics.bulkRequests.increment();
+                metrics.bytesBeforeCompression.add(uncompressed);
+                metrics.bytesSent.add(compressed);
+                inFlightEvents.addAndGet(request.size());
+                response.whenComplete((r, e) -> {
+                    final long rtt = System.nanoTime() - start;
+                    metrics.bulkLatency(TimeUnit.NANOSECONDS.toMillis(rtt));
+                    try {
+                        limits.onSample(start, rtt, request.size(), onResponse(request, r, e));
+                    } finally {
+                        inFlightEvents.addAndGet(-request.size());
+                        request.handled();
+                    }
+                });
+            }
+        }
+
+        /**
+         * 只重试 429/502/503/504 以及网络错误的条目，其余失败直接计数
+         *
+         * @return 集群写入队列满而拒绝的条目数：整个请求 429 时是全部条目
+         */
+        private int onResponse(BulkRequest request, HttpResponse<byte[]> response, Throwable error) {
+            if (error != null) {
+                healthy = false;
+                retry(request.retry(), String.valueOf(error));
+                return 0;
+            }
+            int code = response.statusCode();
+            if (BulkResponse.isRetryable(code)) {
+                healthy = false;
+                retry(request.retry(), "status " + code);
+                // 只有 429 说明集群忙不过来，网关错误和连接失败降低并发也没有用
+                return code == 429 ? request.size() : 0;
+            }
+            healthy = true;
+            if (code == 413 && request.size() > 1) {
+                split(request);
+                return 0;
+            }
+            if (code >= 400) {
+                failed(code, request.size(), response.body());
+                return 0;
+            }
+            final BulkResponse result;
+            try {
+                result = BulkResponse.parse(response.body());
+            } catch (IOException e) {
+                // 2xx 但读不出条目结果，不知道哪些写入了，既不算成功也不重试
+                unconfirmedEvents.add(request.size());
+                if (debug) {
+                    LOGGER.warn("Unreadable bulk response with status {} for appender [{}], {} events counted as unconfirmed",
+                            code, getName(), request.size(), e);
+                }
+                return 0;
+            }
+            if (result.failed() == 0) {
+                return 0;
+            }
+            int[] retryable = new int[result.failed()];
+            int count = 0;
+            for (int i = 0; i < result.failed(); i++) {
+                if (BulkResponse.isRetryable(result.status(i))) {
+                    retryable[count++] = result.position(i);
+                } else {
+                    failed(result.status(i), 1, null);
+                }
+            }
+            if (count > 0) {
+                retry(request.retry(retryable, count), count + " items rejected");
+            }
+            return result.rejected();
+        }
+
+        /**
+         * 请求体超过集群的 http.max_content_length 时对半拆分重发，直到超大的事件单独成一个请求，只有它被拒绝
+         */
+        private void split(BulkRequest request) {
+            if (closed) {
+                // close() 已经把在途的事件计为结果未知
+                return;
+            }
+            final int half = request.size() / 2;
+            final BulkRequest first = request.slice(0, half);
+            final BulkRequest second = request.slice(half, request.size());
+            if (debug) {
+                System.err.println("[bulking] status 413, split " + request.size() + " events into " + first.size()
+                        + " + " + second.size());
+            }
+            try {
+                threadPool.execute(() -> {
+                    send(first);
+                    send(second);
+                });
+            } catch (RejectedExecutionException e) {
+                giveUp(first);
+                giveUp(second);
+            }
+        }
+
+        private void retry(BulkRequest request, String reason) {
+            if (closed) {
+                // close() 已经把在途的事件计为结果未知
+                return;
+            }
+            if (request.attempt() > maxRetries || retryBudget.tryWithdraw() == false) {
+                if (debug) {
+                    System.err.println("[bulking] " + reason + ", gave up " + request.size() + " events after "
+                            + (request.attempt() - 1) + " retries");
+                }
+                giveUp(request);
+                return;
+            }
+            retriedEvents.add(request.size());
+            long delay = retryBudget.backoffMillis(request.attempt() - 1);
+            if (debug) {
+                System.err.println("[bulking] " + reason + ", retry " + request.size() + " events in " + delay + "ms");
+            }
+            pendingRetries.add(request);
+            try {
+                threadPool.schedule(() -> {
+                    if (pendingRetries.remove(request)) {
+                        send(request);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                if (pendingRetries.remove(request)) {
+                    giveUp(request);
+                }
+            }
+        }
+
+        private void giveUp(BulkRequest request) {
+            if (spill != null) {
+                spill(request);
+            } else {
+                abandonedEvents.add(request.size());
+            }
+            request.handled();
+        }
+
+        /**
+         * 把缓冲的事件和等待重试的 bulk 交给继任 manager，它放不下的留给本 manager 发送
+         */
+        private void handOver() {
+            EsConnectionManager successor = successor();
+            if (successor == null) {
+                return;
+            }
+            long handedOver = 0;
+            EncodedEvent event;
+            while ((event = next()) != null) {
+                if (successor.bulking.adopt(event, routes.get(event.route)) == false) {
+                    // 放回所属路由，暂存的事件都早于 lane 中的事件
+                    Staged target = staged[event.route];
+                    target.events.addFirst(event);
+                    target.bytes += event.source.length;
+                    target.pendingEvents.incrementAndGet();
+                    target.pendingBytes.addAndGet(event.source.length);
+                    break;
+                }
+                handedOver++;
+            }
+            for (BulkRequest request : pendingRetries) {
+                if (pendingRetries.remove(request)) {
+                    if (successor.bulking.adoptRetry(request)) {
+                        handedOver += request.size();
+                    } else {
+                        pendingRetries.add(request);
+                    }
+                }
+            }
+            if (handedOver > 0) {
+                LOGGER.info("Elasticsearch manager [{}] handed {} buffered events over to [{}]", getName(), handedOver, successor.getName());
+            }
+        }
+
+        /**
+         * 接收前任 manager 的事件，不触发溢出策略；按索引和 pipeline 找到对应路由，没有则进入默认路由
+         */
+        boolean adopt(EncodedEvent event, Routes.Route route) {
+            final int id = routes.idOf(route.index, route.pipeline);
+            if (closed || events.offer(id == event.route ? event
+                    : new EncodedEvent(event.timeMillis, event.source, event.lane, id)) == false) {
+                return false;
+            }
+            final Staged target = staged[id];
+            target.pendingEvents.incrementAndGet();
+            target.pendingBytes.addAndGet(event.source.length);
+            try {
+                if (target.lingerScheduled.compareAndSet(false, true)) {
+                    scheduleLinger(target);
+                }
+            } catch (RejectedExecutionException e) {
+                // stopping as well, close() spills or abandons what is left
+            }
+            return true;
+        }
+
+        boolean adoptRetry(BulkRequest request) {
+            if (closed) {
+                return false;
+            }
+            pendingRetries.add(request);
+            try {
+                threadPool.schedule(() -> {
+                    if (pendingRetries.remove(request)) {
+                        send(request);
+                    }
+                }, retryBudget.backoffMillis(request.attempt() - 1), TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return pendingRetries.remove(request) == false;
+            }
+        }
+
+        /**
+         * 停止时在 timeoutMillis 内发出所有缓冲的事件并等待响应，可并行多个 bulk；
+         * 到期仍未发出的事件写入 spill 目录，未开启 spill 时计为放弃；已发出还没有响应的计为结果未知，一并打印数量。
+         *
+         * @return 是否全部送达
+         */
+        boolean close(long timeoutMillis) {
+            final long deadline = System.currentTimeMillis() + timeoutMillis;
+            try {
+                stopEncoder(deadline);
+                threadPool.submit(() -> {
+                    handOver();
+                    refresh(true);
+                }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+                // 立即发送等待退避的重试
+                while (pendingRetries.isEmpty() == false && System.currentTimeMillis() < deadline) {
+                    for (BulkRequest request : pendingRetries) {
+                        if (pendingRetries.remove(request)) {
+                            threadPool.submit(() -> send(request)).get(remaining(deadline), TimeUnit.MILLISECONDS);
+                        }
+                    }
+                    awaitInFlight(deadline);
+                }
+                awaitInFlight(deadline);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException | RejectedExecutionException e) {
+                if (debug) {
+                    e.printStackTrace();
+                }
+            }
+            threadPool.shutdownNow();
+            try {
+                threadPool.awaitTermination(remaining(deadline), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closed = true;
+            // 未了结的补发批次退回未提交的位置，由共用 spill 的继任者重新读取，它的重试不必再写回
+            final boolean rewound = sharedSpill != null && sharedSpill.replaying.compareAndSet(this, null);
+            if (rewound) {
+                spill.rewind();
+            }
+            // 到期仍在途的请求可能已经写入，单独计为结果未知
+            long unconfirmed = inFlightEvents.get();
+            long abandoned = 0;
+            long spilled = 0;
+            List<EncodedEvent> left = new ArrayList<>();
+            EncodedEvent next;
+            while ((next = next()) != null) {
+                left.add(next);
+            }
+            for (BulkRequest request : pendingRetries) {
+                if (rewound && REPLAY_INDEX.equals(request.index())) {
+                    continue;
+                }
+                for (int i = 0; i < request.size(); i++) {
+                    if (spill != null && spill.offer(request.path(), request.action(i), request.source(i))) {
+                        spilled++;
+                    } else {
+                        abandoned++;
+                    }
+                }
+            }
+            pendingRetries.clear();
+            for (EncodedEvent event : left) {
+                final Routes.Route route = routes.get(event.route);
+                if (spill != null && spill.offer(route.path, route.indexNames.periodOf(event.timeMillis, esVersion, dataStreams).actionLine, event.source)) {
+                    spilled++;
+                } else {
+                    abandoned++;
+                }
+            }
+            if (sharedSpill != null) {
+                sharedSpill.release(this);
+            }
+            abandonedEvents.add(abandoned);
+            unconfirmedEvents.add(unconfirmed);
+            spilledEvents.add(spilled);
+            if (abandoned > 0 || unconfirmed > 0 || spilled > 0) {
+                System.err.println("Stop Log4j Elasticsearch Appender: " + abandoned + " events abandoned, "
+                        + unconfirmed + " events in flight with unknown outcome, "
+                        + spilled + " events spilled for the next start");
+            }
+            return abandoned == 0 && unconfirmed == 0;
+        }
+
+        /**
+         * 等待在途请求的响应处理完，包括由此产生的重试调度
+         */
+        private void awaitInFlight(long deadline) throws InterruptedException {
+            while (inFlightEvents.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+
+        private long remaining(long deadline) {
+            return Math.max(0, deadline - System.currentTimeMillis());
+        }
+
+        /**
+         * 内存放不下的事件写入磁盘，集群恢复后由 replay 补发
+         */
+        private void spillOverflow(EncodedEvent event) {
+            if (spill != null) {
+                final Routes.Route route = routes.get(event.route);
+                spill(route.path, route.indexNames.periodOf(event.timeMillis, esVersion, dataStreams).actionLine, event.source);
+            }
+        }
+
+        private void spill(BulkRequest request) {
+            for (int i = 0; i < request.size(); i++) {
+                spill(request.path(), request.action(i), request.source(i));
+            }
+        }
+
+        private void spill(String path, byte[] action, byte[] source) {
+            if (spill.offer(path, action, source)) {
+                spilledEvents.increment();
+            } else {
+                abandonedEvents.increment();
+            }
+        }
+
+        /**
+         * 按 replayEventsPerSecond 限速补发磁盘上的事件，与实时流量并行；同一时间只有一批在途。
+         * 失败的条目照常重试，放弃时重新写回磁盘；这批连同重试和拆分全部处理完才提交 checkpoint，
+         * 在此之前进程退出时整批在下次启动重新补发。集群不可用时每 maxRetryBackoffMillis 只发一条作为探测。
+         */
+        private void replay() {
+            if (bootstrapped == false || spill.isEmpty() || sharedSpill.replayer() != this
+                    || sharedSpill.replaying.get() != null || nodes.anyAvailable() == false) {
+                return;
+            }
+            int limit = Math.min(limits.batchActionsLimit(), (int) Math.max(1, replayEventsPerSecond * REPLAY_TICK_MILLIS / 1000));
+            if (healthy == false) {
+                long now = System.currentTimeMillis();
+                if (now - lastProbeMillis < retryBudget.backoffMillis(maxRetries)) {
+                    return;
+                }
+                lastProbeMillis = now;
+                limit = 1;
+            }
+            List<BulkRequest> requests = new ArrayList<>(1);
+            BulkRequest request = null;
+            long maxBatchBytes = 0;
+            for (int n = 0; n < limit && (request == null || request.bytes() < maxBatchBytes) && spill.poll(record); n++) {
+                if (request == null || request.path().equals(record.path) == false) {
+                    request = new BulkRequest(record.path, REPLAY_INDEX);
+                    requests.add(request);
+                    maxBatchBytes = routes.maxBatchBytesOf(record.path);
+                }
+                request.add(record.action, record.source);
+            }
+            if (requests.isEmpty()) {
+                return;
+            }
+            sharedSpill.replaying.set(this);
+            replaying.set(requests.size());
+            for (BulkRequest replay : requests) {
+                replay.onSettled(() -> {
+                    // 停止后由 close() 退回未提交的位置，checkpoint 留在原处
+                    if (replaying.decrementAndGet() == 0 && closed == false) {
+                        spill.commit();
+                        sharedSpill.replaying.compareAndSet(this, null);
+                    }
+                });
+                send(replay);
+            }
+        }
+
+        private void failed(int status, int events, byte[] body) {
+            failedEvents.add(events);
+            failuresByStatus.computeIfAbsent(status, s -> new LongAdder()).add(events);
+            if (debug && body != null) {
+                System.err.println("[http-post] bulk error " + status + " :" + new String(body, StandardCharsets.UTF_8));
+            }
+        }
+
+        private BulkBody compress(BulkBody body) {
+            try {
+                return GzipCompressor.forCurrentThread(compressionLevel).compress(body, new BulkBody(bufferPool));
+            } finally {
+                body.release();
+            }
+        }
+
+        private void reportDropped() {
+            long dropped = dropped();
+            if (dropped != reportedDropped) {
+                if (debug) {
+                    System.err.println("[bulking] dropped " + (dropped - reportedDropped) + " events, "
+                            + droppedByLane() + " in total");
+                }
+                reportedDropped = dropped;
+            }
+        }
+    }
+
+    /**
+     * 依次尝试可用节点，网络错误和 502/503/504 记入该节点的熔断器后换下一个节点
+     */
+    private <T> HttpResponse<T> sendToAnyNode(Function<Node.Lease, HttpRequest> request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        IOException failure = null;
+        HttpResponse<T> last = null;
+        for (int i = 0; i < nodes.nodes().size(); i++) {
+            Node.Lease node = nodes.acquire();
+            if (node == null) {
+                break;
+            }
+            try {
+                last = client.send(request.apply(node), handler);
+            } catch (IOException e) {
+                node.onFailure(System.currentTimeMillis());
+                failure = e;
+                continue;
+            } catch (InterruptedException | RuntimeException e) {
+                node.release();
+                throw e;
+            }
+            if (isNodeFailure(last.statusCode()) == false) {
+                node.onSuccess();
+                return last;
+            }
+            node.onFailure(System.currentTimeMillis());
+        }
+        if (last != null) {
+            return last;
+        }
+        throw failure != null ? failure : new ConnectException("All Elasticsearch nodes are unavailable: " + nodes);
+    }
+
+    private static boolean isNodeFailure(int status) {
+        return status == 502 || status == 503 || status == 504;
+    }
+
+    private String httpGet(String path, Consumer<Exception> exceptionConsumer) {
+        try {
+            HttpResponse<String> response = sendToAnyNode(node -> HttpRequest.newBuilder()
+                    .uri(node.uri(path))
+                    .header("Content-Type", "application/json")
+                    .header("Authorization", getBasicAuthenticationHeader(username, password))
+                    .timeout(Duration.ofSeconds(connectTimeoutSeconds > 0 ? connectTimeoutSeconds : 30))
+                    .GET()
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            int code = response.statusCode();
+            if (code >= 400) {
+                exceptionConsumer.accept(new IllegalArgumentException(response.body()));
+            } else {
+                return response.body();
+            }
+        } catch (Exception e) {
+            if (exceptionConsumer != null) {
+                exceptionConsumer.accept(e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 所有节点都熔断时立即以 ConnectException 失败
+     *
+     * @return null if no sending slot became free within the request timeout
+     */
+    private CompletableFuture<HttpResponse<byte[]>> httpPostAsync(String path, BulkBody body, String indexName) {
+        Node.Lease node = nodes.acquire();
+        if (node == null) {
+            body.release();
+            return CompletableFuture.failedFuture(new ConnectException("All Elasticsearch nodes are unavailable: " + nodes));
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(node.uri(path))
+                .header("Content-Type", "application/json")
+                .header("Authorization", getBasicAuthenticationHeader(username, password))
+                .timeout(Duration.ofSeconds(connectTimeoutSeconds > 0 ? connectTimeoutSeconds : 30))
+                .POST(body.publisher());
+        if (body.contentEncoding() != null) {
+            builder.header("Content-Encoding", body.contentEncoding());
+        }
+        HttpRequest request = builder.build();
+        try {
+            CompletableFuture<HttpResponse<byte[]>> response = sender.send(request, body, indexName, request.timeout().get().toMillis());
+            if (response == null) {
+                node.release();
+                body.release();
+                return null;
+            }
+            return response.whenComplete((r, e) -> {
+                if (e != null || isNodeFailure(r.statusCode())) {
+                    node.onFailure(System.currentTimeMillis());
+                } else {
+                    node.onSuccess();
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            node.release();
+            body.release();
+            return null;
+        }
+    }
+
+    private boolean httpPut(String path, String body) {
+        try {
+            HttpResponse<String> response = sendToAnyNode(node -> HttpRequest.newBuilder()
+                    .uri(node.uri(path))
+                    .header("Content-Type", "application/json")
+                    .header("Authorization", getBasicAuthenticationHeader(username, password))
+                    .timeout(Duration.ofSeconds(connectTimeoutSeconds > 0 ? connectTimeoutSeconds : 30))
+                    .PUT(HttpRequest.BodyPublishers.ofString(body))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            int code = response.statusCode();
+            if (code >= 400) {
+                if (debug) {
+                    System.err.println("[http-put] " + path + " error :" + response.body());
+                }
+                return false;
+            } else {
+                return true;
+            }
+        } catch (Exception e) {
+            if (debug) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    private static final String getBasicAuthenticationHeader(String username, String password) {
+        String valueToEncode = username + ":" + password;
+        return "Basic " + Base64.getEncoder().encodeToString(valueToEncode.getBytes());
+    }
 }
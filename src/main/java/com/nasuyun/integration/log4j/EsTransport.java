@@ -0,0 +1,65 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.core.appender.AbstractManager;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+
+import java.net.http.HttpClient;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP client, bulk sender, adaptive limits and endpoint circuit breakers of one connection.
+ * <p>
+ * Managers on the same host and credentials share it even when their other settings differ, so the in-flight limits,
+ * the adaptive limits and the breaker state cover all traffic to the cluster. It is closed when the last manager using
+ * it stops.
+ */
+final class EsTransport extends AbstractManager {
+
+    private static final ManagerFactory<EsTransport, EsConnectionManager.FactoryData> FACTORY = EsTransport::new;
+
+    final NodeSelector nodes;
+    final HttpClient client;
+    final BulkSender sender;
+    final AdaptiveLimits limits;
+    private final ExecutorService httpExecutor;
+
+    static EsTransport getTransport(final EsConnectionManager.FactoryData data) {
+        return getManager(data.transportName(), FACTORY, data);
+    }
+
+    private EsTransport(final String name, final EsConnectionManager.FactoryData data) {
+        super(null, name);
+        this.nodes = NodeSelector.of(data.host, data.loadBalancing, data.failureThreshold, data.circuitOpenMillis,
+                data.maxCircuitOpenMillis);
+        this.httpExecutor = Executors.newCachedThreadPool(EsConnectionManager.daemonThreads("log4j-es-http"));
+        this.client = HttpClient.newBuilder().executor(httpExecutor).build();
+        this.sender = new BulkSender(client, data.maxInFlightRequests, data.maxInFlightBytes, data.orderedPerIndex);
+        this.limits = new AdaptiveLimits(data.adaptiveLimits, data.maxInFlightRequests, data.minBatchActions,
+                data.maxBatchActions, data.latencyTolerance, sender::setRequestLimit);
+    }
+
+    @Override
+    protected boolean releaseSub(final long timeout, final TimeUnit timeUnit) {
+        httpExecutor.shutdownNow();
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.core.config.ConfigurationException;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzips a bulk body into pooled chunks.
+ * <p>
+ * One instance per sending thread, see {@link #forCurrentThread(int)}: the {@link Deflater} and {@link CRC32} are
+ * reset and reused for every body instead of being allocated per request.
+ */
+final class GzipCompressor {
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final ThreadLocal<GzipCompressor> COMPRESSORS = new ThreadLocal<>();
+
+    private final int level;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+
+    private GzipCompressor(final int level) {
+        this.level = level;
+        this.deflater = new Deflater(level, true);
+    }
+
+    static GzipCompressor forCurrentThread(final int level) {
+        GzipCompressor compressor = COMPRESSORS.get();
+        if (compressor == null || compressor.level != level) {
+            if (compressor != null) {
+                compressor.deflater.end();
+            }
+            compressor = new GzipCompressor(level);
+            COMPRESSORS.set(compressor);
+        }
+        return compressor;
+    }
+
+    /**
+     * Compress {@code source} into {@code target}; {@code source} is left untouched.
+     */
+    BulkBody compress(final BulkBody source, final BulkBody target) {
+        deflater.reset();
+        crc.reset();
+        target.write(HEADER, 0, HEADER.length);
+        for (ByteBuffer view : source.views()) {
+            crc.update(view.duplicate());
+            deflater.setInput(view);
+            while (deflater.needsInput() == false) {
+                drain(target, Deflater.NO_FLUSH);
+            }
+        }
+        deflater.finish();
+        while (deflater.finished() == false) {
+            drain(target, Deflater.NO_FLUSH);
+        }
+        writeIntLE(target, (int) crc.getValue());
+        writeIntLE(target, (int) source.size());
+        target.encodedFrom(source, "gzip");
+        return target;
+    }
+
+    private void drain(final BulkBody target, final int flush) {
+        final ByteBuffer out = target.writable();
+        final int n = deflater.deflate(out, flush);
+        target.advance(n);
+    }
+
+    private static void writeIntLE(final BulkBody target, final int value) {
+        target.write(value & 0xff);
+        target.write((value >>> 8) & 0xff);
+        target.write((value >>> 16) & 0xff);
+        target.write((value >>> 24) & 0xff);
+    }
+
+    /**
+     * @param compression {@code none} or {@code gzip}
+     */
+    static boolean isGzip(final String compression) {
+        if (compression == null || compression.isEmpty() || compression.equalsIgnoreCase("none")) {
+            return false;
+        }
+        if (compression.equalsIgnoreCase("gzip")) {
+            return true;
+        }
+        throw new ConfigurationException("Unknown compression [" + compression + "], expected none or gzip");
+    }
+}
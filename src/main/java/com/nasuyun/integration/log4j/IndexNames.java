@@ -0,0 +1,113 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * Routes events to the index of their own timestamp and caches the action line of the current period.
+ * <p>
+ * The suffix is only formatted again when an event crosses a period boundary; events belonging to an earlier period
+ * (logged just before midnight, flushed just after) get their own index without replacing the cached period.
+ * Periods are immutable, so logging threads and the flush thread may share an instance.
+ */
+final class IndexNames {
+
+    private final String base;
+    private final RolloverPolicy policy;
+    private final ZoneId zone;
+    private volatile Period current;
+    private volatile Period stream;
+
+    IndexNames(final String base, final RolloverPolicy policy) {
+        this(base, policy, ZoneId.systemDefault());
+    }
+
+    IndexNames(final String base, final RolloverPolicy policy, final ZoneId zone) {
+        this.base = base;
+        this.policy = policy;
+        this.zone = zone;
+    }
+
+    /**
+     * @param esVersion major version, it decides the action line format: {@code _type} only up to 6.x
+     */
+    Period periodOf(final long timeMillis, final int esVersion) {
+        return periodOf(timeMillis, esVersion, false);
+    }
+
+    /**
+     * @param dataStream write to the data stream named after the base index with create actions, it rolls over by
+     *                   itself so the rollover policy does not apply
+     */
+    Period periodOf(final long timeMillis, final int esVersion, final boolean dataStream) {
+        if (dataStream) {
+            final Period period = stream;
+            if (period != null) {
+                return period;
+            }
+            return stream = new Period(base, Long.MIN_VALUE, Long.MAX_VALUE, esVersion,
+                    "{ \"create\" : { \"_index\" : \"" + base + "\"}}\n");
+        }
+        final Period period = current;
+        if (period != null && period.contains(timeMillis) && period.esVersion == esVersion) {
+            return period;
+        }
+        final Period computed = compute(timeMillis, esVersion);
+        if (period == null || period.esVersion != esVersion || timeMillis >= period.end) {
+            current = computed;
+        }
+        return computed;
+    }
+
+    private Period compute(final long timeMillis, final int esVersion) {
+        if (policy == RolloverPolicy.NONE) {
+            return new Period(base, Long.MIN_VALUE, Long.MAX_VALUE, esVersion);
+        }
+        final ZonedDateTime start = policy.periodStart(timeMillis, zone);
+        final ZonedDateTime end = policy.nextPeriod(start);
+        return new Period(base + policy.suffix(start), start.toInstant().toEpochMilli(), end.toInstant().toEpochMilli(), esVersion);
+    }
+
+    static final class Period {
+        final String index;
+        final long start;
+        final long end;
+        final int esVersion;
+        final byte[] actionLine;
+
+        Period(final String index, final long start, final long end, final int esVersion) {
+            this(index, start, end, esVersion, "{ \"index\" : { \"_index\" : \"" + index + "\""
+                    + (esVersion <= 6 ? ",\"_type\":\"_doc\"}}" : "}}") + "\n");
+        }
+
+        private Period(final String index, final long start, final long end, final int esVersion, final String line) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.esVersion = esVersion;
+            this.actionLine = line.getBytes(StandardCharsets.UTF_8);
+        }
+
+        boolean contains(final long timeMillis) {
+            return timeMillis >= start && timeMillis < end;
+        }
+    }
+}
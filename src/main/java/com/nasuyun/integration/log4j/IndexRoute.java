@@ -0,0 +1,237 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.ConfigurationException;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+import org.apache.logging.log4j.util.Strings;
+
+/**
+ * Sends the events that match all of its conditions to its own index family, with its own pipeline and batching:
+ * <pre>
+ * &lt;Elasticsearch name="es" ...&gt;
+ *   &lt;IndexRoute index="audit" marker="AUDIT" lingerMillis="200"/&gt;
+ *   &lt;IndexRoute index="access" loggerPrefix="com.example.access" maxBatchActions="5000"/&gt;
+ * &lt;/Elasticsearch&gt;
+ * </pre>
+ * Routes are tried in order, events that match none go to the default {@code log4j} index. A route without conditions
+ * matches every event. Unset batching settings and pipeline fall back to the appender's.
+ */
+@Plugin(name = "IndexRoute", category = Node.CATEGORY, printObject = true)
+public final class IndexRoute {
+
+    public static class Builder implements org.apache.logging.log4j.core.util.Builder<IndexRoute> {
+
+        /**
+         * Index name without the rollover suffix.
+         */
+        @PluginBuilderAttribute
+        @Required(message = "No index provided for IndexRoute")
+        private String index;
+
+        /**
+         * Ingest pipeline, empty for none. Defaults to the appender's pipeline.
+         */
+        @PluginBuilderAttribute
+        private String pipeline;
+
+        @PluginBuilderAttribute
+        private String loggerPrefix;
+
+        /**
+         * Matches the marker and its descendants.
+         */
+        @PluginBuilderAttribute
+        private String marker;
+
+        /**
+         * Matches this level and more severe ones.
+         */
+        @PluginBuilderAttribute
+        private String level;
+
+        /**
+         * Matches events whose context data contains this key.
+         */
+        @PluginBuilderAttribute
+        private String mdcKey;
+
+        @PluginBuilderAttribute
+        private String rolloverPolicy;
+
+        /**
+         * Capped by the adaptive batch limit, 0 uses the appender's.
+         */
+        @PluginBuilderAttribute
+        private int maxBatchActions;
+
+        @PluginBuilderAttribute
+        private long maxBatchBytes;
+
+        /**
+         * 0 sends partial batches right away, negative uses the appender's.
+         */
+        @PluginBuilderAttribute
+        private long lingerMillis = -1;
+
+        public String getIndex() {
+            return index;
+        }
+
+        public String getPipeline() {
+            return pipeline;
+        }
+
+        public String getLoggerPrefix() {
+            return loggerPrefix;
+        }
+
+        public String getMarker() {
+            return marker;
+        }
+
+        public String getLevel() {
+            return level;
+        }
+
+        public String getMdcKey() {
+            return mdcKey;
+        }
+
+        public String getRolloverPolicy() {
+            return rolloverPolicy;
+        }
+
+        public int getMaxBatchActions() {
+            return maxBatchActions;
+        }
+
+        public long getMaxBatchBytes() {
+            return maxBatchBytes;
+        }
+
+        public long getLingerMillis() {
+            return lingerMillis;
+        }
+
+        public Builder setIndex(final String index) {
+            this.index = index;
+            return this;
+        }
+
+        public Builder setPipeline(final String pipeline) {
+            this.pipeline = pipeline;
+            return this;
+        }
+
+        public Builder setLoggerPrefix(final String loggerPrefix) {
+            this.loggerPrefix = loggerPrefix;
+            return this;
+        }
+
+        public Builder setMarker(final String marker) {
+            this.marker = marker;
+            return this;
+        }
+
+        public Builder setLevel(final String level) {
+            this.level = level;
+            return this;
+        }
+
+        public Builder setMdcKey(final String mdcKey) {
+            this.mdcKey = mdcKey;
+            return this;
+        }
+
+        public Builder setRolloverPolicy(final String rolloverPolicy) {
+            this.rolloverPolicy = rolloverPolicy;
+            return this;
+        }
+
+        public Builder setMaxBatchActions(final int maxBatchActions) {
+            this.maxBatchActions = maxBatchActions;
+            return this;
+        }
+
+        public Builder setMaxBatchBytes(final long maxBatchBytes) {
+            this.maxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        public Builder setLingerMillis(final long lingerMillis) {
+            this.lingerMillis = lingerMillis;
+            return this;
+        }
+
+        @Override
+        public IndexRoute build() {
+            if (Strings.isEmpty(index) || index.equals(index.toLowerCase()) == false || index.startsWith("_")
+                    || index.contains("*") || index.contains(",")) {
+                throw new ConfigurationException("Invalid IndexRoute index [" + index + "], expected a lowercase index name");
+            }
+            final Level threshold = level == null ? null : Level.toLevel(level, null);
+            if (level != null && threshold == null) {
+                throw new ConfigurationException("Unknown IndexRoute level [" + level + "]");
+            }
+            return new IndexRoute(this, threshold);
+        }
+    }
+
+    @PluginBuilderFactory
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    final String index;
+    final String pipeline;
+    final String loggerPrefix;
+    final String marker;
+    final Level level;
+    final String mdcKey;
+    final String rolloverPolicy;
+    final int maxBatchActions;
+    final long maxBatchBytes;
+    final long lingerMillis;
+
+    private IndexRoute(final Builder builder, final Level level) {
+        this.index = builder.index;
+        this.pipeline = builder.pipeline;
+        this.loggerPrefix = Strings.isEmpty(builder.loggerPrefix) ? null : builder.loggerPrefix;
+        this.marker = Strings.isEmpty(builder.marker) ? null : builder.marker;
+        this.level = level;
+        this.mdcKey = Strings.isEmpty(builder.mdcKey) ? null : builder.mdcKey;
+        this.rolloverPolicy = builder.rolloverPolicy;
+        this.maxBatchActions = builder.maxBatchActions;
+        this.maxBatchBytes = builder.maxBatchBytes;
+        this.lingerMillis = builder.lingerMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexRoute{index=" + index + ", pipeline=" + pipeline + ", loggerPrefix=" + loggerPrefix
+                + ", marker=" + marker + ", level=" + level + ", mdcKey=" + mdcKey + ", rolloverPolicy=" + rolloverPolicy
+                + ", maxBatchActions=" + maxBatchActions + ", maxBatchBytes=" + maxBatchBytes
+                + ", lingerMillis=" + lingerMillis + "}";
+    }
+}
@@ -0,0 +1,241 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.logging.log4j.util.Strings;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds the index templates and the ILM policy the appender installs, starting from the bundled mappings in
+ * {@link Resources} and applying the configured index settings.
+ * <p>
+ * Display-only fields are mapped as keywords that are neither indexed nor kept in doc values: they stay in
+ * {@code _source} and show up in search hits, but cost no indexing time or disk beyond the source itself.
+ * Only string fields should be listed, an object value in such a field is rejected by Elasticsearch.
+ */
+final class IndexTemplates {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final TemplateProfile profile;
+    private final int numberOfShards;
+    private final int numberOfReplicas;
+    private final String refreshInterval;
+    private final boolean bestCompression;
+    private final String rolloverMaxSize;
+    private final String rolloverMaxAge;
+    private final List<String> displayOnlyFields;
+
+    /**
+     * @param numberOfReplicas  negative to keep the cluster default
+     * @param refreshInterval   null for the profile's default, empty for the cluster default
+     * @param bestCompression   null for the profile's default
+     * @param displayOnlyFields comma separated field names, dotted names address object fields
+     */
+    IndexTemplates(final TemplateProfile profile, final int numberOfShards, final int numberOfReplicas,
+                   final String refreshInterval, final Boolean bestCompression, final String rolloverMaxSize,
+                   final String rolloverMaxAge, final String displayOnlyFields) {
+        this.profile = profile;
+        this.numberOfShards = Math.max(1, numberOfShards);
+        this.numberOfReplicas = numberOfReplicas;
+        this.refreshInterval = refreshInterval != null ? refreshInterval : profile.refreshInterval;
+        this.bestCompression = bestCompression != null ? bestCompression : profile.bestCompression;
+        this.rolloverMaxSize = rolloverMaxSize;
+        this.rolloverMaxAge = rolloverMaxAge;
+        this.displayOnlyFields = split(displayOnlyFields);
+    }
+
+    TemplateProfile profile() {
+        return profile;
+    }
+
+    /**
+     * Legacy template for {@code <index>-*}, mappings under {@code _doc} for 6.x.
+     */
+    String legacyTemplate(final String index, final int esVersion) {
+        final ObjectNode template = parse(esVersion == 6 ? Resources.log4jTemplate6 : Resources.log4jTemplate7);
+        template.putArray("index_patterns").add(index + "-*");
+        applySettings(object(object(template, "settings"), "index"));
+        final ObjectNode mappings = object(template, "mappings");
+        applyMappings(esVersion == 6 ? object(mappings, "_doc") : mappings);
+        return template.toString();
+    }
+
+    /**
+     * Composable template creating the data stream {@code <index>} on its first create action.
+     */
+    String dataStreamTemplate(final String index) {
+        final ObjectNode legacy = parse(Resources.log4jTemplate7);
+        final ObjectNode template = MAPPER.createObjectNode();
+        template.putArray("index_patterns").add(index);
+        template.putObject("data_stream");
+        template.put("priority", 200);
+        final ObjectNode body = template.putObject("template");
+        final ObjectNode settings = object(object(body, "settings"), "index");
+        applySettings(settings);
+        if (hasRollover()) {
+            object(settings, "lifecycle").put("name", policyName(index));
+        }
+        final ObjectNode mappings = (ObjectNode) legacy.get("mappings").deepCopy();
+        applyMappings(mappings);
+        body.set("mappings", mappings);
+        return template.toString();
+    }
+
+    /**
+     * ILM policy rolling the backing indices of a data stream over by size and age.
+     */
+    String rolloverPolicy() {
+        final ObjectNode policy = MAPPER.createObjectNode();
+        final ObjectNode rollover = object(object(object(object(policy, "policy"), "phases"), "hot"), "actions").putObject("rollover");
+        if (Strings.isNotEmpty(rolloverMaxSize)) {
+            rollover.put("max_size", rolloverMaxSize);
+        }
+        if (Strings.isNotEmpty(rolloverMaxAge)) {
+            rollover.put("max_age", rolloverMaxAge);
+        }
+        return policy.toString();
+    }
+
+    /**
+     * Compares the index settings the appender manages with an installed template, so that changed attributes reach
+     * clusters that already have one.
+     *
+     * @param response body of {@code GET _template/<index>} or {@code GET _index_template/<index>}
+     * @return the managed settings whose installed value differs, e.g. {@code refresh_interval=1s->5s}; empty if none
+     * does or the template cannot be read from the response
+     */
+    List<String> changedSettings(final String response, final String index) {
+        final JsonNode installed;
+        try {
+            installed = installedSettings(MAPPER.readTree(response), index);
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+        if (installed == null) {
+            return Collections.emptyList();
+        }
+        final ObjectNode wanted = MAPPER.createObjectNode();
+        applySettings(wanted);
+        if (bestCompression == false && installed.has("codec")) {
+            wanted.put("codec", "default");
+        }
+        final List<String> changed = new ArrayList<>();
+        wanted.fields().forEachRemaining(setting -> {
+            final String value = installed.path(setting.getKey()).asText(null);
+            if (setting.getValue().asText().equals(value) == false) {
+                changed.add(setting.getKey() + "=" + value + "->" + setting.getValue().asText());
+            }
+        });
+        return changed;
+    }
+
+    /**
+     * Legacy templates are keyed by name, composable ones listed under {@code index_templates}.
+     */
+    private static JsonNode installedSettings(final JsonNode response, final String index) {
+        if (response.has(index)) {
+            return response.get(index).path("settings").path("index");
+        }
+        for (JsonNode template : response.path("index_templates")) {
+            if (index.equals(template.path("name").asText())) {
+                return template.path("index_template").path("template").path("settings").path("index");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Without size and age there is nothing to roll over and no policy is installed.
+     */
+    boolean hasRollover() {
+        return Strings.isNotEmpty(rolloverMaxSize) || Strings.isNotEmpty(rolloverMaxAge);
+    }
+
+    static String policyName(final String index) {
+        return index + "-rollover";
+    }
+
+    @Override
+    public String toString() {
+        return profile + ":" + numberOfShards + ":" + numberOfReplicas + ":" + refreshInterval + ":" + bestCompression
+                + ":" + rolloverMaxSize + ":" + rolloverMaxAge + ":" + displayOnlyFields;
+    }
+
+    private void applySettings(final ObjectNode settings) {
+        if (Strings.isNotEmpty(refreshInterval)) {
+            settings.put("refresh_interval", refreshInterval);
+        }
+        settings.put("number_of_shards", String.valueOf(numberOfShards));
+        if (numberOfReplicas >= 0) {
+            settings.put("number_of_replicas", String.valueOf(numberOfReplicas));
+        }
+        if (bestCompression) {
+            settings.put("codec", "best_compression");
+        }
+    }
+
+    private void applyMappings(final ObjectNode mappings) {
+        for (String field : displayOnlyFields) {
+            ObjectNode properties = object(mappings, "properties");
+            final String[] path = field.split("\\.");
+            for (int i = 0; i < path.length - 1; i++) {
+                properties = object(object(properties, path[i]), "properties");
+            }
+            final ObjectNode mapping = properties.putObject(path[path.length - 1]);
+            mapping.put("type", "keyword");
+            mapping.put("index", false);
+            mapping.put("doc_values", false);
+        }
+    }
+
+    private static ObjectNode object(final ObjectNode parent, final String name) {
+        final JsonNode child = parent.get(name);
+        return child instanceof ObjectNode ? (ObjectNode) child : parent.putObject(name);
+    }
+
+    private static ObjectNode parse(final String json) {
+        try {
+            return (ObjectNode) MAPPER.readTree(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<String> split(final String fields) {
+        if (Strings.isBlank(fields)) {
+            return Collections.emptyList();
+        }
+        final List<String> names = new ArrayList<>();
+        for (String field : fields.split(",")) {
+            if (Strings.isNotBlank(field)) {
+                names.add(field.trim());
+            }
+        }
+        return Collections.unmodifiableList(names);
+    }
+}
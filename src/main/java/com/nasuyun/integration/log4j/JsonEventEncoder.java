@@ -0,0 +1,280 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes the event fields straight into the document, so no ingest pipeline has to parse them:
+ * <pre>
+ * {"@timestamp":1700000000000,"hostname":"..","level":"ERROR","class":"com.example.Foo","thread":"main",
+ *  "msg":"..","marker":"..","context":{"traceId":".."},"thrown":{"class":"..","message":"..","stack":[".."],"cause":{..}}}
+ * </pre>
+ * {@code class} and {@code msg} follow the fields the grok pipeline extracts, {@code class} holds the logger name.
+ * The layout is not used.
+ * <p>
+ * With a {@link StackTraceCache}, {@code thrown} also carries a {@code fingerprint}, and {@code stack} is left out of
+ * the throwable and its causes when the same trace was shipped recently.
+ * <p>
+ * With a {@link SizeGuard}, {@code msg}, {@code thrown.message}, context values and each {@code stack} array are cut
+ * to the caps while they are written; a cut stack ends with the marker as its last frame. Formatting is not bounded:
+ * the message is formatted in full before it is cut.
+ */
+final class JsonEventEncoder implements DocumentEncoder {
+
+    private static final int MAX_CAUSE_DEPTH = 8;
+
+    private static final ThreadLocal<State> STATES = ThreadLocal.withInitial(State::new);
+
+    private static final TriConsumer<String, Object, State> WRITE_CONTEXT = (key, value, state) -> {
+        try {
+            state.generator.writeFieldName(key);
+            if (value == null) {
+                state.generator.writeNull();
+            } else if (state.guard == null) {
+                state.generator.writeString(String.valueOf(value));
+            } else {
+                final long original = writeGuarded(String.valueOf(value), state);
+                if (original >= 0) {
+                    state.truncations.add("context." + key, original);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    };
+
+    private final String hostname;
+    private final StackTraceCache stackTraces;
+    private final SizeGuard guard;
+
+    /**
+     * @param stackTraces null sends every stack trace
+     * @param guard       null writes every field in full
+     */
+    JsonEventEncoder(final String hostname, final StackTraceCache stackTraces, final SizeGuard guard) {
+        this.hostname = hostname;
+        this.stackTraces = stackTraces;
+        this.guard = guard;
+    }
+
+    @Override
+    public byte[] encode(final Layout<?> layout, final LogEvent event) throws IOException {
+        final State state = STATES.get();
+        state.out.reset();
+        state.guard = guard;
+        state.truncations.reset();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(state.out)) {
+            state.generator = generator;
+            generator.writeStartObject();
+            generator.writeNumberField("@timestamp", event.getTimeMillis());
+            generator.writeStringField("hostname", hostname);
+            generator.writeStringField("level", event.getLevel().name());
+            generator.writeStringField("class", event.getLoggerName());
+            generator.writeStringField("thread", event.getThreadName());
+            writeMessage(generator, event.getMessage(), state);
+            final Marker marker = event.getMarker();
+            if (marker != null) {
+                generator.writeStringField("marker", marker.getName());
+            }
+            final ReadOnlyStringMap context = event.getContextData();
+            if (context != null && context.isEmpty() == false) {
+                generator.writeObjectFieldStart("context");
+                try {
+                    context.forEach(WRITE_CONTEXT, state);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                generator.writeEndObject();
+            }
+            final Throwable thrown = event.getThrown();
+            if (thrown != null) {
+                generator.writeFieldName("thrown");
+                if (stackTraces == null) {
+                    writeThrowable(state, thrown, 0, null, true);
+                } else {
+                    final long fingerprint = StackTraceCache.fingerprint(thrown);
+                    writeThrowable(state, thrown, 0, StackTraceCache.hex(fingerprint),
+                            stackTraces.ship(fingerprint, event.getTimeMillis()));
+                }
+            }
+            if (guard != null) {
+                state.truncations.writeTo(generator, guard);
+            }
+            generator.writeEndObject();
+        } finally {
+            state.generator = null;
+        }
+        return state.out.toByteArray();
+    }
+
+    /**
+     * Reusable messages are formatted into a per-thread builder instead of allocating the formatted String.
+     */
+    private static void writeMessage(final JsonGenerator generator, final Message message, final State state) throws IOException {
+        generator.writeFieldName("msg");
+        if (message == null) {
+            generator.writeNull();
+        } else if (message instanceof StringBuilderFormattable) {
+            final StringBuilder text = state.text;
+            text.setLength(0);
+            ((StringBuilderFormattable) message).formatTo(text);
+            final int length = text.length();
+            final int keep = state.guard == null ? length : SizeGuard.cut(text, state.guard.fieldCap(state.written()));
+            if (state.chars.length < keep + SizeGuard.MARKER.length()) {
+                state.chars = new char[Math.max(keep + SizeGuard.MARKER.length(), state.chars.length * 2)];
+            }
+            text.getChars(0, keep, state.chars, 0);
+            if (keep < length) {
+                SizeGuard.MARKER.getChars(0, SizeGuard.MARKER.length(), state.chars, keep);
+                generator.writeString(state.chars, 0, keep + SizeGuard.MARKER.length());
+                state.truncations.add("msg", SizeGuard.encodedLength(text));
+            } else {
+                generator.writeString(state.chars, 0, length);
+            }
+            if (text.capacity() > State.MAX_RETAINED_CHARS) {
+                state.text = new StringBuilder(State.INITIAL_CHARS);
+                state.chars = new char[State.INITIAL_CHARS];
+            }
+        } else if (state.guard == null) {
+            generator.writeString(message.getFormattedMessage());
+        } else {
+            final long original = writeGuarded(message.getFormattedMessage(), state);
+            if (original >= 0) {
+                state.truncations.add("msg", original);
+            }
+        }
+    }
+
+    /**
+     * Writes the value cut to the room the guard leaves for it.
+     *
+     * @return the original length in bytes if the value was cut, -1 otherwise
+     */
+    private static long writeGuarded(final String value, final State state) throws IOException {
+        final int keep = SizeGuard.cut(value, state.guard.fieldCap(state.written()));
+        if (keep == value.length()) {
+            state.generator.writeString(value);
+            return -1;
+        }
+        state.generator.writeString(value.substring(0, keep) + SizeGuard.MARKER);
+        return SizeGuard.encodedLength(value);
+    }
+
+    private static void writeThrowable(final State state, final Throwable thrown, final int depth,
+                                       final String fingerprint, final boolean stack) throws IOException {
+        final JsonGenerator generator = state.generator;
+        generator.writeStartObject();
+        generator.writeStringField("class", thrown.getClass().getName());
+        if (fingerprint != null) {
+            generator.writeStringField("fingerprint", fingerprint);
+        }
+        if (thrown.getMessage() != null) {
+            generator.writeFieldName("message");
+            if (state.guard == null) {
+                generator.writeString(thrown.getMessage());
+            } else {
+                final long original = writeGuarded(thrown.getMessage(), state);
+                if (original >= 0) {
+                    state.truncations.add(path(depth, "message"), original);
+                }
+            }
+        }
+        if (stack) {
+            generator.writeArrayFieldStart("stack");
+            if (state.guard == null) {
+                for (StackTraceElement element : thrown.getStackTrace()) {
+                    generator.writeString(element.toString());
+                }
+            } else {
+                writeGuardedStack(state, thrown.getStackTrace(), depth);
+            }
+            generator.writeEndArray();
+        }
+        final Throwable cause = thrown.getCause();
+        if (cause != null && cause != thrown && depth < MAX_CAUSE_DEPTH) {
+            generator.writeFieldName("cause");
+            writeThrowable(state, cause, depth + 1, null, stack);
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Frames are written until the next one would not fit, the rest is replaced by the marker and only measured.
+     */
+    private static void writeGuardedStack(final State state, final StackTraceElement[] frames, final int depth) throws IOException {
+        final int cap = state.guard.fieldCap(state.written());
+        long bytes = 0;
+        for (int i = 0; i < frames.length; i++) {
+            final String frame = frames[i].toString();
+            final long length = SizeGuard.encodedLength(frame);
+            if (bytes + length > cap - SizeGuard.MARKER.length()) {
+                long original = bytes + length;
+                for (int j = i + 1; j < frames.length; j++) {
+                    original += SizeGuard.encodedLength(frames[j].toString());
+                }
+                state.generator.writeString(SizeGuard.MARKER);
+                state.truncations.add(path(depth, "stack"), original);
+                return;
+            }
+            state.generator.writeString(frame);
+            bytes += length;
+        }
+    }
+
+    /**
+     * Field name of a throwable field in the truncated object, e.g. {@code thrown.cause.stack}.
+     */
+    private static String path(final int depth, final String field) {
+        final StringBuilder path = new StringBuilder("thrown.");
+        for (int i = 0; i < depth; i++) {
+            path.append("cause.");
+        }
+        return path.append(field).toString();
+    }
+
+    private static final class State {
+        static final int INITIAL_CHARS = 512;
+        static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+        final ByteArrayBuilder out = new ByteArrayBuilder(INITIAL_CHARS);
+        final SizeGuard.Truncations truncations = new SizeGuard.Truncations();
+        StringBuilder text = new StringBuilder(INITIAL_CHARS);
+        char[] chars = new char[INITIAL_CHARS];
+        JsonGenerator generator;
+        SizeGuard guard;
+
+        /**
+         * Bytes of the document so far, including what the generator still buffers.
+         */
+        long written() {
+            return out.size() + Math.max(0, generator.getOutputBuffered());
+        }
+    }
+}
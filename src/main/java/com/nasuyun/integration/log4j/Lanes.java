@@ -0,0 +1,152 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.Level;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * One bounded ring per level group, each with its own overflow policy, so a flood of INFO or DEBUG events fills
+ * and sheds its own lane while ERROR and WARN events keep their room.
+ * <p>
+ * {@link #poll()} drains lanes in priority order. A lane configured with capacity 0 is folded into the next lower
+ * one; the INFO lane always exists and takes everything less severe than WARN.
+ */
+final class Lanes {
+
+    static final int ERROR = 0;
+    static final int WARN = 1;
+    static final int INFO = 2;
+    static final int COUNT = 3;
+    private static final String[] NAMES = {"error", "warn", "info"};
+
+    private final RingBuffer<EncodedEvent>[] rings;
+    /**
+     * Nominal lane to the lane that actually buffers it.
+     */
+    private final int[] route = new int[COUNT];
+
+    /**
+     * @param capacities capacity per lane, indexed by lane
+     * @param policies   overflow policy per lane, indexed by lane
+     * @param evicted    called with every event DROP_OLDEST removes, may be null
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Lanes(final int[] capacities, final OverflowPolicy[] policies, final long blockTimeoutMillis,
+          final Consumer<? super EncodedEvent> evicted) {
+        this.rings = new RingBuffer[COUNT];
+        for (int lane = INFO; lane >= ERROR; lane--) {
+            if (lane == INFO || capacities[lane] > 0) {
+                rings[lane] = new RingBuffer<>(capacities[lane], policies[lane], blockTimeoutMillis, evicted);
+                route[lane] = lane;
+            } else {
+                route[lane] = route[lane + 1];
+            }
+        }
+    }
+
+    /**
+     * Lane for an event of the given level.
+     */
+    int laneOf(final Level level) {
+        if (level == null) {
+            return route[INFO];
+        }
+        return route[level.isMoreSpecificThan(Level.ERROR) ? ERROR : level.isMoreSpecificThan(Level.WARN) ? WARN : INFO];
+    }
+
+    /**
+     * Enqueue into the event's lane, applying that lane's overflow policy.
+     *
+     * @return false if the event itself was dropped
+     */
+    boolean put(final EncodedEvent event) {
+        return rings[event.lane].put(event);
+    }
+
+    /**
+     * Enqueue without applying the overflow policy.
+     */
+    boolean offer(final EncodedEvent event) {
+        final int lane = route[event.lane];
+        return rings[lane].offer(lane == event.lane ? event : new EncodedEvent(event.timeMillis, event.source, lane, event.route));
+    }
+
+    /**
+     * @return the oldest event of the most important non-empty lane up to {@code maxLane}, null if all are empty
+     */
+    EncodedEvent poll(final int maxLane) {
+        for (int lane = ERROR; lane <= maxLane; lane++) {
+            if (rings[lane] != null) {
+                final EncodedEvent event = rings[lane].poll();
+                if (event != null) {
+                    return event;
+                }
+            }
+        }
+        return null;
+    }
+
+    EncodedEvent poll() {
+        return poll(INFO);
+    }
+
+    int size() {
+        int size = 0;
+        for (RingBuffer<EncodedEvent> ring : rings) {
+            size += ring == null ? 0 : ring.size();
+        }
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int capacity() {
+        int capacity = 0;
+        for (RingBuffer<EncodedEvent> ring : rings) {
+            capacity += ring == null ? 0 : ring.capacity();
+        }
+        return capacity;
+    }
+
+    long dropped() {
+        long dropped = 0;
+        for (RingBuffer<EncodedEvent> ring : rings) {
+            dropped += ring == null ? 0 : ring.dropped();
+        }
+        return dropped;
+    }
+
+    /**
+     * Events discarded by the overflow policy per configured lane.
+     */
+    Map<String, Long> droppedByLane() {
+        final Map<String, Long> dropped = new LinkedHashMap<>();
+        for (int lane = ERROR; lane < COUNT; lane++) {
+            if (rings[lane] != null) {
+                dropped.put(NAMES[lane] + "/" + rings[lane].overflowPolicy(), rings[lane].dropped());
+            }
+        }
+        return dropped;
+    }
+}
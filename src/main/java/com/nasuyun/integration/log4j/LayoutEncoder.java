@@ -0,0 +1,375 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.AbstractLogEvent;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.time.Instant;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Encodes an event as {@code {"message":"<layout output>"}} in UTF-8.
+ * <p>
+ * For data streams the document starts with {@code "@timestamp":<epoch millis>}: the log4j pipeline only sets it when
+ * grok matches the default layout, and a data stream rejects documents without it. A matching grok overwrites it
+ * with the time read from the message.
+ * <p>
+ * When the layout already produces UTF-8 its bytes are escaped straight into the document, otherwise they are
+ * decoded once. The output buffer is reused per thread.
+ * <p>
+ * With a {@link StackTraceCache}, events with a throwable get a {@code thrown} field with class, fingerprint and
+ * message, and the layout renders the event without its throwable when the same trace was shipped recently.
+ * <p>
+ * With a {@link SizeGuard}, the layout encodes into a destination that keeps only the bytes within the cap and
+ * counts the rest, so the document never holds a huge message in full; {@code message} then ends with the marker.
+ * Formatting is not bounded: the layout still renders the whole event into its own buffer first.
+ */
+final class LayoutEncoder implements DocumentEncoder {
+
+    private static final ThreadLocal<ByteArrayBuilder> BUFFERS = ThreadLocal.withInitial(() -> new ByteArrayBuilder(512));
+    private static final ThreadLocal<CappedDestination> DESTINATIONS = ThreadLocal.withInitial(CappedDestination::new);
+    private static final ThreadLocal<SizeGuard.Truncations> TRUNCATIONS = ThreadLocal.withInitial(SizeGuard.Truncations::new);
+    /**
+     * Bytes of {@code {"message":""}} written before the message.
+     */
+    private static final int MESSAGE_OVERHEAD = 14;
+    /**
+     * Bytes of {@code "@timestamp":<13 digits>,} written before the message.
+     */
+    private static final int TIMESTAMP_OVERHEAD = 27;
+
+    private final StackTraceCache stackTraces;
+    private final SizeGuard guard;
+    private final boolean timestamp;
+
+    /**
+     * @param stackTraces null renders every stack trace
+     * @param guard       null writes the whole layout output
+     * @param timestamp   write {@code @timestamp} before the message
+     */
+    LayoutEncoder(final StackTraceCache stackTraces, final SizeGuard guard, final boolean timestamp) {
+        this.stackTraces = stackTraces;
+        this.guard = guard;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public byte[] encode(final Layout<?> layout, final LogEvent event) throws IOException {
+        final Throwable thrown = stackTraces == null ? null : event.getThrown();
+        String fingerprint = null;
+        LogEvent rendered = event;
+        if (thrown != null) {
+            final long hash = StackTraceCache.fingerprint(thrown);
+            fingerprint = StackTraceCache.hex(hash);
+            if (stackTraces.ship(hash, event.getTimeMillis()) == false) {
+                rendered = new WithoutThrown(event);
+            }
+        }
+        if (guard != null) {
+            return encodeGuarded(layout, rendered, thrown, fingerprint);
+        }
+        final byte[] msg = layout.toByteArray(rendered);
+        final ByteArrayBuilder out = BUFFERS.get();
+        out.reset();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartObject();
+            if (timestamp) {
+                generator.writeNumberField("@timestamp", event.getTimeMillis());
+            }
+            generator.writeFieldName("message");
+            final Charset charset = charsetOf(layout);
+            if (StandardCharsets.UTF_8.equals(charset)) {
+                generator.writeUTF8String(msg, 0, msg.length);
+            } else {
+                generator.writeString(new String(msg, charset));
+            }
+            if (fingerprint != null) {
+                generator.writeObjectFieldStart("thrown");
+                generator.writeStringField("class", thrown.getClass().getName());
+                generator.writeStringField("fingerprint", fingerprint);
+                if (thrown.getMessage() != null) {
+                    generator.writeStringField("message", thrown.getMessage());
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] encodeGuarded(final Layout<?> layout, final LogEvent rendered, final Throwable thrown,
+                                 final String fingerprint) throws IOException {
+        final int cap = guard.fieldCap(MESSAGE_OVERHEAD + (timestamp ? TIMESTAMP_OVERHEAD : 0));
+        final CappedDestination msg = DESTINATIONS.get();
+        msg.reset(cap);
+        layout.encode(rendered, msg);
+        msg.finish();
+        final ByteArrayBuilder out = BUFFERS.get();
+        out.reset();
+        final SizeGuard.Truncations truncations = TRUNCATIONS.get();
+        truncations.reset();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartObject();
+            if (timestamp) {
+                generator.writeNumberField("@timestamp", rendered.getTimeMillis());
+            }
+            generator.writeFieldName("message");
+            final Charset charset = charsetOf(layout);
+            if (StandardCharsets.UTF_8.equals(charset)) {
+                final int keep = SizeGuard.cut(msg.kept, msg.total, cap);
+                if (keep < msg.total) {
+                    System.arraycopy(SizeGuard.MARKER_UTF8, 0, msg.kept, keep, SizeGuard.MARKER_UTF8.length);
+                    generator.writeUTF8String(msg.kept, 0, keep + SizeGuard.MARKER_UTF8.length);
+                } else {
+                    generator.writeUTF8String(msg.kept, 0, keep);
+                }
+            } else if (msg.total > msg.size) {
+                generator.writeString(new String(msg.kept, 0, Math.max(0, msg.size - SizeGuard.MARKER.length()), charset)
+                        + SizeGuard.MARKER);
+            } else {
+                generator.writeString(new String(msg.kept, 0, msg.size, charset));
+            }
+            if (msg.total > msg.size) {
+                truncations.add("message", msg.total);
+            }
+            if (fingerprint != null) {
+                generator.writeObjectFieldStart("thrown");
+                generator.writeStringField("class", thrown.getClass().getName());
+                generator.writeStringField("fingerprint", fingerprint);
+                final String message = thrown.getMessage();
+                if (message != null) {
+                    final int keep = SizeGuard.cut(message, guard.fieldCap(out.size() + Math.max(0, generator.getOutputBuffered())));
+                    if (keep < message.length()) {
+                        generator.writeStringField("message", message.substring(0, keep) + SizeGuard.MARKER);
+                        truncations.add("thrown.message", SizeGuard.encodedLength(message));
+                    } else {
+                        generator.writeStringField("message", message);
+                    }
+                }
+                generator.writeEndObject();
+            }
+            truncations.writeTo(generator, guard);
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    private static Charset charsetOf(final Layout<?> layout) {
+        if (layout instanceof AbstractStringLayout) {
+            return ((AbstractStringLayout) layout).getCharset();
+        }
+        return Charset.defaultCharset();
+    }
+
+    /**
+     * Receives the layout output, keeps the first {@code cap} bytes and only counts the rest.
+     */
+    private static final class CappedDestination implements ByteBufferDestination {
+        private static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        private byte[] kept = new byte[512];
+        private int size;
+        private long total;
+        private int cap;
+
+        void reset(final int cap) {
+            if (kept.length > MAX_RETAINED_BYTES) {
+                kept = new byte[512];
+            }
+            this.cap = cap;
+            this.size = 0;
+            this.total = 0;
+            buffer.clear();
+        }
+
+        /**
+         * Takes what the layout left in the buffer.
+         */
+        void finish() {
+            drain(buffer);
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public ByteBuffer drain(final ByteBuffer buf) {
+            buf.flip();
+            writeBytes(buf);
+            buf.clear();
+            return buf;
+        }
+
+        @Override
+        public void writeBytes(final ByteBuffer data) {
+            final int n = data.remaining();
+            final int keep = (int) Math.max(0, Math.min(n, (long) cap - size));
+            if (keep > 0) {
+                ensure(size + keep);
+                data.get(kept, size, keep);
+                size += keep;
+            }
+            data.position(data.limit());
+            total += n;
+        }
+
+        @Override
+        public void writeBytes(final byte[] data, final int offset, final int length) {
+            final int keep = (int) Math.max(0, Math.min(length, (long) cap - size));
+            if (keep > 0) {
+                ensure(size + keep);
+                System.arraycopy(data, offset, kept, size, keep);
+                size += keep;
+            }
+            total += length;
+        }
+
+        /**
+         * Leaves room for the marker behind the kept bytes as well.
+         */
+        private void ensure(final int required) {
+            if (kept.length < required + SizeGuard.MARKER_UTF8.length) {
+                final byte[] grown = new byte[Math.max(required + SizeGuard.MARKER_UTF8.length, kept.length * 2)];
+                System.arraycopy(kept, 0, grown, 0, size);
+                kept = grown;
+            }
+        }
+    }
+
+    /**
+     * The event as the layout sees it, minus the throwable.
+     */
+    private static final class WithoutThrown extends AbstractLogEvent {
+        private static final long serialVersionUID = 1L;
+
+        private final transient LogEvent event;
+
+        WithoutThrown(final LogEvent event) {
+            this.event = event;
+        }
+
+        @Override
+        public LogEvent toImmutable() {
+            return this;
+        }
+
+        @Override
+        public ReadOnlyStringMap getContextData() {
+            return event.getContextData();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public Map<String, String> getContextMap() {
+            return event.getContextMap();
+        }
+
+        @Override
+        public ThreadContext.ContextStack getContextStack() {
+            return event.getContextStack();
+        }
+
+        @Override
+        public Level getLevel() {
+            return event.getLevel();
+        }
+
+        @Override
+        public String getLoggerFqcn() {
+            return event.getLoggerFqcn();
+        }
+
+        @Override
+        public String getLoggerName() {
+            return event.getLoggerName();
+        }
+
+        @Override
+        public Marker getMarker() {
+            return event.getMarker();
+        }
+
+        @Override
+        public Message getMessage() {
+            return event.getMessage();
+        }
+
+        @Override
+        public StackTraceElement getSource() {
+            return event.getSource();
+        }
+
+        @Override
+        public long getThreadId() {
+            return event.getThreadId();
+        }
+
+        @Override
+        public String getThreadName() {
+            return event.getThreadName();
+        }
+
+        @Override
+        public int getThreadPriority() {
+            return event.getThreadPriority();
+        }
+
+        @Override
+        public long getTimeMillis() {
+            return event.getTimeMillis();
+        }
+
+        @Override
+        public Instant getInstant() {
+            return event.getInstant();
+        }
+
+        @Override
+        public boolean isEndOfBatch() {
+            return event.isEndOfBatch();
+        }
+
+        @Override
+        public boolean isIncludeLocation() {
+            return event.isIncludeLocation();
+        }
+
+        @Override
+        public long getNanoTime() {
+            return event.getNanoTime();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pipeline counters updated from the logging threads and the flush thread.
+ * <p>
+ * Everything on the append path is a {@link LongAdder}, which stripes contended updates over cells instead of
+ * retrying one CAS. The queue high-water mark is only written when it actually grows.
+ */
+final class Metrics {
+
+    /**
+     * Upper bounds of the bulk latency buckets, the last bucket is unbounded.
+     */
+    static final long[] LATENCY_BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1_000, 2_000, 5_000, 10_000};
+
+    final LongAdder acceptedEvents = new LongAdder();
+    final LongAdder encodedEvents = new LongAdder();
+    final LongAdder encodingFailures = new LongAdder();
+    final LongAdder bulkRequests = new LongAdder();
+    final LongAdder bytesBeforeCompression = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    private final AtomicLong queueHighWater = new AtomicLong();
+    private final LongAdder[] latency = new LongAdder[LATENCY_BOUNDS_MILLIS.length + 1];
+
+    Metrics() {
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LongAdder();
+        }
+    }
+
+    void queueDepth(final long depth) {
+        if (depth > queueHighWater.get()) {
+            queueHighWater.accumulateAndGet(depth, Math::max);
+        }
+    }
+
+    long queueHighWater() {
+        return queueHighWater.get();
+    }
+
+    void bulkLatency(final long millis) {
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS_MILLIS.length && millis > LATENCY_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        latency[bucket].increment();
+    }
+
+    /**
+     * Request count per latency bucket, keyed by upper bound such as {@code "<=50ms"}.
+     */
+    Map<String, Long> latencyHistogram() {
+        final Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < LATENCY_BOUNDS_MILLIS.length; i++) {
+            histogram.put("<=" + LATENCY_BOUNDS_MILLIS[i] + "ms", latency[i].sum());
+        }
+        histogram.put(">" + LATENCY_BOUNDS_MILLIS[LATENCY_BOUNDS_MILLIS.length - 1] + "ms", latency[LATENCY_BOUNDS_MILLIS.length].sum());
+        return histogram;
+    }
+}
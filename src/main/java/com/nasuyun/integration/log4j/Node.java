@@ -0,0 +1,184 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One Elasticsearch endpoint with its own circuit breaker.
+ * <p>
+ * After {@code failureThreshold} consecutive failures the breaker opens and the node gets no requests for
+ * {@code openMillis}. Then a single half-open probe is let through: success closes the breaker, failure opens it
+ * again for twice as long, up to {@code maxOpenMillis}.
+ * <p>
+ * Every state change starts a new breaker generation. Each reservation is a {@link Lease} tagged with the generation
+ * it was taken in, and outcomes of leases from an older generation only free their slot: a slow request sent before
+ * the breaker opened can neither close it again nor fail the half-open probe.
+ */
+final class Node {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String url;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final long maxOpenMillis;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private State state = State.CLOSED;
+    private long generation;
+    private int failures;
+    private long openUntil;
+    private long currentOpenMillis;
+
+    Node(final String url, final int failureThreshold, final long openMillis, final long maxOpenMillis) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = Math.max(1, openMillis);
+        this.maxOpenMillis = Math.max(this.openMillis, maxOpenMillis);
+        this.currentOpenMillis = this.openMillis;
+    }
+
+    URI uri(final String path) {
+        return URI.create(url + path);
+    }
+
+    String url() {
+        return url;
+    }
+
+    /**
+     * Reserve the node for one request, switching an expired open breaker to half-open.
+     *
+     * @return null if the breaker is open or a half-open probe is already running
+     */
+    synchronized Lease tryAcquire(final long now) {
+        switch (state) {
+            case OPEN:
+                if (now < openUntil) {
+                    return null;
+                }
+                transition(State.HALF_OPEN);
+                break;
+            case HALF_OPEN:
+                return null;
+            case CLOSED:
+            default:
+                break;
+        }
+        inFlight.incrementAndGet();
+        return new Lease(this, generation);
+    }
+
+    /**
+     * Whether {@link #tryAcquire} could succeed, without reserving anything.
+     */
+    synchronized boolean isAvailable(final long now) {
+        return state == State.CLOSED || state == State.OPEN && now >= openUntil;
+    }
+
+    private synchronized void onSuccess(final long leased) {
+        inFlight.decrementAndGet();
+        if (leased != generation) {
+            return;
+        }
+        failures = 0;
+        currentOpenMillis = openMillis;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    private synchronized void release(final long leased) {
+        inFlight.decrementAndGet();
+        if (leased == generation && state == State.HALF_OPEN) {
+            transition(State.OPEN);
+        }
+    }
+
+    private synchronized void onFailure(final long now, final long leased) {
+        inFlight.decrementAndGet();
+        if (leased != generation) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            currentOpenMillis = Math.min(maxOpenMillis, currentOpenMillis * 2);
+            open(now);
+        } else if (state == State.CLOSED && ++failures >= failureThreshold) {
+            open(now);
+        }
+    }
+
+    private void open(final long now) {
+        transition(State.OPEN);
+        openUntil = now + currentOpenMillis;
+        failures = 0;
+    }
+
+    private void transition(final State next) {
+        state = next;
+        generation++;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return url + "[" + state() + ", inFlight=" + inFlight() + "]";
+    }
+
+    /**
+     * One reservation of the node. Exactly one of onSuccess, onFailure or release must be called.
+     */
+    static final class Lease {
+        private final Node node;
+        private final long generation;
+
+        private Lease(final Node node, final long generation) {
+            this.node = node;
+            this.generation = generation;
+        }
+
+        URI uri(final String path) {
+            return node.uri(path);
+        }
+
+        void onSuccess() {
+            node.onSuccess(generation);
+        }
+
+        void onFailure(final long now) {
+            node.onFailure(now, generation);
+        }
+
+        /**
+         * Give the reservation back without a verdict, a half-open node gets probed again by the next request.
+         */
+        void release() {
+            node.release(generation);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.core.config.ConfigurationException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads requests over the nodes whose circuit breaker lets them through.
+ */
+final class NodeSelector {
+
+    enum Strategy {
+        ROUND_ROBIN, LEAST_IN_FLIGHT;
+
+        /**
+         * Accepts {@code roundRobin}, {@code round-robin}, {@code ROUND_ROBIN} and so on.
+         */
+        static Strategy of(final String name) {
+            if (name == null || name.isEmpty()) {
+                return ROUND_ROBIN;
+            }
+            final String normalized = name.replace("-", "").replace("_", "").toLowerCase(Locale.ROOT);
+            for (Strategy strategy : values()) {
+                if (strategy.name().replace("_", "").toLowerCase(Locale.ROOT).equals(normalized)) {
+                    return strategy;
+                }
+            }
+            throw new ConfigurationException("Unknown loadBalancing " + name + ", expected roundRobin or leastInFlight");
+        }
+    }
+
+    private final List<Node> nodes;
+    private final Strategy strategy;
+    private final AtomicInteger next = new AtomicInteger();
+
+    NodeSelector(final List<Node> nodes, final Strategy strategy) {
+        if (nodes.isEmpty()) {
+            throw new ConfigurationException("No Elasticsearch host configured");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.strategy = strategy;
+    }
+
+    /**
+     * @param hosts comma or whitespace separated endpoint URLs
+     */
+    static NodeSelector of(final String hosts, final Strategy strategy, final int failureThreshold,
+                           final long openMillis, final long maxOpenMillis) {
+        final List<Node> nodes = new ArrayList<>();
+        if (hosts != null) {
+            for (String url : hosts.split("[,\\s]+")) {
+                if (url.isEmpty() == false) {
+                    nodes.add(new Node(url, failureThreshold, openMillis, maxOpenMillis));
+                }
+            }
+        }
+        return new NodeSelector(nodes, strategy);
+    }
+
+    /**
+     * Pick and reserve a node.
+     *
+     * @return null when every breaker is open, so the caller can fail fast
+     */
+    Node.Lease acquire() {
+        final long now = System.currentTimeMillis();
+        final int size = nodes.size();
+        if (strategy == Strategy.LEAST_IN_FLIGHT) {
+            final int start = Math.floorMod(next.getAndIncrement(), size);
+            while (true) {
+                Node best = null;
+                for (int i = 0; i < size; i++) {
+                    final Node node = nodes.get((start + i) % size);
+                    if (node.isAvailable(now) && (best == null || node.inFlight() < best.inFlight())) {
+                        best = node;
+                    }
+                }
+                if (best == null) {
+                    return null;
+                }
+                final Node.Lease lease = best.tryAcquire(now);
+                if (lease != null) {
+                    return lease;
+                }
+            }
+        }
+        final int start = Math.floorMod(next.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            final Node.Lease lease = nodes.get((start + i) % size).tryAcquire(now);
+            if (lease != null) {
+                return lease;
+            }
+        }
+        return null;
+    }
+
+    boolean anyAvailable() {
+        final long now = System.currentTimeMillis();
+        for (Node node : nodes) {
+            if (node.isAvailable(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    List<Node> nodes() {
+        return nodes;
+    }
+
+    @Override
+    public String toString() {
+        return nodes.toString();
+    }
+}
@@ -0,0 +1,51 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.core.config.ConfigurationException;
+
+/**
+ * What to do with a new event when the buffer is full.
+ */
+enum OverflowPolicy {
+    /**
+     * Wait up to blockTimeoutMillis for the flush thread to make room, then drop the new event.
+     */
+    BLOCK,
+    /**
+     * Drop the new event.
+     */
+    DROP_NEWEST,
+    /**
+     * Evict the oldest buffered event to make room for the new one.
+     */
+    DROP_OLDEST;
+
+    static OverflowPolicy of(final String name) {
+        if (name == null || name.isEmpty()) {
+            return DROP_NEWEST;
+        }
+        final String normalized = name.replace("-", "").replace("_", "");
+        for (OverflowPolicy policy : values()) {
+            if (policy.name().replace("_", "").equalsIgnoreCase(normalized)) {
+                return policy;
+            }
+        }
+        throw new ConfigurationException("Unknown overflowPolicy [" + name + "], expected block, dropNewest or dropOldest");
+    }
+}
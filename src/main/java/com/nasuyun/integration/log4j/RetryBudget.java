@@ -0,0 +1,70 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits retries to a share of the requests sent, so a struggling cluster is not hit with a retry storm.
+ * <p>
+ * Every first attempt deposits {@code ratio} tokens, every retry withdraws one. The balance starts at and is capped by
+ * {@code reserve} tokens, which lets a quiet appender still retry an occasional failure.
+ */
+final class RetryBudget {
+
+    private static final long UNIT = 1000;
+
+    private final long deposit;
+    private final long cap;
+    private final AtomicLong balance;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+
+    RetryBudget(final double ratio, final int reserve, final long baseBackoffMillis, final long maxBackoffMillis) {
+        this.deposit = (long) (Math.max(0, ratio) * UNIT);
+        this.cap = Math.max(1, reserve) * UNIT;
+        this.balance = new AtomicLong(cap);
+        this.baseBackoffMillis = Math.max(1, baseBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.baseBackoffMillis, maxBackoffMillis);
+    }
+
+    void deposit() {
+        balance.getAndUpdate(b -> Math.min(cap, b + deposit));
+    }
+
+    boolean tryWithdraw() {
+        for (; ; ) {
+            final long b = balance.get();
+            if (b < UNIT) {
+                return false;
+            }
+            if (balance.compareAndSet(b, b - UNIT)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter: a random delay between half and all of base * 2^attempt, capped.
+     */
+    long backoffMillis(final int attempt) {
+        final long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+}
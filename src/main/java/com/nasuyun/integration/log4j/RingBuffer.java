@@ -0,0 +1,179 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free ring buffer, all slots are allocated up front.
+ * <p>
+ * Each slot carries a sequence number which tells producers and consumers whether the slot is free or published,
+ * so {@link #offer(Object)} and {@link #poll()} only ever CAS a cursor and never take a lock. Many threads may
+ * produce; the flush thread is the regular consumer, producers only poll to evict under {@link OverflowPolicy#DROP_OLDEST}.
+ */
+final class RingBuffer<E> {
+
+    private final int mask;
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final LongAdder dropped = new LongAdder();
+    private final Consumer<? super E> evicted;
+
+    RingBuffer(final int capacity, final OverflowPolicy overflowPolicy, final long blockTimeoutMillis) {
+        this(capacity, overflowPolicy, blockTimeoutMillis, null);
+    }
+
+    /**
+     * @param evicted called with every element {@link OverflowPolicy#DROP_OLDEST} removes, may be null
+     */
+    RingBuffer(final int capacity, final OverflowPolicy overflowPolicy, final long blockTimeoutMillis,
+               final Consumer<? super E> evicted) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        // with a single slot "published at n" and "free for n + 1" are the same sequence, so at least two
+        int size = Integer.highestOneBit(Math.max(2, capacity));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.slots = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockTimeoutMillis));
+        this.evicted = evicted;
+    }
+
+    /**
+     * Enqueue an element, applying the overflow policy when the buffer is full.
+     *
+     * @return false if the element itself was dropped
+     */
+    boolean put(final E e) {
+        if (offer(e)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (offer(e) == false) {
+                    final E oldest = poll();
+                    if (oldest != null) {
+                        dropped.increment();
+                        if (evicted != null) {
+                            evicted.accept(oldest);
+                        }
+                    }
+                }
+                return true;
+            case BLOCK:
+                final long deadline = System.nanoTime() + blockTimeoutNanos;
+                long park = 1_000;
+                while (System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(park);
+                    if (offer(e)) {
+                        return true;
+                    }
+                    park = Math.min(park << 1, 1_000_000);
+                }
+                dropped.increment();
+                return false;
+            case DROP_NEWEST:
+            default:
+                dropped.increment();
+                return false;
+        }
+    }
+
+    boolean offer(final E e) {
+        long pos = tail.get();
+        for (; ; ) {
+            final int index = (int) (pos & mask);
+            final long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots[index] = e;
+                    sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long pos = head.get();
+        for (; ; ) {
+            final int index = (int) (pos & mask);
+            final long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    final E e = (E) slots[index];
+                    slots[index] = null;
+                    sequences.lazySet(index, pos + mask + 1);
+                    return e;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    int size() {
+        final long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Number of elements discarded by the overflow policy.
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,90 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * How often a new index is started, parsed once from the rolloverPolicy attribute.
+ */
+enum RolloverPolicy {
+    YEAR("yyyy"),
+    MONTH("yyyy.MM"),
+    DAY("yyyy.MM.dd"),
+    /**
+     * A single index without date suffix.
+     */
+    NONE(null);
+
+    private final DateTimeFormatter formatter;
+
+    RolloverPolicy(final String pattern) {
+        this.formatter = pattern == null ? null : DateTimeFormatter.ofPattern(pattern);
+    }
+
+    /**
+     * Unknown values mean no rollover, as before.
+     */
+    static RolloverPolicy of(final String name) {
+        for (RolloverPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Start of the period containing the instant.
+     */
+    ZonedDateTime periodStart(final long timeMillis, final ZoneId zone) {
+        final ZonedDateTime time = Instant.ofEpochMilli(timeMillis).atZone(zone);
+        switch (this) {
+            case YEAR:
+                return time.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1);
+            case MONTH:
+                return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+            case DAY:
+                return time.truncatedTo(ChronoUnit.DAYS);
+            default:
+                return null;
+        }
+    }
+
+    ZonedDateTime nextPeriod(final ZonedDateTime start) {
+        switch (this) {
+            case YEAR:
+                return start.plusYears(1);
+            case MONTH:
+                return start.plusMonths(1);
+            default:
+                return start.plusDays(1);
+        }
+    }
+
+    /**
+     * Suffix including the leading dash, empty for {@link #NONE}.
+     */
+    String suffix(final ZonedDateTime periodStart) {
+        return formatter == null ? "" : "-" + formatter.format(periodStart);
+    }
+}
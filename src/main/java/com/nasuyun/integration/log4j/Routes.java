@@ -0,0 +1,198 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.Strings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches events against the configured {@link IndexRoute}s. Route 0 is the default route.
+ * <p>
+ * The routes whose logger prefix matches are cached per logger name, cut off after the first route without further
+ * conditions, so an event of a known logger costs one map lookup plus the marker, level and MDC checks of the routes
+ * that have them.
+ */
+final class Routes {
+
+    private static final int MAX_CACHED_LOGGERS = 4096;
+
+    private final Route[] routes;
+    private final ConcurrentHashMap<String, Route[]> candidates = new ConcurrentHashMap<>();
+
+    /**
+     * @param rules configured routes, may be null
+     */
+    Routes(final IndexRoute[] rules, final String index, final String pipeline, final RolloverPolicy rolloverPolicy,
+           final int maxBatchActions, final long maxBatchBytes, final long lingerMillis) {
+        final int count = rules == null ? 0 : rules.length;
+        this.routes = new Route[count + 1];
+        this.routes[0] = new Route(0, null, index, pipeline, rolloverPolicy, maxBatchActions, maxBatchBytes, lingerMillis);
+        for (int i = 0; i < count; i++) {
+            final IndexRoute rule = rules[i];
+            this.routes[i + 1] = new Route(i + 1, rule, rule.index, rule.pipeline != null ? rule.pipeline : pipeline,
+                    rule.rolloverPolicy != null ? RolloverPolicy.of(rule.rolloverPolicy) : rolloverPolicy,
+                    rule.maxBatchActions > 0 ? rule.maxBatchActions : maxBatchActions,
+                    rule.maxBatchBytes > 0 ? rule.maxBatchBytes : maxBatchBytes,
+                    rule.lingerMillis >= 0 ? rule.lingerMillis : lingerMillis);
+        }
+    }
+
+    /**
+     * @return id of the first route the event matches, 0 if none does
+     */
+    int routeOf(final LogEvent event) {
+        if (routes.length == 1) {
+            return 0;
+        }
+        final String logger = event.getLoggerName() == null ? "" : event.getLoggerName();
+        Route[] matching = candidates.get(logger);
+        if (matching == null) {
+            matching = candidatesOf(logger);
+            if (candidates.size() < MAX_CACHED_LOGGERS) {
+                candidates.put(logger, matching);
+            }
+        }
+        for (Route route : matching) {
+            if (route.matches(event)) {
+                return route.id;
+            }
+        }
+        return 0;
+    }
+
+    private Route[] candidatesOf(final String logger) {
+        final List<Route> matching = new ArrayList<>();
+        for (int i = 1; i < routes.length; i++) {
+            final Route route = routes[i];
+            if (route.rule.loggerPrefix == null || logger.startsWith(route.rule.loggerPrefix)) {
+                matching.add(route);
+                if (route.unconditional()) {
+                    break;
+                }
+            }
+        }
+        return matching.toArray(new Route[0]);
+    }
+
+    Route get(final int id) {
+        return routes[id];
+    }
+
+    int size() {
+        return routes.length;
+    }
+
+    Route[] all() {
+        return routes.clone();
+    }
+
+    /**
+     * @return id of the first route writing to the index with the pipeline, 0 if there is none
+     */
+    int idOf(final String index, final String pipeline) {
+        for (Route route : routes) {
+            if (route.index.equals(index) && route.pipeline.equals(pipeline)) {
+                return route.id;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Spilled records keep only the bulk path, so routes sharing a pipeline share the smallest byte limit.
+     *
+     * @return the smallest maxBatchBytes of the routes posting to the path, the default route's if none does
+     */
+    long maxBatchBytesOf(final String path) {
+        long bytes = Long.MAX_VALUE;
+        for (Route route : routes) {
+            if (route.path.equals(path)) {
+                bytes = Math.min(bytes, route.maxBatchBytes);
+            }
+        }
+        return bytes == Long.MAX_VALUE ? routes[0].maxBatchBytes : bytes;
+    }
+
+    @Override
+    public String toString() {
+        final List<String> rules = new ArrayList<>();
+        for (int i = 1; i < routes.length; i++) {
+            rules.add(String.valueOf(routes[i].rule));
+        }
+        return rules.toString();
+    }
+
+    static final class Route {
+        final int id;
+        final String index;
+        final String pipeline;
+        final String path;
+        final IndexNames indexNames;
+        final int maxBatchActions;
+        final long maxBatchBytes;
+        final long lingerMillis;
+        /**
+         * null for the default route
+         */
+        private final IndexRoute rule;
+
+        private Route(final int id, final IndexRoute rule, final String index, final String pipeline,
+                      final RolloverPolicy rolloverPolicy, final int maxBatchActions, final long maxBatchBytes,
+                      final long lingerMillis) {
+            this.id = id;
+            this.rule = rule;
+            this.index = index;
+            this.pipeline = pipeline == null ? "" : pipeline;
+            this.path = "/_bulk" + (Strings.isEmpty(pipeline) ? "" : "?pipeline=" + pipeline);
+            this.indexNames = new IndexNames(index, rolloverPolicy);
+            this.maxBatchActions = Math.max(1, maxBatchActions);
+            this.maxBatchBytes = Math.max(1, maxBatchBytes);
+            this.lingerMillis = lingerMillis;
+        }
+
+        private boolean unconditional() {
+            return rule.marker == null && rule.level == null && rule.mdcKey == null;
+        }
+
+        /**
+         * Marker, level and MDC conditions, the logger prefix is checked by {@link #candidatesOf}.
+         */
+        private boolean matches(final LogEvent event) {
+            if (rule.marker != null) {
+                final Marker marker = event.getMarker();
+                if (marker == null || marker.isInstanceOf(rule.marker) == false) {
+                    return false;
+                }
+            }
+            if (rule.level != null && (event.getLevel() == null || event.getLevel().isMoreSpecificThan(rule.level) == false)) {
+                return false;
+            }
+            if (rule.mdcKey != null) {
+                final ReadOnlyStringMap context = event.getContextData();
+                return context != null && context.containsKey(rule.mdcKey);
+            }
+            return true;
+        }
+    }
+}
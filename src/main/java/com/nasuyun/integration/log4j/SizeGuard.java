@@ -0,0 +1,212 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte caps applied while a document is written, so one huge message or stack trace cannot blow up a bulk.
+ * <p>
+ * A string field is cut once its encoded form exceeds {@code maxFieldBytes} or the room left in the document under
+ * {@code maxDocumentBytes}; the kept prefix ends with {@link #MARKER} and the original length in bytes is recorded
+ * in a {@code truncated} object at the end of the document, e.g. {@code "truncated":{"msg":5242880}}. Lengths are
+ * counted over the characters as they are written, the value is never encoded to bytes just to be measured; they
+ * include the JSON escapes the generator writes for quotes, control characters and surrogate pairs. Keys and the
+ * fixed fields are not cut, so a document may still exceed {@code maxDocumentBytes} by those.
+ */
+final class SizeGuard {
+
+    static final String MARKER = "...[truncated]";
+    static final byte[] MARKER_UTF8 = MARKER.getBytes(StandardCharsets.UTF_8);
+    /**
+     * Room kept below maxDocumentBytes for closing the document and the truncated object.
+     */
+    static final int RESERVED_BYTES = 256;
+    /**
+     * Truncated fields recorded per document, further cuts are still applied but not listed.
+     */
+    private static final int MAX_RECORDED = 8;
+
+    private final int maxFieldBytes;
+    private final int maxDocumentBytes;
+    private final LongAdder truncatedEvents = new LongAdder();
+
+    private SizeGuard(final int maxFieldBytes, final int maxDocumentBytes) {
+        this.maxFieldBytes = maxFieldBytes;
+        this.maxDocumentBytes = maxDocumentBytes;
+    }
+
+    /**
+     * @return null when neither cap is set
+     */
+    static SizeGuard of(final int maxFieldBytes, final int maxDocumentBytes) {
+        if (maxFieldBytes <= 0 && maxDocumentBytes <= 0) {
+            return null;
+        }
+        return new SizeGuard(maxFieldBytes, maxDocumentBytes);
+    }
+
+    /**
+     * Bytes the next field may take, given the bytes of the document written so far.
+     */
+    int fieldCap(final long written) {
+        long cap = maxFieldBytes > 0 ? maxFieldBytes : Integer.MAX_VALUE;
+        if (maxDocumentBytes > 0) {
+            cap = Math.min(cap, maxDocumentBytes - RESERVED_BYTES - written);
+        }
+        return (int) Math.max(0, cap);
+    }
+
+    /**
+     * Number of leading chars to keep so the encoded text fits into cap bytes.
+     *
+     * @return {@code text.length()} if the whole text fits, otherwise a prefix length that leaves room for the marker
+     */
+    static int cut(final CharSequence text, final int cap) {
+        final int length = text.length();
+        if ((long) length * 6 <= cap) {
+            return length;
+        }
+        final int whole = fit(text, length, cap);
+        if (whole == length) {
+            return length;
+        }
+        return fit(text, whole, Math.max(0, cap - MARKER.length()));
+    }
+
+    /**
+     * Number of leading bytes to keep of a UTF-8 sequence so it fits into cap bytes without splitting a character,
+     * escapes are not counted here.
+     *
+     * @param utf8   holds at least the first {@code min(length, cap)} bytes of the sequence
+     * @param length length of the whole sequence
+     * @return {@code length} if the whole sequence fits, otherwise a prefix length that leaves room for the marker
+     */
+    static int cut(final byte[] utf8, final long length, final int cap) {
+        if (length <= cap) {
+            return (int) length;
+        }
+        int end = Math.max(0, cap - MARKER.length());
+        while (end > 0 && (utf8[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        return end;
+    }
+
+    static long encodedLength(final CharSequence text) {
+        long bytes = 0;
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            bytes += encodedLength(text, i);
+        }
+        return bytes;
+    }
+
+    private static int fit(final CharSequence text, final int length, final int cap) {
+        long bytes = 0;
+        for (int i = 0; i < length; i++) {
+            final int n = encodedLength(text, i);
+            if (bytes + n > cap) {
+                // keep surrogate pairs together
+                return i > 0 && Character.isHighSurrogate(text.charAt(i - 1)) ? i - 1 : i;
+            }
+            bytes += n;
+        }
+        return length;
+    }
+
+    /**
+     * Bytes the JSON generator writes for the char: UTF-8, escaped quotes and control characters, and each half of a
+     * surrogate pair as a six byte unicode escape.
+     */
+    private static int encodedLength(final CharSequence text, final int i) {
+        final char c = text.charAt(i);
+        if (c < 0x20) {
+            return c == '\n' || c == '\r' || c == '\t' || c == '\b' || c == '\f' ? 2 : 6;
+        }
+        if (c == '"' || c == '\\') {
+            return 2;
+        }
+        if (c < 0x80) {
+            return 1;
+        }
+        if (c < 0x800) {
+            return 2;
+        }
+        return Character.isSurrogate(c) ? 6 : 3;
+    }
+
+    /**
+     * Number of events that had at least one field cut.
+     */
+    long truncated() {
+        return truncatedEvents.sum();
+    }
+
+    @Override
+    public String toString() {
+        return maxFieldBytes + "/" + maxDocumentBytes;
+    }
+
+    /**
+     * What was cut while writing one document, reused per thread.
+     */
+    static final class Truncations {
+        private final String[] fields = new String[MAX_RECORDED];
+        private final long[] lengths = new long[MAX_RECORDED];
+        private int size;
+        private boolean any;
+
+        void reset() {
+            size = 0;
+            any = false;
+        }
+
+        void add(final String field, final long originalBytes) {
+            any = true;
+            if (size < MAX_RECORDED) {
+                fields[size] = field;
+                lengths[size++] = originalBytes;
+            }
+        }
+
+        boolean isEmpty() {
+            return any == false;
+        }
+
+        /**
+         * Writes the truncated object and counts the event, nothing when no field was cut.
+         */
+        void writeTo(final JsonGenerator generator, final SizeGuard guard) throws IOException {
+            if (any == false) {
+                return;
+            }
+            guard.truncatedEvents.increment();
+            generator.writeObjectFieldStart("truncated");
+            for (int i = 0; i < size; i++) {
+                generator.writeNumberField(fields[i], lengths[i]);
+            }
+            generator.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.TreeSet;
+
+/**
+ * Disk buffer for bulk actions that could not be delivered, made of fixed-size memory-mapped segment files.
+ * <p>
+ * Segments are named {@code spill-<sequence>.seg} and zero-filled when created. Each record is
+ * {@code [int length][short pathLength][int actionLength][path][action][source]}, a zero length marks the end of the
+ * written part of a segment. The read position is saved to {@code spill.checkpoint} by {@link #commit()}, so a
+ * restarted JVM continues with the first record that was not yet confirmed. Fully read segments are deleted.
+ * <p>
+ * All methods are synchronized: records arrive from logging threads on overflow and from the flush thread when
+ * retries are exhausted, the flush thread reads them back. Full segments are forced to disk by {@link #flush()} and
+ * {@link #commit()} outside the monitor, so a logging thread rolling over to a new segment never waits for an msync.
+ * <p>
+ * The queue holds an exclusive lock on {@code spill.lock} in the directory until {@link #close()}; a second queue on
+ * the same directory, in this JVM or another process, fails to open.
+ */
+final class SpillQueue {
+
+    private static final String PREFIX = "spill-";
+    private static final String SUFFIX = ".seg";
+    private static final String CHECKPOINT = "spill.checkpoint";
+    private static final String LOCK = "spill.lock";
+    private static final int HEADER = 4 + 2 + 4;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final TreeSet<Long> segments = new TreeSet<>();
+    /**
+     * Segments rolled over since the last flush, not yet forced to disk.
+     */
+    private final ArrayDeque<MappedByteBuffer> unforced = new ArrayDeque<>();
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    private long writeSequence;
+    private MappedByteBuffer writeSegment;
+    private long readSequence;
+    private MappedByteBuffer readSegment;
+    private int readPosition;
+    private int committedPosition;
+    private long committedSequence;
+    private long pending;
+    private long readSinceCommit;
+
+    SpillQueue(final Path directory, final long maxBytes, final int segmentBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = Math.max(64 * 1024, segmentBytes);
+        this.maxSegments = (int) Math.max(2, maxBytes / this.segmentBytes);
+        this.lockChannel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Spill directory [" + directory + "] is locked by another spill queue");
+        }
+        this.lock = lock;
+        try {
+            restore();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void restore() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        final Path checkpoint = directory.resolve(CHECKPOINT);
+        if (Files.exists(checkpoint) && Files.size(checkpoint) == 12) {
+            final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+            committedSequence = buffer.getLong();
+            committedPosition = buffer.getInt();
+        }
+        // segments older than the checkpoint were fully delivered before the restart
+        while (segments.isEmpty() == false && segments.first() < committedSequence) {
+            Files.deleteIfExists(segmentPath(segments.pollFirst()));
+        }
+        if (segments.isEmpty() || segments.first() != committedSequence) {
+            committedPosition = 0;
+        }
+        if (segments.isEmpty()) {
+            writeSequence = Math.max(committedSequence, 0);
+            writeSegment = map(writeSequence);
+            segments.add(writeSequence);
+        } else {
+            writeSequence = segments.last();
+            writeSegment = map(writeSequence);
+            writeSegment.position(endOf(writeSegment));
+        }
+        readSequence = segments.first();
+        readSegment = readSequence == writeSequence ? writeSegment.duplicate() : map(readSequence);
+        readPosition = committedPosition;
+        committedSequence = readSequence;
+        for (long sequence : segments) {
+            final MappedByteBuffer segment = sequence == writeSequence ? writeSegment : map(sequence);
+            pending += count(segment, sequence == readSequence ? readPosition : 0);
+        }
+    }
+
+    /**
+     * @return false if the record was dropped because the spill directory is full or the record too large
+     */
+    synchronized boolean offer(final String path, final byte[] action, final byte[] source) {
+        final byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        final int length = HEADER + pathBytes.length + action.length + source.length;
+        if (length + 4 > segmentBytes) {
+            return false;
+        }
+        if (writeSegment.remaining() < length + 4) {
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            try {
+                final MappedByteBuffer next = map(writeSequence + 1);
+                unforced.add(writeSegment);
+                writeSequence++;
+                writeSegment = next;
+                segments.add(writeSequence);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        final int start = writeSegment.position();
+        writeSegment.position(start + 4);
+        writeSegment.putShort((short) pathBytes.length);
+        writeSegment.putInt(action.length);
+        writeSegment.put(pathBytes);
+        writeSegment.put(action);
+        writeSegment.put(source);
+        // the length goes in last so a half written record reads as the end of the segment
+        writeSegment.putInt(start, length);
+        pending++;
+        return true;
+    }
+
+    /**
+     * Read the next record after the current read position, it is not removed until {@link #commit()}.
+     *
+     * @return false if there is nothing left to read
+     */
+    synchronized boolean poll(final Record record) {
+        for (; ; ) {
+            final int length = readPosition + 4 <= segmentBytes ? readSegment.getInt(readPosition) : 0;
+            if (length > 0) {
+                final ByteBuffer buffer = readSegment.duplicate();
+                buffer.position(readPosition + 4);
+                final byte[] path = new byte[buffer.getShort()];
+                final byte[] action = new byte[buffer.getInt()];
+                final byte[] source = new byte[length - HEADER - path.length - action.length];
+                buffer.get(path).get(action).get(source);
+                record.path = new String(path, StandardCharsets.UTF_8);
+                record.action = action;
+                record.source = source;
+                readPosition += length;
+                pending--;
+                readSinceCommit++;
+                return true;
+            }
+            if (readSequence == writeSequence) {
+                return false;
+            }
+            final Long next = segments.higher(readSequence);
+            if (next == null) {
+                return false;
+            }
+            try {
+                readSegment = next == writeSequence ? writeSegment.duplicate() : map(next);
+            } catch (IOException e) {
+                return false;
+            }
+            readSequence = next;
+            readPosition = 0;
+        }
+    }
+
+    /**
+     * Everything read so far has been handed over, persist the read position and delete finished segments.
+     */
+    void commit() {
+        // records written back by the batch being committed must reach the disk before the checkpoint moves past it
+        flush();
+        commitCheckpoint();
+    }
+
+    private synchronized void commitCheckpoint() {
+        if (readSinceCommit == 0) {
+            return;
+        }
+        readSinceCommit = 0;
+        try {
+            while (segments.first() < readSequence) {
+                Files.deleteIfExists(segmentPath(segments.pollFirst()));
+            }
+            committedSequence = readSequence;
+            committedPosition = readPosition;
+            final ByteBuffer checkpoint = ByteBuffer.allocate(12).putLong(committedSequence).putInt(committedPosition);
+            final Path tmp = directory.resolve(CHECKPOINT + ".tmp");
+            Files.write(tmp, checkpoint.array());
+            Files.move(tmp, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the next commit writes the checkpoint again
+        }
+    }
+
+    /**
+     * Forget what was read since the last commit, it is read again.
+     */
+    synchronized void rewind() {
+        if (readSequence != committedSequence) {
+            try {
+                readSegment = committedSequence == writeSequence ? writeSegment.duplicate() : map(committedSequence);
+            } catch (IOException e) {
+                return;
+            }
+        }
+        readSequence = committedSequence;
+        readPosition = committedPosition;
+        pending += readSinceCommit;
+        readSinceCommit = 0;
+    }
+
+    /**
+     * Force the rolled over segments and the current one to disk, outside the monitor.
+     */
+    void flush() {
+        final MappedByteBuffer[] rolled;
+        final MappedByteBuffer current;
+        synchronized (this) {
+            rolled = unforced.toArray(new MappedByteBuffer[0]);
+            unforced.clear();
+            current = writeSegment;
+        }
+        for (MappedByteBuffer segment : rolled) {
+            segment.force();
+        }
+        current.force();
+    }
+
+    /**
+     * Flush and release the directory lock.
+     */
+    void close() {
+        if (writeSegment != null) {
+            flush();
+        }
+        try {
+            if (lock.isValid()) {
+                lock.release();
+            }
+            lockChannel.close();
+        } catch (IOException e) {
+            // the lock goes with the channel
+        }
+    }
+
+    synchronized long size() {
+        return pending;
+    }
+
+    synchronized boolean isEmpty() {
+        return pending == 0;
+    }
+
+    private MappedByteBuffer map(final long sequence) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(sequence), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private Path segmentPath(final long sequence) {
+        return directory.resolve(String.format("%s%019d%s", PREFIX, sequence, SUFFIX));
+    }
+
+    private int endOf(final ByteBuffer segment) {
+        int position = 0;
+        int length;
+        while (position + 4 <= segmentBytes && (length = segment.getInt(position)) > 0) {
+            position += length;
+        }
+        return position;
+    }
+
+    private long count(final ByteBuffer segment, int position) {
+        long count = 0;
+        int length;
+        while (position + 4 <= segmentBytes && (length = segment.getInt(position)) > 0) {
+            position += length;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Reusable holder for {@link #poll(Record)}.
+     */
+    static final class Record {
+        String path;
+        byte[] action;
+        byte[] source;
+    }
+}
@@ -0,0 +1,92 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which stack traces were shipped recently, so a repeated throwable is sent with its fingerprint and
+ * message only.
+ * <p>
+ * The fingerprint hashes the class names and frames of a throwable and its causes, it is stable across restarts of
+ * the same build. A trace is shipped in full the first time its fingerprint is seen and again once per period, so a
+ * document that got lost only hides the trace for one period. At most {@code capacity} fingerprints are kept, least
+ * recently seen first out.
+ */
+final class StackTraceCache {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_CAUSE_DEPTH = 8;
+
+    private final long periodMillis;
+    private final Map<Long, Long> shipped;
+
+    StackTraceCache(final int capacity, final long periodMillis) {
+        this.periodMillis = periodMillis;
+        this.shipped = new LinkedHashMap<Long, Long>(Math.max(16, capacity * 2), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return true if the full trace has to be sent, i.e. it was not shipped within the period before timeMillis
+     */
+    boolean ship(final long fingerprint, final long timeMillis) {
+        synchronized (shipped) {
+            final Long last = shipped.get(fingerprint);
+            if (last != null && timeMillis - last < periodMillis && timeMillis >= last) {
+                return false;
+            }
+            shipped.put(fingerprint, timeMillis);
+            return true;
+        }
+    }
+
+    static long fingerprint(final Throwable thrown) {
+        long hash = FNV_OFFSET;
+        Throwable current = thrown;
+        for (int depth = 0; current != null && depth <= MAX_CAUSE_DEPTH; depth++) {
+            hash = hash(hash, current.getClass().getName());
+            for (StackTraceElement element : current.getStackTrace()) {
+                hash = hash(hash, element.getClassName());
+                hash = hash(hash, element.getMethodName());
+                hash = (hash ^ element.getLineNumber()) * FNV_PRIME;
+            }
+            final Throwable cause = current.getCause();
+            current = cause == current ? null : cause;
+        }
+        return hash;
+    }
+
+    static String hex(final long fingerprint) {
+        final String hex = Long.toHexString(fingerprint);
+        return hex.length() == 16 ? hex : "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    private static long hash(long hash, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash * FNV_PRIME;
+    }
+}
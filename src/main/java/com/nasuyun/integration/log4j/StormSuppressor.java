@@ -0,0 +1,288 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Keeps log storms out of the buffer.
+ * <p>
+ * Events are fingerprinted by logger, level, message template and throwable type. Within a window the first
+ * {@code suppressAfter} events of a fingerprint pass, the rest are counted and replaced by one summary event when the
+ * window ends. Events that pass are then subject to a per-appender rate limit. Fingerprints live in a striped LRU
+ * of fixed size; an evicted fingerprint reports its pending summary first.
+ */
+final class StormSuppressor {
+
+    private static final int STRIPES = 16;
+
+    private final int suppressAfter;
+    private final long windowMillis;
+    private final Consumer<LogEvent> summaries;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    /**
+     * Generic cell rate algorithm: the theoretical arrival time of the next event, in nanoseconds.
+     */
+    private final AtomicLong nextArrival = new AtomicLong(Long.MIN_VALUE);
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder summarized = new LongAdder();
+    private long rateLimitedReported;
+    private long rateLimitedWindowStart = System.currentTimeMillis();
+
+    /**
+     * @param suppressAfter      events per fingerprint and window that pass, 0 disables deduplication
+     * @param maxEventsPerSecond passing events per second, 0 disables the rate limit
+     * @param burstEvents        events the rate limit lets through at once
+     * @param summaries          receives summary events, called on the logging thread or in {@link #sweep}
+     */
+    StormSuppressor(final int suppressAfter, final long windowMillis, final int cacheSize, final int maxEventsPerSecond,
+                    final int burstEvents, final Consumer<LogEvent> summaries) {
+        this.suppressAfter = suppressAfter;
+        this.windowMillis = Math.max(1, windowMillis);
+        this.summaries = summaries;
+        final int perStripe = Math.max(1, cacheSize / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+        this.intervalNanos = maxEventsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / maxEventsPerSecond : 0;
+        this.burstNanos = intervalNanos * Math.max(1, burstEvents);
+    }
+
+    /**
+     * @return false if the event is suppressed or over the rate limit
+     */
+    boolean admit(final LogEvent event) {
+        if (suppressAfter > 0 && dedup(event) == false) {
+            suppressed.increment();
+            return false;
+        }
+        if (intervalNanos > 0 && acquire(System.nanoTime()) == false) {
+            rateLimited.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean dedup(final LogEvent event) {
+        final Message message = event.getMessage();
+        final String template = message == null ? null : message.getFormat();
+        final String thrown = event.getThrown() == null ? null : event.getThrown().getClass().getName();
+        final long hash = fingerprint(event.getLoggerName(), event.getLevel(), template, thrown);
+        final Stripe stripe = stripes[(int) (hash ^ (hash >>> 32)) & (STRIPES - 1)];
+        final long now = event.getTimeMillis();
+        LogEvent summary = null;
+        final boolean pass;
+        synchronized (stripe) {
+            Fingerprint fingerprint = stripe.get(hash);
+            if (fingerprint == null || fingerprint.matches(event.getLoggerName(), event.getLevel(), template, thrown) == false) {
+                if (fingerprint != null) {
+                    summary = fingerprint.summary(now);
+                }
+                fingerprint = new Fingerprint(event.getLoggerName(), event.getLevel(), template, thrown, now);
+                stripe.put(hash, fingerprint);
+                summary = summary != null ? summary : stripe.takeEvicted();
+            } else if (now - fingerprint.windowStart >= windowMillis) {
+                summary = fingerprint.summary(now);
+                fingerprint.reset(now);
+            }
+            pass = ++fingerprint.count <= suppressAfter;
+            if (pass == false) {
+                fingerprint.suppressed++;
+            }
+        }
+        emit(summary);
+        return pass;
+    }
+
+    private boolean acquire(final long now) {
+        for (; ; ) {
+            final long tat = nextArrival.get();
+            final long start = Math.max(tat, now);
+            if (start - now >= burstNanos) {
+                return false;
+            }
+            if (nextArrival.compareAndSet(tat, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Report the windows that ended without a later event of the same fingerprint, and the rate-limited count.
+     * Called periodically from the flush thread.
+     */
+    void sweep() {
+        final long now = System.currentTimeMillis();
+        final List<LogEvent> pending = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Fingerprint fingerprint : stripe.values()) {
+                    if (now - fingerprint.windowStart >= windowMillis && fingerprint.suppressed > 0) {
+                        pending.add(fingerprint.summary(now));
+                        fingerprint.reset(now);
+                    }
+                }
+            }
+        }
+        final long limited = rateLimited.sum();
+        if (now - rateLimitedWindowStart >= windowMillis) {
+            if (limited > rateLimitedReported) {
+                pending.add(summary(StormSuppressor.class.getName(), Level.WARN,
+                        "Rate limit dropped " + (limited - rateLimitedReported) + " events", null,
+                        limited - rateLimitedReported, rateLimitedWindowStart, now));
+            }
+            rateLimitedReported = limited;
+            rateLimitedWindowStart = now;
+        }
+        pending.forEach(this::emit);
+    }
+
+    private void emit(final LogEvent summary) {
+        if (summary != null) {
+            summarized.increment();
+            summaries.accept(summary);
+        }
+    }
+
+    long suppressed() {
+        return suppressed.sum();
+    }
+
+    long rateLimited() {
+        return rateLimited.sum();
+    }
+
+    long summarized() {
+        return summarized.sum();
+    }
+
+    private static long fingerprint(final String logger, final Level level, final String template, final String thrown) {
+        long hash = Objects.hashCode(logger);
+        hash = hash * 0x9E3779B97F4A7C15L + Objects.hashCode(level);
+        hash = hash * 0x9E3779B97F4A7C15L + Objects.hashCode(template);
+        hash = hash * 0x9E3779B97F4A7C15L + Objects.hashCode(thrown);
+        return hash ^ (hash >>> 29);
+    }
+
+    private static LogEvent summary(final String logger, final Level level, final String text, final String thrown,
+                                    final long count, final long windowStart, final long windowEnd) {
+        final SortedArrayStringMap context = new SortedArrayStringMap();
+        context.putValue("suppressed", count);
+        context.putValue("suppressedFrom", windowStart);
+        context.putValue("suppressedTo", windowEnd);
+        if (thrown != null) {
+            context.putValue("suppressedThrowable", thrown);
+        }
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(logger)
+                .setLevel(level)
+                .setMessage(new SimpleMessage(text))
+                .setContextData(context)
+                .setThreadName("log4j-es-suppressor")
+                .setTimeMillis(windowEnd)
+                .build();
+    }
+
+    private static final class Fingerprint {
+        final String logger;
+        final Level level;
+        final String template;
+        final String thrown;
+        long windowStart;
+        int count;
+        long suppressed;
+
+        Fingerprint(final String logger, final Level level, final String template, final String thrown, final long now) {
+            this.logger = logger;
+            this.level = level;
+            this.template = template;
+            this.thrown = thrown;
+            this.windowStart = now;
+        }
+
+        boolean matches(final String logger, final Level level, final String template, final String thrown) {
+            return Objects.equals(this.logger, logger) && this.level == level
+                    && Objects.equals(this.template, template) && Objects.equals(this.thrown, thrown);
+        }
+
+        void reset(final long now) {
+            windowStart = now;
+            count = 0;
+            suppressed = 0;
+        }
+
+        /**
+         * @return the summary of the current window, null if nothing was suppressed
+         */
+        LogEvent summary(final long now) {
+            if (suppressed == 0) {
+                return null;
+            }
+            return StormSuppressor.summary(logger, level, "Suppressed " + suppressed + " repeats of: " + template
+                    + (thrown == null ? "" : " [" + thrown + "]"), thrown, suppressed, windowStart, now);
+        }
+    }
+
+    /**
+     * Access-ordered LRU, guarded by its own monitor.
+     */
+    private static final class Stripe extends LinkedHashMap<Long, Fingerprint> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private LogEvent evicted;
+
+        Stripe(final int capacity) {
+            super(capacity * 2, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, Fingerprint> eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+            evicted = eldest.getValue().summary(System.currentTimeMillis());
+            return true;
+        }
+
+        LogEvent takeEvicted() {
+            final LogEvent summary = evicted;
+            evicted = null;
+            return summary;
+        }
+    }
+}
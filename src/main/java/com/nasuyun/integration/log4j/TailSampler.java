@@ -0,0 +1,295 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.ConfigurationException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds recent low-level events in memory and only lets them through when an ERROR follows.
+ * <p>
+ * Events at or below the sampling level are kept per key, the value of an MDC key such as a trace id or else the
+ * thread name, in a ring of the last {@code maxEvents}. An ERROR or FATAL event releases the held events of its key
+ * that are at most {@code periodMillis} older than itself, oldest first; everything else is discarded when it falls
+ * out of its ring, expires or is evicted. Events are held encoded, so their memory is known exactly: every held event
+ * and key is charged with its bytes plus a fixed overhead against {@code maxBytes}, split evenly over the stripes,
+ * and the least recently used keys lose their oldest events first when a stripe is full.
+ */
+final class TailSampler {
+
+    private static final int STRIPES = 16;
+    /**
+     * Charged per held event on top of its source: the EncodedEvent, the array header and the ring slot.
+     */
+    static final int EVENT_OVERHEAD = 64;
+    /**
+     * Charged per key on top of its chars: the map entry, the ring and the key String.
+     */
+    static final int KEY_OVERHEAD = 128;
+
+    private final Level level;
+    private final String mdcKey;
+    private final int maxEvents;
+    private final long periodMillis;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder held = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    /**
+     * @param level  events at or below this level are held, e.g. DEBUG holds DEBUG and TRACE
+     * @param mdcKey context key the events are grouped by, null or empty groups them by thread
+     */
+    TailSampler(final Level level, final String mdcKey, final int maxEvents, final long periodMillis, final long maxBytes) {
+        this.level = level;
+        this.mdcKey = mdcKey == null || mdcKey.isEmpty() ? null : mdcKey;
+        this.maxEvents = Math.max(1, maxEvents);
+        this.periodMillis = Math.max(1, periodMillis);
+        final long perStripe = Math.max(0, maxBytes / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * @return null when the level attribute is empty, tail sampling is off then
+     */
+    static TailSampler of(final String level, final String mdcKey, final int maxEvents, final long periodMillis,
+                          final long maxBytes) {
+        if (level == null || level.isEmpty()) {
+            return null;
+        }
+        return new TailSampler(levelOf(level), mdcKey, maxEvents, periodMillis, maxBytes);
+    }
+
+    /**
+     * @throws ConfigurationException for ERROR and above: those events release the held ones and are never held
+     */
+    static Level levelOf(final String name) {
+        final Level level = Level.toLevel(name, Level.DEBUG);
+        if (level.isMoreSpecificThan(Level.ERROR)) {
+            throw new ConfigurationException("tailSamplingLevel [" + name + "] must be below ERROR, ERROR events release the held ones");
+        }
+        return level;
+    }
+
+    boolean holds(final LogEvent event) {
+        return event.getLevel() != null && event.getLevel().isLessSpecificThan(level);
+    }
+
+    boolean triggers(final LogEvent event) {
+        return event.getLevel() != null && event.getLevel().isMoreSpecificThan(Level.ERROR);
+    }
+
+    String keyOf(final LogEvent event) {
+        if (mdcKey != null && event.getContextData() != null) {
+            final Object value = event.getContextData().getValue(mdcKey);
+            if (value != null) {
+                return String.valueOf(value);
+            }
+        }
+        return event.getThreadName();
+    }
+
+    /**
+     * Keeps the encoded event under its key, it is discarded right away if it alone exceeds a stripe's budget.
+     */
+    void hold(final String key, final EncodedEvent event) {
+        final Stripe stripe = stripeOf(key);
+        final long cost = cost(event);
+        int dropped = 0;
+        synchronized (stripe) {
+            Ring ring = stripe.get(key);
+            if (cost + keyCost(key) > stripe.maxBytes) {
+                dropped = 1;
+            } else {
+                if (ring != null && ring.events.size() >= maxEvents) {
+                    stripe.bytes -= cost(ring.events.poll());
+                    dropped++;
+                }
+                final long needed = cost + (ring == null ? keyCost(key) : 0);
+                dropped += stripe.evict(needed - (stripe.maxBytes - stripe.bytes), key);
+                if (ring == null) {
+                    ring = new Ring();
+                    stripe.put(key, ring);
+                    stripe.bytes += keyCost(key);
+                }
+                ring.events.add(event);
+                stripe.bytes += cost;
+                held.increment();
+            }
+        }
+        if (dropped > 0) {
+            discarded.add(dropped);
+        }
+    }
+
+    /**
+     * Removes the held events of the key and returns those not older than the period before timeMillis, oldest first.
+     */
+    List<EncodedEvent> release(final String key, final long timeMillis) {
+        final Stripe stripe = stripeOf(key);
+        final Ring ring;
+        synchronized (stripe) {
+            ring = stripe.remove(key);
+            if (ring == null) {
+                return Collections.emptyList();
+            }
+            stripe.bytes -= keyCost(key) + ring.bytes();
+        }
+        final List<EncodedEvent> events = new ArrayList<>(ring.events.size());
+        for (EncodedEvent event : ring.events) {
+            if (timeMillis - event.timeMillis <= periodMillis) {
+                events.add(event);
+            }
+        }
+        released.add(events.size());
+        discarded.add(ring.events.size() - events.size());
+        return events;
+    }
+
+    /**
+     * Drops events older than the period and keys left empty. Called periodically from the flush thread.
+     */
+    void sweep(final long now) {
+        long dropped = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                final Iterator<Map.Entry<String, Ring>> it = stripe.entrySet().iterator();
+                while (it.hasNext()) {
+                    final Map.Entry<String, Ring> entry = it.next();
+                    final ArrayDeque<EncodedEvent> events = entry.getValue().events;
+                    while (events.isEmpty() == false && now - events.peek().timeMillis > periodMillis) {
+                        stripe.bytes -= cost(events.poll());
+                        dropped++;
+                    }
+                    if (events.isEmpty()) {
+                        stripe.bytes -= keyCost(entry.getKey());
+                        it.remove();
+                    }
+                }
+            }
+        }
+        discarded.add(dropped);
+    }
+
+    /**
+     * Bytes currently charged, never more than maxBytes.
+     */
+    long heldBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    long held() {
+        return held.sum();
+    }
+
+    long released() {
+        return released.sum();
+    }
+
+    long discarded() {
+        return discarded.sum();
+    }
+
+    private Stripe stripeOf(final String key) {
+        final int h = key == null ? 0 : key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static long cost(final EncodedEvent event) {
+        return event.source.length + EVENT_OVERHEAD;
+    }
+
+    private static long keyCost(final String key) {
+        return KEY_OVERHEAD + (key == null ? 0 : 2L * key.length());
+    }
+
+    private static final class Ring {
+        final ArrayDeque<EncodedEvent> events = new ArrayDeque<>();
+
+        long bytes() {
+            long bytes = 0;
+            for (EncodedEvent event : events) {
+                bytes += cost(event);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Access-ordered map of keys, guarded by its own monitor.
+     */
+    private static final class Stripe extends LinkedHashMap<String, Ring> {
+        private static final long serialVersionUID = 1L;
+
+        final long maxBytes;
+        long bytes;
+
+        Stripe(final long maxBytes) {
+            super(16, 0.75f, true);
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Frees at least {@code excess} bytes, oldest events of the least recently used keys first; the key being
+         * written keeps its ring object even when emptied.
+         *
+         * @return number of discarded events
+         */
+        int evict(long excess, final String keep) {
+            int dropped = 0;
+            final Iterator<Map.Entry<String, Ring>> it = entrySet().iterator();
+            while (excess > 0 && it.hasNext()) {
+                final Map.Entry<String, Ring> entry = it.next();
+                final ArrayDeque<EncodedEvent> events = entry.getValue().events;
+                while (excess > 0 && events.isEmpty() == false) {
+                    final long cost = cost(events.poll());
+                    bytes -= cost;
+                    excess -= cost;
+                    dropped++;
+                }
+                if (events.isEmpty() && Objects.equals(entry.getKey(), keep) == false) {
+                    final long cost = keyCost(entry.getKey());
+                    bytes -= cost;
+                    excess -= cost;
+                    it.remove();
+                }
+            }
+            return dropped;
+        }
+    }
+}
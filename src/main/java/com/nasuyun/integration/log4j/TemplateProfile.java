@@ -0,0 +1,73 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+
+/**
+ * Which kind of index template the appender installs, parsed once from the templateProfile attribute.
+ */
+enum TemplateProfile {
+    /**
+     * Legacy template matching {@code <index>-*}, events are written with index actions into dated indices.
+     */
+    LEGACY("5s", false),
+    /**
+     * Composable template with a data stream per route index, events are written with create actions and the
+     * backing indices are rolled over by an ILM policy. Needs Elasticsearch 7.9 or later, older clusters fall back
+     * to {@link #LEGACY}. Log data streams are append-only and rarely searched within seconds, so the refresh
+     * interval is longer and the backing indices use best_compression. Every document needs {@code @timestamp}.
+     */
+    DATA_STREAM("30s", true);
+
+    /**
+     * Used when the refreshInterval attribute is not set.
+     */
+    final String refreshInterval;
+    /**
+     * Used when the bestCompression attribute is not set.
+     */
+    final boolean bestCompression;
+
+    TemplateProfile(final String refreshInterval, final boolean bestCompression) {
+        this.refreshInterval = refreshInterval;
+        this.bestCompression = bestCompression;
+    }
+
+    /**
+     * Accepts {@code dataStream}, {@code data_stream} and {@code data-stream}; unknown values mean {@link #LEGACY}.
+     */
+    static TemplateProfile of(final String name) {
+        if (name == null) {
+            return LEGACY;
+        }
+        final String normalized = name.replace("_", "").replace("-", "");
+        for (TemplateProfile profile : values()) {
+            if (profile.name().replace("_", "").equalsIgnoreCase(normalized)) {
+                return profile;
+            }
+        }
+        return LEGACY;
+    }
+
+    /**
+     * Data streams and composable templates arrived in 7.9.
+     */
+    static boolean supportsDataStreams(final int major, final int minor) {
+        return major > 7 || major == 7 && minor >= 9;
+    }
+}
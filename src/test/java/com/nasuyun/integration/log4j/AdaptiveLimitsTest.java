@@ -0,0 +1,114 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveLimitsTest {
+
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(50);
+
+    @Test
+    public void rejectedBulkHalvesConcurrency() {
+        rejectedBulkHalvesConcurrency(TimeUnit.DAYS.toNanos(3));
+    }
+
+    @Test
+    public void overloadWithNegativeNanoTime() {
+        rejectedBulkHalvesConcurrency(-TimeUnit.DAYS.toNanos(3));
+    }
+
+    private void rejectedBulkHalvesConcurrency(final long now) {
+        final AtomicInteger resized = new AtomicInteger();
+        final AdaptiveLimits limits = new AdaptiveLimits(true, 8, 100, 1000, 2.0, resized::set);
+
+        limits.onSample(now, RTT, 1000, 1000);
+
+        assertEquals(4, limits.concurrencyLimit());
+        assertEquals(1000, limits.batchActionsLimit());
+        assertEquals(1, limits.decreases());
+        assertEquals(4, resized.get());
+    }
+
+    @Test
+    public void samplesSentBeforeDecreaseDoNotLowerAgain() {
+        final long now = TimeUnit.DAYS.toNanos(3);
+        final AdaptiveLimits limits = new AdaptiveLimits(true, 8, 100, 1000, 2.0, limit -> {
+        });
+
+        limits.onSample(now, RTT, 1000, 1000);
+        // sent while the first bulk was in flight, it reports the same congestion
+        limits.onSample(now + RTT / 2, RTT, 1000, 1000);
+        limits.onSample(now + RTT, RTT, 1000, 1000);
+        assertEquals(4, limits.concurrencyLimit());
+        assertEquals(1000, limits.batchActionsLimit());
+        assertEquals(1, limits.decreases());
+
+        limits.onSample(now + RTT + 1, RTT, 1000, 1000);
+        assertEquals(2, limits.concurrencyLimit());
+        assertEquals(1000, limits.batchActionsLimit());
+        assertEquals(2, limits.decreases());
+    }
+
+    @Test
+    public void rejectedItemsLowerByHalfTheirShare() {
+        final AdaptiveLimits limits = new AdaptiveLimits(true, 8, 100, 1000, 2.0, limit -> {
+        });
+        limits.onSample(TimeUnit.DAYS.toNanos(3), RTT, 1000, 100);
+        assertEquals(7, limits.concurrencyLimit());
+        assertEquals(1000, limits.batchActionsLimit());
+        assertEquals(1, limits.decreases());
+    }
+
+    @Test
+    public void probesTheOverloadedConcurrencySlowly() {
+        final long now = TimeUnit.DAYS.toNanos(3);
+        final AdaptiveLimits limits = new AdaptiveLimits(true, 8, 100, 1000, 2.0, limit -> {
+        });
+        limits.onSample(now, RTT, 1000, 1000);
+        limits.onSample(now + RTT + 1, RTT, 1000, 1000);
+        limits.onSample(now + 2 * RTT + 2, RTT, 1000, 1000);
+        assertEquals(1, limits.concurrencyLimit());
+
+        // back to 2, where the last 429 came from, takes more than PROBE_SLOWDOWN samples instead of one
+        long start = now + 3 * RTT + 3;
+        int samples = 0;
+        while (limits.concurrencyLimit() < 2) {
+            limits.onSample(start += RTT, RTT, 1000, 0);
+            samples++;
+        }
+        assertTrue(String.valueOf(samples), samples > AdaptiveLimits.PROBE_SLOWDOWN);
+        assertTrue(String.valueOf(samples), samples < 2 * AdaptiveLimits.PROBE_SLOWDOWN);
+    }
+
+    @Test
+    public void disabledKeepsFixedLimits() {
+        final AdaptiveLimits limits = new AdaptiveLimits(false, 8, 100, 1000, 2.0, limit -> {
+        });
+        limits.onSample(TimeUnit.DAYS.toNanos(3), RTT, 1000, 1000);
+        assertEquals(8, limits.concurrencyLimit());
+        assertEquals(1000, limits.batchActionsLimit());
+        assertEquals(0, limits.decreases());
+    }
+}
@@ -0,0 +1,100 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BulkResponseTest {
+
+    @Test
+    public void successfulResponseIsNotWalked() throws IOException {
+        // the items would fail to parse, errors:false stops before them
+        assertSame(BulkResponse.OK, parse("{\"took\":3,\"errors\":false,\"items\":[{\"index\":{\"status\":\"x\"}}]}"));
+        assertSame(BulkResponse.OK, parse("{\"took\":3}"));
+        assertEquals(0, BulkResponse.OK.failed());
+    }
+
+    @Test
+    public void collectsFailedPositionsAndStatuses() throws IOException {
+        final BulkResponse response = parse("{\"took\":3,\"errors\":true,\"items\":["
+                + "{\"index\":{\"_index\":\"logs\",\"_id\":\"1\",\"status\":201,\"result\":\"created\",\"_shards\":{\"total\":2}}},"
+                + "{\"create\":{\"_index\":\"logs\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\","
+                + "\"reason\":\"failed\",\"caused_by\":{\"type\":\"illegal_argument_exception\"}}}},"
+                + "{\"index\":{\"_index\":\"logs\",\"status\":200}},"
+                + "{\"index\":{\"_index\":\"logs\",\"status\":503,\"error\":{\"type\":\"unavailable_shards_exception\"}}}]}");
+        assertEquals(2, response.failed());
+        assertEquals(1, response.position(0));
+        assertEquals(400, response.status(0));
+        assertEquals(3, response.position(1));
+        assertEquals(503, response.status(1));
+        assertEquals(0, response.rejected());
+    }
+
+    @Test
+    public void growsPastSixteenFailures() throws IOException {
+        final StringBuilder body = new StringBuilder("{\"errors\":true,\"items\":[");
+        for (int i = 0; i < 40; i++) {
+            body.append(i == 0 ? "" : ",").append("{\"index\":{\"status\":").append(i % 2 == 0 ? 201 : 500).append("}}");
+        }
+        final BulkResponse response = parse(body.append("]}").toString());
+        assertEquals(20, response.failed());
+        assertEquals(39, response.position(19));
+    }
+
+    @Test
+    public void countsRejectedItems() throws IOException {
+        final BulkResponse response = parse("{\"errors\":true,\"items\":["
+                + "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}},"
+                + "{\"index\":{\"status\":429}},"
+                // older clusters answer a full write queue with 503 and the same error type
+                + "{\"index\":{\"status\":503,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"queue full\"}}},"
+                + "{\"index\":{\"status\":409,\"error\":{\"type\":\"version_conflict_engine_exception\"}}}]}");
+        assertEquals(4, response.failed());
+        assertEquals(3, response.rejected());
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedBodyThrows() throws IOException {
+        parse("{\"errors\":true,\"items\":[{\"index\":{\"status\":");
+    }
+
+    @Test(expected = IOException.class)
+    public void nonObjectBodyThrows() throws IOException {
+        parse("<html>Bad Gateway</html>");
+    }
+
+    @Test
+    public void retryableStatuses() {
+        assertTrue(BulkResponse.isRetryable(429));
+        assertTrue(BulkResponse.isRetryable(503));
+        assertFalse(BulkResponse.isRetryable(400));
+        assertFalse(BulkResponse.isRetryable(500));
+    }
+
+    private static BulkResponse parse(final String body) throws IOException {
+        return BulkResponse.parse(body.getBytes(StandardCharsets.UTF_8));
+    }
+}
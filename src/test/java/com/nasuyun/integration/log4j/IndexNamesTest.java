@@ -0,0 +1,121 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IndexNamesTest {
+
+    @Test
+    public void dailyIndexChangesAtMidnight() {
+        final IndexNames names = new IndexNames("logs", RolloverPolicy.DAY, ZoneOffset.UTC);
+        final IndexNames.Period day = names.periodOf(utc(2024, 3, 9, 23, 59, 59, 999), 7);
+        assertEquals("logs-2024.03.09", day.index);
+        assertEquals(utc(2024, 3, 9, 0, 0, 0, 0), day.start);
+        assertEquals(utc(2024, 3, 10, 0, 0, 0, 0), day.end);
+        assertSame(day, names.periodOf(utc(2024, 3, 9, 0, 0, 0, 0), 7));
+        assertEquals("logs-2024.03.10", names.periodOf(utc(2024, 3, 10, 0, 0, 0, 0), 7).index);
+    }
+
+    @Test
+    public void lateEventDoesNotReplaceTheCurrentPeriod() {
+        final IndexNames names = new IndexNames("logs", RolloverPolicy.DAY, ZoneOffset.UTC);
+        final IndexNames.Period today = names.periodOf(utc(2024, 3, 10, 0, 0, 1, 0), 7);
+        // logged just before midnight, flushed just after
+        final IndexNames.Period yesterday = names.periodOf(utc(2024, 3, 9, 23, 59, 59, 0), 7);
+        assertEquals("logs-2024.03.09", yesterday.index);
+        assertSame(today, names.periodOf(utc(2024, 3, 10, 12, 0, 0, 0), 7));
+    }
+
+    @Test
+    public void periodsFollowTheZone() {
+        final IndexNames names = new IndexNames("logs", RolloverPolicy.DAY, ZoneId.of("Asia/Shanghai"));
+        // 16:00 UTC is midnight in UTC+8
+        assertEquals("logs-2024.03.09", names.periodOf(utc(2024, 3, 9, 15, 59, 59, 0), 7).index);
+        assertEquals("logs-2024.03.10", names.periodOf(utc(2024, 3, 9, 16, 0, 0, 0), 7).index);
+    }
+
+    @Test
+    public void monthAndYearRollOverAtNewYear() {
+        final IndexNames monthly = new IndexNames("logs", RolloverPolicy.MONTH, ZoneOffset.UTC);
+        final IndexNames.Period december = monthly.periodOf(utc(2023, 12, 31, 23, 59, 59, 999), 7);
+        assertEquals("logs-2023.12", december.index);
+        assertEquals(utc(2023, 12, 1, 0, 0, 0, 0), december.start);
+        assertEquals(utc(2024, 1, 1, 0, 0, 0, 0), december.end);
+        assertEquals("logs-2024.01", monthly.periodOf(utc(2024, 1, 1, 0, 0, 0, 0), 7).index);
+        // February of a leap year
+        assertEquals(utc(2024, 3, 1, 0, 0, 0, 0), monthly.periodOf(utc(2024, 2, 29, 12, 0, 0, 0), 7).end);
+
+        final IndexNames yearly = new IndexNames("logs", RolloverPolicy.YEAR, ZoneOffset.UTC);
+        assertEquals("logs-2023", yearly.periodOf(utc(2023, 12, 31, 23, 59, 59, 999), 7).index);
+        final IndexNames.Period year = yearly.periodOf(utc(2024, 1, 1, 0, 0, 0, 0), 7);
+        assertEquals("logs-2024", year.index);
+        assertEquals(utc(2025, 1, 1, 0, 0, 0, 0), year.end);
+    }
+
+    @Test
+    public void noRolloverKeepsOneIndex() {
+        final IndexNames names = new IndexNames("logs", RolloverPolicy.NONE, ZoneOffset.UTC);
+        final IndexNames.Period period = names.periodOf(utc(2024, 3, 9, 0, 0, 0, 0), 7);
+        assertEquals("logs", period.index);
+        assertTrue(period.contains(0));
+        assertSame(period, names.periodOf(utc(2030, 1, 1, 0, 0, 0, 0), 7));
+    }
+
+    @Test
+    public void typeOnlyUpToSix() {
+        final IndexNames names = new IndexNames("logs", RolloverPolicy.NONE, ZoneOffset.UTC);
+        assertEquals("{ \"index\" : { \"_index\" : \"logs\",\"_type\":\"_doc\"}}\n", line(names.periodOf(0, 6)));
+        final IndexNames.Period seven = names.periodOf(0, 7);
+        assertEquals("{ \"index\" : { \"_index\" : \"logs\"}}\n", line(seven));
+        assertFalse(line(names.periodOf(0, 8)).contains("_type"));
+        assertNotSame(seven, names.periodOf(0, 8));
+    }
+
+    @Test
+    public void dataStreamUsesCreateOnTheBaseName() {
+        final IndexNames names = new IndexNames("logs", RolloverPolicy.DAY, ZoneOffset.UTC);
+        final IndexNames.Period stream = names.periodOf(utc(2024, 3, 9, 0, 0, 0, 0), 8, true);
+        assertEquals("logs", stream.index);
+        assertEquals("{ \"create\" : { \"_index\" : \"logs\"}}\n", line(stream));
+        assertSame(stream, names.periodOf(utc(2024, 3, 10, 0, 0, 0, 0), 8, true));
+        // the daily index is unaffected
+        assertEquals("logs-2024.03.10", names.periodOf(utc(2024, 3, 10, 0, 0, 0, 0), 8).index);
+    }
+
+    private static String line(final IndexNames.Period period) {
+        return new String(period.actionLine, StandardCharsets.UTF_8);
+    }
+
+    private static long utc(final int year, final int month, final int day, final int hour, final int minute,
+                            final int second, final int millis) {
+        return ZonedDateTime.of(year, month, day, hour, minute, second, millis * 1_000_000, ZoneOffset.UTC)
+                .toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,168 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertEquals(8, new RingBuffer<Integer>(5, OverflowPolicy.DROP_NEWEST, 0).capacity());
+        assertEquals(8, new RingBuffer<Integer>(8, OverflowPolicy.DROP_NEWEST, 0).capacity());
+        assertEquals(2, new RingBuffer<Integer>(1, OverflowPolicy.DROP_NEWEST, 0).capacity());
+    }
+
+    @Test
+    public void pollsInFifoOrderAcrossWrapAround() {
+        final RingBuffer<Integer> ring = new RingBuffer<>(4, OverflowPolicy.DROP_NEWEST, 0);
+        int next = 0;
+        for (int round = 0; round < 10; round++) {
+            assertTrue(ring.offer(round * 3));
+            assertTrue(ring.offer(round * 3 + 1));
+            assertTrue(ring.offer(round * 3 + 2));
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(next++), ring.poll());
+            }
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void dropNewestKeepsTheBufferedElements() {
+        final RingBuffer<Integer> ring = new RingBuffer<>(2, OverflowPolicy.DROP_NEWEST, 0);
+        assertTrue(ring.put(1));
+        assertTrue(ring.put(2));
+        assertFalse(ring.put(3));
+        assertEquals(1, ring.dropped());
+        assertEquals(Integer.valueOf(1), ring.poll());
+        assertEquals(Integer.valueOf(2), ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void dropOldestEvictsAndReportsTheOldest() {
+        final List<Integer> evicted = new ArrayList<>();
+        final RingBuffer<Integer> ring = new RingBuffer<>(2, OverflowPolicy.DROP_OLDEST, 0, evicted::add);
+        ring.put(1);
+        ring.put(2);
+        assertTrue(ring.put(3));
+        assertTrue(ring.put(4));
+        assertEquals(2, ring.dropped());
+        assertEquals(List.of(1, 2), evicted);
+        assertEquals(Integer.valueOf(3), ring.poll());
+        assertEquals(Integer.valueOf(4), ring.poll());
+    }
+
+    @Test
+    public void blockDropsAfterTheTimeout() {
+        final RingBuffer<Integer> ring = new RingBuffer<>(2, OverflowPolicy.BLOCK, 20);
+        ring.put(1);
+        ring.put(2);
+        final long start = System.nanoTime();
+        assertFalse(ring.put(3));
+        assertTrue(System.nanoTime() - start >= 20_000_000);
+        assertEquals(1, ring.dropped());
+    }
+
+    @Test
+    public void blockWaitsForTheConsumer() throws InterruptedException {
+        final RingBuffer<Integer> ring = new RingBuffer<>(2, OverflowPolicy.BLOCK, 10_000);
+        ring.put(1);
+        ring.put(2);
+        final Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ring.poll();
+        });
+        consumer.start();
+        assertTrue(ring.put(3));
+        consumer.join();
+        assertEquals(0, ring.dropped());
+        assertEquals(Integer.valueOf(2), ring.poll());
+        assertEquals(Integer.valueOf(3), ring.poll());
+    }
+
+    /**
+     * Every element is either polled exactly once or counted as dropped, and each producer's elements stay in order.
+     */
+    @Test
+    public void concurrentProducersAndConsumerLoseNothing() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 50_000;
+        final RingBuffer<long[]> ring = new RingBuffer<>(64, OverflowPolicy.DROP_NEWEST, 0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    ring.put(new long[]{producer, i});
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final ConcurrentLinkedQueue<long[]> polled = new ConcurrentLinkedQueue<>();
+        final Thread consumer = new Thread(() -> {
+            while (done.get() == false || ring.isEmpty() == false) {
+                final long[] e = ring.poll();
+                if (e != null) {
+                    polled.add(e);
+                }
+            }
+        });
+        consumer.start();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        consumer.join();
+
+        assertEquals((long) producers * perProducer, polled.size() + ring.dropped());
+        final long[] last = new long[producers];
+        Arrays.fill(last, -1);
+        for (long[] e : polled) {
+            assertTrue(e[1] > last[(int) e[0]]);
+            last[(int) e[0]] = e[1];
+        }
+    }
+}
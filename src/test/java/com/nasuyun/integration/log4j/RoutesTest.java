@@ -0,0 +1,166 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.ConfigurationException;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RoutesTest {
+
+    private static final Marker AUDIT = MarkerManager.getMarker("AUDIT");
+    private static final Marker LOGIN = MarkerManager.getMarker("LOGIN").setParents(AUDIT);
+
+    @Test
+    public void withoutRulesEverythingGoesToTheDefault() {
+        final Routes routes = routes();
+        assertEquals(1, routes.size());
+        assertEquals(0, routes.routeOf(event("com.example.Foo", Level.ERROR, AUDIT, "traceId")));
+        assertEquals("log4j", routes.get(0).index);
+        assertEquals("/_bulk", routes.get(0).path);
+    }
+
+    @Test
+    public void matchesLoggerPrefix() {
+        final Routes routes = routes(route("access").setLoggerPrefix("com.example.access"));
+        assertEquals(1, routes.routeOf(event("com.example.access.Http", Level.INFO, null, null)));
+        assertEquals(0, routes.routeOf(event("com.example.Foo", Level.INFO, null, null)));
+        assertEquals(0, routes.routeOf(event(null, Level.INFO, null, null)));
+        // cached per logger
+        assertEquals(1, routes.routeOf(event("com.example.access.Http", Level.INFO, null, null)));
+    }
+
+    @Test
+    public void matchesMarkerAndItsDescendants() {
+        final Routes routes = routes(route("audit").setMarker("AUDIT"));
+        assertEquals(1, routes.routeOf(event("a", Level.INFO, AUDIT, null)));
+        assertEquals(1, routes.routeOf(event("a", Level.INFO, LOGIN, null)));
+        assertEquals(0, routes.routeOf(event("a", Level.INFO, MarkerManager.getMarker("OTHER"), null)));
+        assertEquals(0, routes.routeOf(event("a", Level.INFO, null, null)));
+    }
+
+    @Test
+    public void matchesLevelAndMoreSevere() {
+        final Routes routes = routes(route("errors").setLevel("warn"));
+        assertEquals(1, routes.routeOf(event("a", Level.WARN, null, null)));
+        assertEquals(1, routes.routeOf(event("a", Level.FATAL, null, null)));
+        assertEquals(0, routes.routeOf(event("a", Level.INFO, null, null)));
+    }
+
+    @Test
+    public void matchesMdcKey() {
+        final Routes routes = routes(route("traced").setMdcKey("traceId"));
+        assertEquals(1, routes.routeOf(event("a", Level.INFO, null, "traceId")));
+        assertEquals(0, routes.routeOf(event("a", Level.INFO, null, "spanId")));
+        assertEquals(0, routes.routeOf(event("a", Level.INFO, null, null)));
+    }
+
+    @Test
+    public void firstMatchingRouteWins() {
+        final Routes routes = routes(
+                route("audit").setLoggerPrefix("com.example").setMarker("AUDIT"),
+                route("example").setLoggerPrefix("com.example"),
+                // never reached for com.example loggers, the route before has no further conditions
+                route("errors").setLevel("ERROR"),
+                route("all"));
+        assertEquals(1, routes.routeOf(event("com.example.Foo", Level.ERROR, LOGIN, null)));
+        assertEquals(2, routes.routeOf(event("com.example.Foo", Level.ERROR, null, null)));
+        assertEquals(3, routes.routeOf(event("org.other.Bar", Level.ERROR, null, null)));
+        assertEquals(4, routes.routeOf(event("org.other.Bar", Level.INFO, null, null)));
+    }
+
+    @Test
+    public void unsetSettingsFallBackToTheAppender() {
+        final Routes routes = routes(
+                route("audit").setPipeline("geoip").setMaxBatchActions(50).setMaxBatchBytes(4096).setLingerMillis(0),
+                route("access"));
+        final Routes.Route audit = routes.get(1);
+        assertEquals("geoip", audit.pipeline);
+        assertEquals("/_bulk?pipeline=geoip", audit.path);
+        assertEquals(50, audit.maxBatchActions);
+        assertEquals(4096, audit.maxBatchBytes);
+        assertEquals(0, audit.lingerMillis);
+        final Routes.Route access = routes.get(2);
+        assertEquals("", access.pipeline);
+        assertEquals("/_bulk", access.path);
+        assertEquals(1000, access.maxBatchActions);
+        assertEquals(1 << 20, access.maxBatchBytes);
+        assertEquals(100, access.lingerMillis);
+    }
+
+    @Test
+    public void idOfIndexAndPipeline() {
+        final Routes routes = routes(route("audit"), route("audit").setPipeline("geoip"));
+        assertEquals(0, routes.idOf("log4j", ""));
+        assertEquals(1, routes.idOf("audit", ""));
+        assertEquals(2, routes.idOf("audit", "geoip"));
+        assertEquals(0, routes.idOf("unknown", ""));
+    }
+
+    @Test
+    public void maxBatchBytesOfTheSmallestRouteOnThePath() {
+        final Routes routes = routes(route("audit").setMaxBatchBytes(4096), route("geo").setPipeline("geoip").setMaxBatchBytes(8192));
+        assertEquals(4096, routes.maxBatchBytesOf("/_bulk"));
+        assertEquals(8192, routes.maxBatchBytesOf("/_bulk?pipeline=geoip"));
+        assertEquals(1 << 20, routes.maxBatchBytesOf("/_bulk?pipeline=removed"));
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void rejectsUppercaseIndex() {
+        route("Audit").build();
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void rejectsUnknownLevel() {
+        route("audit").setLevel("LOUD").build();
+    }
+
+    private static IndexRoute.Builder route(final String index) {
+        return IndexRoute.newBuilder().setIndex(index);
+    }
+
+    private static Routes routes(final IndexRoute.Builder... builders) {
+        final IndexRoute[] rules = new IndexRoute[builders.length];
+        for (int i = 0; i < builders.length; i++) {
+            rules[i] = builders[i].build();
+        }
+        return new Routes(rules, "log4j", null, RolloverPolicy.DAY, 1000, 1 << 20, 100);
+    }
+
+    private static LogEvent event(final String logger, final Level level, final Marker marker, final String mdcKey) {
+        final SortedArrayStringMap context = new SortedArrayStringMap();
+        if (mdcKey != null) {
+            context.putValue(mdcKey, "1");
+        }
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(logger)
+                .setLevel(level)
+                .setMarker(marker)
+                .setMessage(new SimpleMessage("message"))
+                .setContextData(context)
+                .build();
+    }
+}
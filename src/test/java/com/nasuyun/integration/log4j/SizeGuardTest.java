@@ -0,0 +1,129 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SizeGuardTest {
+
+    @Test
+    public void noGuardWithoutCaps() {
+        assertNull(SizeGuard.of(0, 0));
+        assertNull(SizeGuard.of(-1, 0));
+    }
+
+    @Test
+    public void fieldCapIsTheSmallerOfBothCaps() {
+        assertEquals(1000, SizeGuard.of(1000, 0).fieldCap(1_000_000));
+        assertEquals(10_000 - SizeGuard.RESERVED_BYTES - 4000, SizeGuard.of(0, 10_000).fieldCap(4000));
+        assertEquals(1000, SizeGuard.of(1000, 10_000).fieldCap(4000));
+        assertEquals(0, SizeGuard.of(1000, 10_000).fieldCap(20_000));
+    }
+
+    @Test
+    public void encodedLengthCountsUtf8AndEscapes() {
+        assertEquals(5, SizeGuard.encodedLength("hello"));
+        // a, quote, newline, control character, two and three byte characters
+        assertEquals(1 + 2 + 2 + 6 + 2 + 3, SizeGuard.encodedLength("a\"\n\u0001é€"));
+        // both halves of a surrogate pair are written as unicode escapes
+        assertEquals(12, SizeGuard.encodedLength("😀"));
+    }
+
+    @Test
+    public void textThatFitsIsKept() {
+        assertEquals(5, SizeGuard.cut("hello", 5));
+        assertEquals(3, SizeGuard.cut("ééé", 6));
+    }
+
+    @Test
+    public void cutLeavesRoomForTheMarker() {
+        assertEquals(20 - SizeGuard.MARKER.length(), SizeGuard.cut(repeat("a", 100), 20));
+        // two bytes per char, 6 bytes left after the marker
+        assertEquals(3, SizeGuard.cut(repeat("é", 20), 20));
+    }
+
+    @Test
+    public void cutKeepsSurrogatePairsTogether() {
+        final String text = "a" + repeat("😀", 10);
+        // 7 bytes left after the marker: the 'a' and half of the first pair, so only the 'a' is kept
+        assertEquals(1, SizeGuard.cut(text, SizeGuard.MARKER.length() + 7));
+        assertEquals(3, SizeGuard.cut(text, SizeGuard.MARKER.length() + 13));
+    }
+
+    @Test
+    public void utf8CutNeverSplitsACharacter() {
+        final byte[] utf8 = repeat("é", 19).getBytes(StandardCharsets.UTF_8);
+        assertEquals(utf8.length, SizeGuard.cut(utf8, utf8.length, utf8.length));
+        // 5 bytes left after the marker, the fifth byte starts a character that does not fit
+        final int end = SizeGuard.cut(utf8, utf8.length, SizeGuard.MARKER.length() + 5);
+        assertEquals(4, end);
+        assertEquals(repeat("é", 2), new String(utf8, 0, end, StandardCharsets.UTF_8));
+        // a longer sequence than the buffer holds
+        assertEquals(4, SizeGuard.cut(utf8, 1_000_000, SizeGuard.MARKER.length() + 4));
+    }
+
+    @Test
+    public void truncationsAreWrittenAndCounted() throws IOException {
+        final SizeGuard guard = SizeGuard.of(100, 0);
+        final SizeGuard.Truncations truncations = new SizeGuard.Truncations();
+        assertTrue(truncations.isEmpty());
+        assertEquals("{}", write(truncations, guard));
+        assertEquals(0, guard.truncated());
+
+        for (int i = 0; i < 10; i++) {
+            truncations.add("f" + i, 1000 + i);
+        }
+        assertFalse(truncations.isEmpty());
+        final String json = write(truncations, guard);
+        assertTrue(json, json.startsWith("{\"truncated\":{\"f0\":1000,"));
+        assertTrue(json, json.contains("\"f7\":1007"));
+        assertFalse(json, json.contains("\"f8\""));
+        assertEquals(1, guard.truncated());
+
+        truncations.reset();
+        assertTrue(truncations.isEmpty());
+    }
+
+    private static String write(final SizeGuard.Truncations truncations, final SizeGuard guard) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = DocumentEncoder.JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartObject();
+            truncations.writeTo(generator, guard);
+            generator.writeEndObject();
+        }
+        return out.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private static String repeat(final String value, final int times) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
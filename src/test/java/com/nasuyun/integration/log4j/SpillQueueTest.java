@@ -0,0 +1,189 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpillQueueTest {
+
+    private static final int SEGMENT = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pollsRecordsInOrder() throws IOException {
+        final SpillQueue queue = new SpillQueue(folder.getRoot().toPath(), 4 * SEGMENT, SEGMENT);
+        try {
+            assertTrue(queue.isEmpty());
+            assertTrue(queue.offer("logs/_bulk", bytes("{\"index\":{}}\n"), bytes("{\"n\":1}\n")));
+            assertTrue(queue.offer("other/_bulk", bytes("{\"create\":{}}\n"), bytes("{\"n\":2}\n")));
+            assertEquals(2, queue.size());
+
+            final SpillQueue.Record record = new SpillQueue.Record();
+            assertTrue(queue.poll(record));
+            assertEquals("logs/_bulk", record.path);
+            assertArrayEquals(bytes("{\"index\":{}}\n"), record.action);
+            assertArrayEquals(bytes("{\"n\":1}\n"), record.source);
+            assertTrue(queue.poll(record));
+            assertEquals("other/_bulk", record.path);
+            assertArrayEquals(bytes("{\"n\":2}\n"), record.source);
+            assertFalse(queue.poll(record));
+            assertTrue(queue.isEmpty());
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void restartContinuesAfterTheLastCommit() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        SpillQueue queue = new SpillQueue(directory, 4 * SEGMENT, SEGMENT);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer("logs/_bulk", bytes("{}\n"), bytes(i + "\n")));
+        }
+        final SpillQueue.Record record = new SpillQueue.Record();
+        assertTrue(queue.poll(record));
+        assertTrue(queue.poll(record));
+        queue.commit();
+        // read but never confirmed, it comes back after the restart
+        assertTrue(queue.poll(record));
+        queue.close();
+
+        queue = new SpillQueue(directory, 4 * SEGMENT, SEGMENT);
+        try {
+            assertEquals(3, queue.size());
+            for (int i = 2; i < 5; i++) {
+                assertTrue(queue.poll(record));
+                assertArrayEquals(bytes(i + "\n"), record.source);
+            }
+            assertFalse(queue.poll(record));
+            assertTrue(queue.offer("logs/_bulk", bytes("{}\n"), bytes("5\n")));
+            assertTrue(queue.poll(record));
+            assertArrayEquals(bytes("5\n"), record.source);
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void rewindReadsTheUncommittedRecordsAgain() throws IOException {
+        final SpillQueue queue = new SpillQueue(folder.getRoot().toPath(), 8 * SEGMENT, SEGMENT);
+        try {
+            final byte[] source = new byte[10 * 1024];
+            for (int i = 0; i < 20; i++) {
+                source[0] = (byte) i;
+                assertTrue(queue.offer("logs/_bulk", bytes("{}\n"), source));
+            }
+            final SpillQueue.Record record = new SpillQueue.Record();
+            assertTrue(queue.poll(record));
+            queue.commit();
+            // read across a segment boundary, then give it back
+            for (int i = 1; i < 10; i++) {
+                assertTrue(queue.poll(record));
+            }
+            queue.rewind();
+            assertEquals(19, queue.size());
+            for (int i = 1; i < 20; i++) {
+                assertTrue(queue.poll(record));
+                assertEquals(i, record.source[0]);
+            }
+            assertFalse(queue.poll(record));
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void commitDeletesFinishedSegments() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final SpillQueue queue = new SpillQueue(directory, 8 * SEGMENT, SEGMENT);
+        try {
+            final byte[] source = new byte[10 * 1024];
+            for (int i = 0; i < 20; i++) {
+                assertTrue(queue.offer("logs/_bulk", bytes("{}\n"), source));
+            }
+            assertTrue(segments(directory) > 1);
+            final SpillQueue.Record record = new SpillQueue.Record();
+            while (queue.poll(record)) {
+                // drain
+            }
+            queue.commit();
+            assertEquals(1, segments(directory));
+            assertTrue(queue.isEmpty());
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void dropsWhenFullOrTooLarge() throws IOException {
+        final SpillQueue queue = new SpillQueue(folder.getRoot().toPath(), 2 * SEGMENT, SEGMENT);
+        try {
+            assertFalse(queue.offer("logs/_bulk", bytes("{}\n"), new byte[SEGMENT]));
+            final byte[] source = new byte[10 * 1024];
+            int accepted = 0;
+            while (queue.offer("logs/_bulk", bytes("{}\n"), source)) {
+                accepted++;
+            }
+            assertEquals(12, accepted);
+            assertEquals(12, queue.size());
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void secondQueueOnTheSameDirectoryFails() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final SpillQueue queue = new SpillQueue(directory, 4 * SEGMENT, SEGMENT);
+        try {
+            new SpillQueue(directory, 4 * SEGMENT, SEGMENT);
+            fail("the directory is locked");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("locked"));
+        } finally {
+            queue.close();
+        }
+        new SpillQueue(directory, 4 * SEGMENT, SEGMENT).close();
+    }
+
+    private static long segments(final Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".seg")).count();
+        }
+    }
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
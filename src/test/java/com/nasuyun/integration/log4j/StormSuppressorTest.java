@@ -0,0 +1,139 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StormSuppressorTest {
+
+    private final List<LogEvent> summaries = new ArrayList<>();
+
+    @Test
+    public void repeatsWithinTheWindowAreSummarized() {
+        final StormSuppressor suppressor = new StormSuppressor(2, 1000, 1024, 0, 0, summaries::add);
+        for (int i = 0; i < 5; i++) {
+            // the arguments differ, the template is the fingerprint
+            assertEquals(i < 2, suppressor.admit(event("a", Level.WARN, "user {} failed", i, 10_000 + i, null)));
+        }
+        assertEquals(3, suppressor.suppressed());
+        assertTrue(summaries.isEmpty());
+
+        assertTrue(suppressor.admit(event("a", Level.WARN, "user {} failed", 5, 11_000, null)));
+        assertEquals(1, summaries.size());
+        final LogEvent summary = summaries.get(0);
+        assertEquals("a", summary.getLoggerName());
+        assertEquals(Level.WARN, summary.getLevel());
+        assertEquals("Suppressed 3 repeats of: user {} failed", summary.getMessage().getFormattedMessage());
+        assertEquals(3L, (long) summary.getContextData().getValue("suppressed"));
+        assertEquals(10_000L, (long) summary.getContextData().getValue("suppressedFrom"));
+        assertEquals(11_000L, (long) summary.getContextData().getValue("suppressedTo"));
+        assertEquals(1, suppressor.summarized());
+    }
+
+    @Test
+    public void fingerprintCoversLoggerLevelAndThrowable() {
+        final StormSuppressor suppressor = new StormSuppressor(1, 1000, 1024, 0, 0, summaries::add);
+        assertTrue(suppressor.admit(event("a", Level.WARN, "failed", 0, 0, null)));
+        assertTrue(suppressor.admit(event("b", Level.WARN, "failed", 0, 0, null)));
+        assertTrue(suppressor.admit(event("a", Level.ERROR, "failed", 0, 0, null)));
+        assertTrue(suppressor.admit(event("a", Level.WARN, "failed", 0, 0, new IllegalStateException())));
+        assertTrue(suppressor.admit(event("a", Level.WARN, "failed", 0, 0, new IllegalArgumentException())));
+        assertFalse(suppressor.admit(event("a", Level.WARN, "failed", 0, 0, new IllegalArgumentException("other"))));
+        assertFalse(suppressor.admit(event("a", Level.WARN, "failed", 0, 0, null)));
+        assertEquals(2, suppressor.suppressed());
+    }
+
+    @Test
+    public void sweepReportsEndedWindows() {
+        final StormSuppressor suppressor = new StormSuppressor(1, 1000, 1024, 0, 0, summaries::add);
+        final long past = System.currentTimeMillis() - 5000;
+        suppressor.admit(event("a", Level.WARN, "failed", 0, past, new IllegalStateException()));
+        suppressor.admit(event("a", Level.WARN, "failed", 0, past, new IllegalStateException()));
+        // a window without repeats has nothing to report
+        suppressor.admit(event("b", Level.WARN, "failed", 0, past, null));
+
+        suppressor.sweep();
+        assertEquals(1, summaries.size());
+        assertEquals("Suppressed 1 repeats of: failed [java.lang.IllegalStateException]",
+                summaries.get(0).getMessage().getFormattedMessage());
+        assertEquals(IllegalStateException.class.getName(),
+                summaries.get(0).getContextData().getValue("suppressedThrowable"));
+        suppressor.sweep();
+        assertEquals(1, summaries.size());
+    }
+
+    @Test
+    public void evictedFingerprintsReportFirst() {
+        // one fingerprint per stripe
+        final StormSuppressor suppressor = new StormSuppressor(1, 60_000, 16, 0, 0, summaries::add);
+        for (int i = 0; i < 40; i++) {
+            suppressor.admit(event("logger" + i, Level.WARN, "failed", 0, 0, null));
+            suppressor.admit(event("logger" + i, Level.WARN, "failed", 0, 0, null));
+        }
+        assertEquals(40, suppressor.suppressed());
+        assertTrue(String.valueOf(summaries.size()), summaries.size() >= 40 - 16);
+        for (LogEvent summary : summaries) {
+            assertEquals(1L, (long) summary.getContextData().getValue("suppressed"));
+        }
+    }
+
+    @Test
+    public void rateLimitLetsTheBurstThrough() throws InterruptedException {
+        final StormSuppressor suppressor = new StormSuppressor(0, 1, 1024, 10, 5, summaries::add);
+        int passed = 0;
+        for (int i = 0; i < 20; i++) {
+            if (suppressor.admit(event("a", Level.INFO, "message " + i, 0, 0, null))) {
+                passed++;
+            }
+        }
+        // a slow run may see one more slot free up
+        assertTrue(String.valueOf(passed), passed >= 5 && passed <= 7);
+        assertEquals(20 - passed, suppressor.rateLimited());
+        assertEquals(0, suppressor.suppressed());
+
+        Thread.sleep(5);
+        suppressor.sweep();
+        assertEquals(1, summaries.size());
+        assertEquals("Rate limit dropped " + (20 - passed) + " events", summaries.get(0).getMessage().getFormattedMessage());
+        Thread.sleep(5);
+        suppressor.sweep();
+        assertEquals(1, summaries.size());
+    }
+
+    private static LogEvent event(final String logger, final Level level, final String template, final Object argument,
+                                  final long timeMillis, final Throwable thrown) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName(logger)
+                .setLevel(level)
+                .setMessage(new ParameterizedMessage(template, argument))
+                .setTimeMillis(timeMillis)
+                .setThrown(thrown)
+                .build();
+    }
+}
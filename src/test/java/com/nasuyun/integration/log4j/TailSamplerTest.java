@@ -0,0 +1,192 @@
+package com.nasuyun.integration.log4j;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.ConfigurationException;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TailSamplerTest {
+
+    @Test
+    public void levelBelowError() {
+        assertNull(TailSampler.of("", null, 10, 1000, 1 << 20));
+        assertEquals(Level.DEBUG, TailSampler.levelOf("debug"));
+        assertEquals(Level.DEBUG, TailSampler.levelOf("unknown"));
+        assertEquals(Level.WARN, TailSampler.levelOf("WARN"));
+        for (String level : new String[]{"ERROR", "fatal"}) {
+            try {
+                TailSampler.levelOf(level);
+                fail(level);
+            } catch (ConfigurationException e) {
+                assertTrue(e.getMessage().contains(level));
+            }
+        }
+    }
+
+    @Test
+    public void holdsUpToTheLevelAndReleasesOnError() {
+        final TailSampler sampler = new TailSampler(Level.DEBUG, null, 10, 1000, 1 << 20);
+        assertTrue(sampler.holds(event(Level.TRACE, "main", null)));
+        assertTrue(sampler.holds(event(Level.DEBUG, "main", null)));
+        assertFalse(sampler.holds(event(Level.INFO, "main", null)));
+        assertTrue(sampler.triggers(event(Level.ERROR, "main", null)));
+        assertTrue(sampler.triggers(event(Level.FATAL, "main", null)));
+        assertFalse(sampler.triggers(event(Level.WARN, "main", null)));
+    }
+
+    @Test
+    public void keyIsTheMdcValueOrTheThread() {
+        final TailSampler byTrace = new TailSampler(Level.DEBUG, "traceId", 10, 1000, 1 << 20);
+        assertEquals("t1", byTrace.keyOf(event(Level.DEBUG, "main", "t1")));
+        assertEquals("main", byTrace.keyOf(event(Level.DEBUG, "main", null)));
+        final TailSampler byThread = new TailSampler(Level.DEBUG, "", 10, 1000, 1 << 20);
+        assertEquals("main", byThread.keyOf(event(Level.DEBUG, "main", "t1")));
+    }
+
+    @Test
+    public void releasesEventsWithinThePeriodOldestFirst() {
+        final TailSampler sampler = new TailSampler(Level.DEBUG, null, 10, 5000, 1 << 20);
+        final EncodedEvent old = encoded(1000, 10);
+        final EncodedEvent first = encoded(5000, 10);
+        final EncodedEvent second = encoded(9000, 10);
+        sampler.hold("a", old);
+        sampler.hold("a", first);
+        sampler.hold("a", second);
+        sampler.hold("b", encoded(9000, 10));
+        assertEquals(4, sampler.held());
+
+        final List<EncodedEvent> released = sampler.release("a", 10_000);
+        assertEquals(2, released.size());
+        assertTrue(released.get(0) == first && released.get(1) == second);
+        assertEquals(2, sampler.released());
+        assertEquals(1, sampler.discarded());
+        assertTrue(sampler.release("a", 10_000).isEmpty());
+        // only b is left
+        assertEquals(TailSampler.KEY_OVERHEAD + 2 + 10 + TailSampler.EVENT_OVERHEAD, sampler.heldBytes());
+    }
+
+    @Test
+    public void keepsTheLastMaxEventsPerKey() {
+        final TailSampler sampler = new TailSampler(Level.DEBUG, null, 3, 60_000, 1 << 20);
+        for (int i = 0; i < 5; i++) {
+            sampler.hold("a", encoded(1000 + i, 10));
+        }
+        final List<EncodedEvent> released = sampler.release("a", 2000);
+        assertEquals(3, released.size());
+        assertEquals(1002, released.get(0).timeMillis);
+        assertEquals(2, sampler.discarded());
+    }
+
+    @Test
+    public void staysWithinMaxBytes() {
+        final long keyCost = TailSampler.KEY_OVERHEAD + 2;
+        final long eventCost = 100 + TailSampler.EVENT_OVERHEAD;
+        // room for the key and three events per stripe
+        final long maxBytes = 16 * (keyCost + 3 * eventCost);
+        final TailSampler sampler = new TailSampler(Level.DEBUG, null, 100, 60_000, maxBytes);
+        for (int i = 0; i < 10; i++) {
+            sampler.hold("a", encoded(1000 + i, 100));
+            assertTrue(sampler.heldBytes() <= maxBytes / 16);
+        }
+        assertEquals(7, sampler.discarded());
+        // larger than a stripe on its own
+        sampler.hold("a", encoded(2000, (int) (maxBytes / 16)));
+        assertEquals(8, sampler.discarded());
+        assertEquals(10, sampler.held());
+
+        final List<EncodedEvent> released = sampler.release("a", 2000);
+        assertEquals(3, released.size());
+        assertEquals(1007, released.get(0).timeMillis);
+    }
+
+    @Test
+    public void leastRecentlyUsedKeyLosesItsEventsFirst() {
+        final String[] keys = sameStripe();
+        final long perStripe = 2 * (TailSampler.KEY_OVERHEAD + 2 * keys[0].length()) + 3 * (100 + TailSampler.EVENT_OVERHEAD);
+        final TailSampler sampler = new TailSampler(Level.DEBUG, null, 100, 60_000, 16 * perStripe);
+        sampler.hold(keys[0], encoded(1000, 100));
+        sampler.hold(keys[0], encoded(1001, 100));
+        sampler.hold(keys[1], encoded(1002, 100));
+        sampler.hold(keys[1], encoded(1003, 100));
+        assertEquals(1, sampler.discarded());
+        assertEquals(1, sampler.release(keys[0], 2000).size());
+        assertEquals(2, sampler.release(keys[1], 2000).size());
+    }
+
+    @Test
+    public void sweepDropsExpiredEventsAndEmptyKeys() {
+        final TailSampler sampler = new TailSampler(Level.DEBUG, null, 10, 1000, 1 << 20);
+        sampler.hold("a", encoded(1000, 10));
+        sampler.hold("a", encoded(2500, 10));
+        sampler.hold("b", encoded(1000, 10));
+        sampler.sweep(3000);
+        assertEquals(2, sampler.discarded());
+        assertEquals(TailSampler.KEY_OVERHEAD + 2 + 10 + TailSampler.EVENT_OVERHEAD, sampler.heldBytes());
+        assertEquals(1, sampler.release("a", 3000).size());
+        assertTrue(sampler.release("b", 3000).isEmpty());
+    }
+
+    /**
+     * Two keys of equal length the sampler puts into the same stripe.
+     */
+    private static String[] sameStripe() {
+        final String first = "k0";
+        for (int i = 1; ; i++) {
+            final String other = "k" + (char) ('0' + i);
+            if (stripe(other) == stripe(first)) {
+                return new String[]{first, other};
+            }
+        }
+    }
+
+    private static int stripe(final String key) {
+        final int h = key.hashCode();
+        return (h ^ (h >>> 16)) & 15;
+    }
+
+    private static EncodedEvent encoded(final long timeMillis, final int bytes) {
+        return new EncodedEvent(timeMillis, new byte[bytes], 0, 0);
+    }
+
+    private static LogEvent event(final Level level, final String thread, final String traceId) {
+        final SortedArrayStringMap context = new SortedArrayStringMap();
+        if (traceId != null) {
+            context.putValue("traceId", traceId);
+        }
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test")
+                .setLevel(level)
+                .setMessage(new SimpleMessage("message"))
+                .setThreadName(thread)
+                .setContextData(context)
+                .build();
+    }
+}